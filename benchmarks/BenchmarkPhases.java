@@ -0,0 +1,48 @@
+/*
+ * File: BenchmarkPhases.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The compile steps and the VM run for the benchmarks (see
+ *       bench.Phases).
+ */
+
+import java.io.ByteArrayInputStream;
+
+
+public class BenchmarkPhases implements bench.Phases {
+
+  @Override
+  public int lex(byte[] source) throws MyPLException {
+    Lexer lexer = new Lexer(new ByteArrayInputStream(source));
+    int count = 0;
+    while (lexer.nextToken().type() != TokenType.EOS)
+      ++count;
+    return count;
+  }
+
+  @Override
+  public Object parse(byte[] source) throws MyPLException {
+    return new ASTParser(new Lexer(new ByteArrayInputStream(source))).parse();
+  }
+
+  @Override
+  public Object check(Object program) throws MyPLException {
+    TypeInfo typeInfo = new TypeInfo();
+    ((Program)program).accept(new StaticChecker(typeInfo));
+    return typeInfo;
+  }
+
+  // (including evaluating calls at compile time)
+  @Override
+  public Object codegen(Object program, Object typeInfo) throws MyPLException {
+    VM vm = new VM();
+    ((Program)program).accept(new CodeGenerator((TypeInfo)typeInfo, vm));
+    return vm;
+  }
+
+  @Override
+  public void run(Object vm) throws MyPLException {
+    ((VM)vm).run();
+  }
+
+}
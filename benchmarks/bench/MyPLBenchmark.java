@@ -0,0 +1,145 @@
+/*
+ * File: MyPLBenchmark.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: JMH benchmarks of each compile step (lexing, parsing, static
+ *       checking, and code generation) and of the VM running the
+ *       generated code, on programs from examples/ and
+ *       my-example-programs/. Each benchmark reports its throughput
+ *       (programs per second) and, from the GC profiler, its
+ *       allocation rate (gc.alloc.rate.norm is bytes per program).
+ *
+ *  Usage: bazel run //:benchmarks -- [JMH options]
+ *  (e.g., -p program=exec-fib to run one program, and -rf json -rff
+ *  before.json to save the results to compare with a later run)
+ */
+
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyPLBenchmark {
+
+  // the standard input given to programs that read (a prime, which
+  // ends exec-sum-to-prime)
+  private static final String INPUT = "7919\n";
+
+  // the program (a file name without .mypl, found in examples/ or
+  // my-example-programs/)
+  @Param({"exec-fib", "exec-catalan-nums", "exec-sum-to-prime", "exec-tree",
+          "linked-list-merge-sort"})
+  public String program;
+
+  private Phases phases;
+  private byte[] source;
+  private Object ast;
+  private Object typeInfo;
+
+  private PrintStream stdout;
+  private InputStream stdin;
+
+
+  /**
+   * Runs the benchmarks with the GC profiler (and any other JMH
+   * options given).
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(cmdOptions).addProfiler(GCProfiler.class);
+    if (cmdOptions.getIncludes().isEmpty())
+      options.include(MyPLBenchmark.class.getName());
+    new Runner(options.build()).run();
+  }
+
+  @Setup(Level.Trial)
+  public void readProgram() throws Exception {
+    phases = (Phases)Class.forName("BenchmarkPhases").getDeclaredConstructor().newInstance();
+    File file = new File("examples", program + ".mypl");
+    if (!file.exists())
+      file = new File("my-example-programs", program + ".mypl");
+    source = Files.readAllBytes(file.toPath());
+    ast = phases.parse(source);
+    typeInfo = phases.check(ast);
+    // (the programs' output is thrown away)
+    stdout = System.out;
+    stdin = System.in;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @TearDown(Level.Trial)
+  public void restoreStreams() {
+    System.setOut(stdout);
+    System.setIn(stdin);
+  }
+
+  // the VM of the next run (code is generated before each run, since a
+  // run leaves objects on the VM's heap)
+  @State(Scope.Thread)
+  public static class Run {
+    Object vm;
+
+    @Setup(Level.Invocation)
+    public void generate(MyPLBenchmark benchmark) throws Exception {
+      vm = benchmark.phases.codegen(benchmark.ast, benchmark.typeInfo);
+      System.setIn(new ByteArrayInputStream(INPUT.getBytes()));
+    }
+  }
+
+  @Benchmark
+  public int lex() throws Exception {
+    return phases.lex(source);
+  }
+
+  @Benchmark
+  public Object parse() throws Exception {
+    return phases.parse(source);
+  }
+
+  @Benchmark
+  public Object check() throws Exception {
+    return phases.check(ast);
+  }
+
+  @Benchmark
+  public Object codegen() throws Exception {
+    return phases.codegen(ast, typeInfo);
+  }
+
+  @Benchmark
+  public Object run(Run run) throws Exception {
+    phases.run(run.vm);
+    return run.vm;
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * File: Phases.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The compile steps and the VM run, as MyPLBenchmark calls them.
+ *       JMH needs benchmarks in a named package, and classes in a
+ *       named package can't use the (default package) MyPL classes,
+ *       so BenchmarkPhases implements this for them. The values are
+ *       the MyPL classes' objects (a Program, TypeInfo, and VM).
+ */
+
+package bench;
+
+
+public interface Phases {
+
+  // lexes a program, returning the number of tokens
+  int lex(byte[] source) throws Exception;
+
+  // parses a program (including the lexing), returning the Program
+  Object parse(byte[] source) throws Exception;
+
+  // checks a parsed program, returning its TypeInfo
+  Object check(Object program) throws Exception;
+
+  // generates a checked program's code, returning the VM holding it
+  Object codegen(Object program, Object typeInfo) throws Exception;
+
+  // runs the generated code
+  void run(Object vm) throws Exception;
+
+}
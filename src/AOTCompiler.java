@@ -0,0 +1,167 @@
+/*
+ * File: AOTCompiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Ahead-of-time compiles a checked MyPL program: translates it
+ *       to Java (see JavaGenerator), compiles the source in memory
+ *       with the system Java compiler (javax.tools), and writes a
+ *       runnable jar holding the program and its runtime
+ *       (MyPLRuntime). Running the jar skips lexing, parsing,
+ *       checking, and interpreting the program.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.lang.model.SourceVersion;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+
+public class AOTCompiler {
+
+  // the runtime classes every compiled program needs
+  private static final List<String> RUNTIME_CLASSES =
+    List.of("MyPLRuntime", "MyPLRuntime$Main", "MyPLException",
+            "MyPLException$ErrorType");
+
+  /**
+   * Compiles a checked program to a runnable jar (or, if the file
+   * name ends in .java, just writes the Java source).
+   * @param program the (statically checked) program
+   * @param outFile the jar (or .java) file to write
+   */
+  public static void compile(Program program, String outFile)
+    throws MyPLException, IOException
+  {
+    String className = className(outFile);
+    JavaGenerator generator = new JavaGenerator(className);
+    program.accept(generator);
+    if (outFile.endsWith(".java")) {
+      Files.writeString(Path.of(outFile), generator.source());
+      return;
+    }
+    Map<String,byte[]> classes = compileSource(className, generator.source());
+    for (String runtimeClass : RUNTIME_CLASSES)
+      classes.put(runtimeClass, classBytes(runtimeClass));
+    writeJar(outFile, className, classes);
+  }
+
+  // the class name for an output file (its base name, made a valid
+  // Java identifier that isn't a keyword or the name of a runtime or
+  // java.lang class, which the generated code uses)
+  static String className(String outFile) {
+    String name = Path.of(outFile).getFileName().toString();
+    if (name.lastIndexOf('.') > 0)
+      name = name.substring(0, name.lastIndexOf('.'));
+    String id = "";
+    for (char c : name.toCharArray())
+      id += Character.isJavaIdentifierPart(c) ? c : '_';
+    if (id.isEmpty() || !Character.isJavaIdentifierStart(id.charAt(0)))
+      id = "_" + id;
+    if (!SourceVersion.isName(id) || RUNTIME_CLASSES.contains(id) || isJavaLangClass(id))
+      id = id + "Program";
+    return id;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // compiles one class (in memory), returning the class files by name
+  private static Map<String,byte[]> compileSource(String className, String source)
+    throws IOException
+  {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null)
+      throw new IOException("no Java compiler available (a JDK is needed)");
+    Map<String,ByteArrayOutputStream> outputs = new LinkedHashMap<>();
+    JavaFileManager files =
+      new ForwardingJavaFileManager<JavaFileManager>(javac.getStandardFileManager(null, null, null)) {
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String name,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+          return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+            @Override
+            public OutputStream openOutputStream() {
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              outputs.put(name, out);
+              return out;
+            }
+          };
+        }
+      };
+    JavaFileObject input =
+      new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                               JavaFileObject.Kind.SOURCE) {
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+          return source;
+        }
+      };
+    StringWriter messages = new StringWriter();
+    List<String> options = List.of("-classpath", System.getProperty("java.class.path"),
+                                   "-nowarn", "-g:none");
+    boolean ok = javac.getTask(messages, files, null, options, null, List.of(input)).call();
+    if (!ok)
+      throw new IOException("compiling the generated Java failed:\n" + messages);
+    Map<String,byte[]> classes = new LinkedHashMap<>();
+    for (Map.Entry<String,ByteArrayOutputStream> e : outputs.entrySet())
+      classes.put(e.getKey(), e.getValue().toByteArray());
+    return classes;
+  }
+
+  // true if java.lang has a class of the given name
+  private static boolean isJavaLangClass(String name) {
+    try {
+      Class.forName("java.lang." + name, false, null);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  // the class file of one of the (already compiled) runtime classes
+  private static byte[] classBytes(String className) throws IOException {
+    try (InputStream in = AOTCompiler.class.getClassLoader()
+         .getResourceAsStream(className + ".class")) {
+      if (in == null)
+        throw new IOException("runtime class " + className + " not found");
+      return in.readAllBytes();
+    }
+  }
+
+  private static void writeJar(String jarFile, String mainClass, Map<String,byte[]> classes)
+    throws IOException
+  {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarFile), manifest)) {
+      for (Map.Entry<String,byte[]> e : classes.entrySet()) {
+        jar.putNextEntry(new JarEntry(e.getKey().replace('.', '/') + ".class"));
+        jar.write(e.getValue());
+        jar.closeEntry();
+      }
+    }
+  }
+
+}
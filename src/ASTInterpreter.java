@@ -0,0 +1,514 @@
+/*
+ * File: ASTInterpreter.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Runs a (checked) program by walking its AST instead of
+ *       generating code first, so short programs start right away.
+ *       Each function's variables are numbered (as CodeGenerator
+ *       numbers them) on its first call, and each node that uses a
+ *       variable or literal caches its index or value, so running a
+ *       node again is an array access. Values, the heap, and runtime
+ *       errors come from the VM (see VMOps), with source lines in
+ *       place of instruction indexes. A function called more than a
+ *       threshold number of times has code generated for it (and the
+ *       functions it calls) and runs in the VM from then on, through
+ *       the VM's JIT if it has one so hot code ends up compiled.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class ASTInterpreter implements Visitor {
+
+  // a function: its declaration, a frame for error messages, its
+  // number of variables (-1 until they are numbered), and its number
+  // of calls so far
+  private static class Function {
+    FunDecl decl;
+    VMFrame frame;
+    int numVars = -1;
+    int calls = 0;
+
+    Function(FunDecl decl) {
+      this.decl = decl;
+      this.frame = new VMFrame(decl.funName.lexeme(), decl.params.size());
+    }
+  }
+
+  // the Java stack size of the thread the program runs on (the
+  // calls of most programs nest a few hundred thousand deep or less)
+  static final long STACK_SIZE = 1L << 30;
+
+  private TypeInfo typeInfo;
+
+  // the VM holding the heap (and the code of compiled functions)
+  private VM vm;
+
+  private Program program = null;
+  private CodeGenerator generator = null;
+  private Map<String,Function> functions = new HashMap<>();
+  private Map<String,TypeDecl> typeDecls = new HashMap<>();
+  private Map<String,List<String>> components = new HashMap<>();
+
+  // calls of a function before it is compiled (0 to never compile)
+  private int compileThreshold = 100;
+
+  // the running call: its function and variables
+  private Function current = null;
+  private Object[] vars = null;
+
+  // the value of the last expression evaluated, and true once a
+  // return statement has run (the value is then the return value)
+  private Object value = null;
+  private boolean returning = false;
+
+  // variable numbering (while a function's variables are numbered)
+  private Map<String,Integer> slots = null;
+  private int nextSlot = 0;
+
+
+  /**
+   * Creates an interpreter.
+   * @param typeInfo the program's type information
+   * @param vm the VM for the heap and for compiled functions
+   */
+  public ASTInterpreter(TypeInfo typeInfo, VM vm) {
+    this.typeInfo = typeInfo;
+    this.vm = vm;
+  }
+
+  /**
+   * Set the number of calls of a function that are interpreted before
+   * the function is compiled and run in the VM.
+   * @param calls the number of interpreted calls (0 to interpret every
+   *        call, by default 100)
+   */
+  public void setCompileThreshold(int calls) {
+    compileThreshold = Math.max(0, calls);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // runs the program (from main)
+  public void visit(Program node) throws MyPLException {
+    program = node;
+    generator = new CodeGenerator(typeInfo, vm);
+    for (TypeDecl tdecl : node.tdecls)
+      typeDecls.put(tdecl.typeName.lexeme(), tdecl);
+    for (FunDecl fdecl : node.fdecls)
+      functions.put(fdecl.funName.lexeme(), new Function(fdecl));
+    if (!functions.containsKey("main"))
+      throw MyPLException.VMError("No 'main' function");
+    // (calls nest on the Java stack, a few Java frames per node on the
+    // way to each call, so they run on a thread with a large stack)
+    Throwable[] error = new Throwable[1];
+    Thread runner = new Thread(null, () -> {
+        try {
+          call(functions.get("main"), new Object[0]);
+        } catch (StackOverflowError e) {
+          error[0] = MyPLException.VMError("Calls nested too deeply");
+        } catch (MyPLException | RuntimeException | Error e) {
+          error[0] = e;
+        }
+      }, "mypl-ast", STACK_SIZE);
+    runner.start();
+    try {
+      runner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw MyPLException.VMError("Interrupted");
+    }
+    if (error[0] instanceof MyPLException)
+      throw (MyPLException)error[0];
+    if (error[0] instanceof RuntimeException)
+      throw (RuntimeException)error[0];
+    if (error[0] instanceof Error)
+      throw (Error)error[0];
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // nothing to do (fields are initialized by NewRValue)
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    // nothing to do (functions run through call)
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    vars[node.slot] = value;
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+    List<Token> path = node.lvalue;
+    if (path.size() == 1) {
+      vars[node.slot] = value;
+      return;
+    }
+    Object oid = vars[node.slot];
+    for (int i = 1; i < path.size() - 1; ++i)
+      oid = vm.getField(oid, path.get(i).lexeme(), current.frame, -path.get(i).line());
+    vm.setField(oid, value, path.get(path.size() - 1).lexeme());
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    if (VMOps.isTrue(value)) {
+      visitStmts(node.ifPart.stmts);
+      return;
+    }
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      if (VMOps.isTrue(value)) {
+        visitStmts(elif.stmts);
+        return;
+      }
+    }
+    visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    while (true) {
+      node.cond.accept(this);
+      if (!VMOps.isTrue(value))
+        return;
+      visitStmts(node.stmts);
+      if (returning)
+        return;
+    }
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    VMFrame f = current.frame;
+    int line = -node.varName.line();
+    node.start.accept(this);
+    vars[node.slot] = value;
+    while (true) {
+      Object i = vars[node.slot];
+      node.end.accept(this);
+      Object test = node.upto ? VMOps.cmple(i, value, f, line) : VMOps.cmpge(i, value, f, line);
+      if (!VMOps.isTrue(test))
+        return;
+      visitStmts(node.stmts);
+      if (returning)
+        return;
+      i = vars[node.slot];
+      vars[node.slot] = node.upto ? VMOps.add(i, 1, f, line) : VMOps.sub(i, 1, f, line);
+    }
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+    else
+      value = "nil";
+    returning = true;
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    vm.free(vars[node.slot], current.frame, -node.varName.line());
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    Object[] args = new Object[node.args.size()];
+    for (int i = 0; i < args.length; ++i) {
+      node.args.get(i).accept(this);
+      args[i] = value;
+    }
+    String funName = node.funName.lexeme();
+    VMFrame f = current.frame;
+    int line = -node.funName.line();
+    switch (funName) {
+    case "print":
+      VMOps.write(args[0]);
+      value = VM.NIL_OBJ;
+      break;
+    case "read":
+      value = VMOps.read();
+      break;
+    case "length":
+      value = VMOps.len(args[0]);
+      break;
+    case "get":
+      value = VMOps.getchr(args[0], args[1], f, line);
+      break;
+    case "stoi": case "dtoi":
+      value = VMOps.toint(args[0], f, line);
+      break;
+    case "stod": case "itod":
+      value = VMOps.todbl(args[0], f, line);
+      break;
+    case "itos": case "dtos":
+      value = VMOps.tostr(args[0]);
+      break;
+    default:
+      value = call(functions.get(funName), args);
+    }
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    if (node.constant == null)
+      node.constant = literal(node.value);
+    value = node.constant;
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    String typeName = node.typeName.lexeme();
+    List<String> fields = components.get(typeName);
+    if (fields == null) {
+      fields = new ArrayList<>(typeInfo.components(typeName));
+      components.put(typeName, fields);
+    }
+    Object oid = vm.alloc(fields, current.frame, -node.typeName.line());
+    List<VarDeclStmt> vdecls = typeDecls.get(typeName).vdecls;
+    for (int i = 0; i < fields.size(); ++i) {
+      vdecls.get(i).expr.accept(this);
+      vm.setField(oid, value, fields.get(i));
+    }
+    value = oid;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    Object v = vars[node.slot];
+    List<Token> path = node.path;
+    for (int i = 1; i < path.size(); ++i)
+      v = vm.getField(v, path.get(i).lexeme(), current.frame, -path.get(i).line());
+    value = v;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+    if (value instanceof Integer)
+      value = -1 * (Integer)value;
+    else
+      value = VMOps.neg(value, current.frame, -line(node.expr));
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.op != null) {
+      Object y = value;
+      node.rest.accept(this);
+      value = apply(node.op, y, value);
+    }
+    if (node.logicallyNegated)
+      value = VMOps.not(value, current.frame, -line(node));
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // calls a function, returning its return value
+  private Object call(Function f, Object[] args) throws MyPLException {
+    if (compileThreshold > 0 && ++f.calls > compileThreshold) {
+      String funName = f.decl.funName.lexeme();
+      if (vm.frame(funName) == null) {
+        vm.phase("codegen " + funName, true);
+        try {
+          generator.generate(program, funName);
+        } finally {
+          vm.phase("codegen " + funName, false);
+        }
+      }
+      // (with a JIT, through its counter, so a hot function runs as
+      // compiled code from here on)
+      JIT jit = vm.jit();
+      if (jit != null)
+        return jit.function(funName).call(args);
+      return vm.interpret(vm.frame(funName), args);
+    }
+    if (f.numVars < 0)
+      number(f);
+    Function caller = current;
+    Object[] callerVars = vars;
+    current = f;
+    vars = new Object[f.numVars];
+    Arrays.fill(vars, VM.NIL_OBJ);
+    System.arraycopy(args, 0, vars, 0, args.length);
+    visitStmts(f.decl.stmts);
+    Object result = returning ? value : "nil";
+    returning = false;
+    current = caller;
+    vars = callerVars;
+    return result;
+  }
+
+  // runs statements until one of them returns
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts) {
+      stmt.accept(this);
+      if (returning)
+        return;
+    }
+  }
+
+  // applies a binary operator (with int operands handled directly)
+  private Object apply(Token op, Object y, Object x) throws MyPLException {
+    VMFrame f = current.frame;
+    int line = -op.line();
+    boolean ints = y instanceof Integer && x instanceof Integer;
+    switch (op.type()) {
+    case PLUS:
+      return ints ? (Object)((Integer)y + (Integer)x) : VMOps.add(y, x, f, line);
+    case MINUS:
+      return ints ? (Object)((Integer)y - (Integer)x) : VMOps.sub(y, x, f, line);
+    case MULTIPLY:
+      return ints ? (Object)((Integer)y * (Integer)x) : VMOps.mul(y, x, f, line);
+    case DIVIDE:
+      return VMOps.div(y, x, f, line);
+    case MODULO:
+      return VMOps.mod(y, x, f, line);
+    case AND:
+      return VMOps.and(y, x, f, line);
+    case OR:
+      return VMOps.or(y, x, f, line);
+    case LESS_THAN:
+      return ints ? (Object)((Integer)y < (Integer)x) : VMOps.cmplt(y, x, f, line);
+    case LESS_THAN_EQUAL:
+      return ints ? (Object)((Integer)y <= (Integer)x) : VMOps.cmple(y, x, f, line);
+    case GREATER_THAN:
+      return ints ? (Object)((Integer)y > (Integer)x) : VMOps.cmpgt(y, x, f, line);
+    case GREATER_THAN_EQUAL:
+      return ints ? (Object)((Integer)y >= (Integer)x) : VMOps.cmpge(y, x, f, line);
+    case EQUAL:
+      return VMOps.cmpeq(y, x);
+    case NOT_EQUAL:
+      return VMOps.cmpne(y, x);
+    default:
+      return x;
+    }
+  }
+
+  // converts a literal value token to its VM value (as CodeGenerator
+  // does)
+  private Object literal(Token value) {
+    if (value.type() == TokenType.INT_VAL)
+      return Integer.parseInt(value.lexeme());
+    else if (value.type() == TokenType.DOUBLE_VAL)
+      return Double.parseDouble(value.lexeme());
+    else if (value.type() == TokenType.BOOL_VAL)
+      return value.lexeme().equals("true");
+    else if (value.type() == TokenType.CHAR_VAL || value.type() == TokenType.STRING_VAL) {
+      String s = value.lexeme();
+      s = s.replace("\\n", "\n");
+      s = s.replace("\\t", "\t");
+      s = s.replace("\\r", "\r");
+      s = s.replace("\\\\", "\\");
+      return s;
+    }
+    return VM.NIL_OBJ;
+  }
+
+  // the source line of an expression (for error messages)
+  private int line(Expr expr) {
+    return CodeGenerator.token(expr).line();
+  }
+
+  //----------------------------------------------------------------------
+  // VARIABLE NUMBERING
+  //----------------------------------------------------------------------
+
+  // numbers a function's variables the way CodeGenerator does
+  // (parameters first, then each declaration in program order, with a
+  // use referring to the last declaration of its name before it), and
+  // caches each variable's number in the nodes using it
+  private void number(Function f) {
+    slots = new HashMap<>();
+    nextSlot = 0;
+    for (FunParam param : f.decl.params)
+      slots.put(param.paramName.lexeme(), nextSlot++);
+    numberStmts(f.decl.stmts);
+    f.numVars = nextSlot;
+    slots = null;
+  }
+
+  private int slot(Token name) {
+    return slots.getOrDefault(name.lexeme(), -1);
+  }
+
+  private int declare(Token name) {
+    slots.put(name.lexeme(), nextSlot);
+    return nextSlot++;
+  }
+
+  private void numberStmts(List<Stmt> stmts) {
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof VarDeclStmt) {
+        VarDeclStmt decl = (VarDeclStmt)stmt;
+        numberExpr(decl.expr);
+        decl.slot = declare(decl.varName);
+      }
+      else if (stmt instanceof AssignStmt) {
+        AssignStmt assign = (AssignStmt)stmt;
+        numberExpr(assign.expr);
+        assign.slot = slot(assign.lvalue.get(0));
+      }
+      else if (stmt instanceof CondStmt) {
+        CondStmt cond = (CondStmt)stmt;
+        numberExpr(cond.ifPart.cond);
+        numberStmts(cond.ifPart.stmts);
+        for (BasicIf elif : cond.elifs) {
+          numberExpr(elif.cond);
+          numberStmts(elif.stmts);
+        }
+        numberStmts(cond.elseStmts);
+      }
+      else if (stmt instanceof WhileStmt) {
+        numberExpr(((WhileStmt)stmt).cond);
+        numberStmts(((WhileStmt)stmt).stmts);
+      }
+      else if (stmt instanceof ForStmt) {
+        ForStmt loop = (ForStmt)stmt;
+        numberExpr(loop.start);
+        loop.slot = declare(loop.varName);
+        numberExpr(loop.end);
+        numberStmts(loop.stmts);
+      }
+      else if (stmt instanceof ReturnStmt)
+        numberExpr(((ReturnStmt)stmt).expr);
+      else if (stmt instanceof DeleteStmt)
+        ((DeleteStmt)stmt).slot = slot(((DeleteStmt)stmt).varName);
+      else if (stmt instanceof CallExpr)
+        numberRValue((CallExpr)stmt);
+    }
+  }
+
+  private void numberExpr(Expr expr) {
+    if (expr == null)
+      return;
+    if (expr.first instanceof ComplexTerm)
+      numberExpr(((ComplexTerm)expr.first).expr);
+    else
+      numberRValue(((SimpleTerm)expr.first).rvalue);
+    numberExpr(expr.rest);
+  }
+
+  private void numberRValue(RValue rvalue) {
+    if (rvalue instanceof IDRValue)
+      ((IDRValue)rvalue).slot = slot(((IDRValue)rvalue).path.get(0));
+    else if (rvalue instanceof NegatedRValue)
+      numberExpr(((NegatedRValue)rvalue).expr);
+    else if (rvalue instanceof CallExpr)
+      for (Expr arg : ((CallExpr)rvalue).args)
+        numberExpr(arg);
+  }
+
+}
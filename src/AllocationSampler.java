@@ -0,0 +1,67 @@
+/*
+ * File: AllocationSampler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Picks the allocations a profiler tracks: each one with a
+ *       chance of 1 in the sample period, so counts scaled up by the
+ *       period are unbiased even when a program allocates in a
+ *       repeating pattern (which sampling every Nth allocation can
+ *       line up with). Each thread counts down a random
+ *       (geometrically distributed) number of allocations to its next
+ *       sample, so most allocations just decrement a counter.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public class AllocationSampler {
+
+  private int period;
+
+  // log of the chance an allocation isn't sampled
+  private double logSkip;
+
+  // the allocations left until each thread's next sample
+  private ThreadLocal<long[]> countdown = ThreadLocal.withInitial(() -> new long[] {gap()});
+
+
+  /**
+   * Creates a sampler.
+   * @param period sample one in this many allocations on average (1
+   *        to sample all of them)
+   */
+  public AllocationSampler(int period) {
+    this.period = Math.max(1, period);
+    this.logSkip = Math.log(1.0 - 1.0 / this.period);
+  }
+
+  // the sample period
+  public int period() {
+    return period;
+  }
+
+  // true if the allocation being made is sampled
+  public boolean sample() {
+    if (period == 1)
+      return true;
+    long[] left = countdown.get();
+    if (--left[0] > 0)
+      return false;
+    left[0] = gap();
+    return true;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the number of allocations to the next sample (at least 1)
+  private long gap() {
+    if (period == 1)
+      return 1;
+    // (1 - u is in (0, 1], so its log is finite)
+    double u = ThreadLocalRandom.current().nextDouble();
+    return 1 + (long)(Math.log(1.0 - u) / logSkip);
+  }
+
+}
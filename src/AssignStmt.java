@@ -12,6 +12,10 @@ public class AssignStmt implements Stmt {
 
   public List<Token> lvalue = new ArrayList<>();
   public Expr expr = null;
+
+  // the variable index of the lvalue's first name (cached by the AST
+  // interpreter)
+  public int slot = -1;
   
   @Override
   public void accept(Visitor visitor) throws MyPLException {
@@ -0,0 +1,203 @@
+/*
+ * File: CallGraph.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Builds the call graph of a checked program: for each
+ *       user-defined function, the user-defined functions it calls
+ *       (built-in functions are not included). Used for whole-program
+ *       optimizations such as removing functions that can never be
+ *       called from main.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class CallGraph implements Visitor {
+
+  // the functions each function calls (in program order)
+  private Map<String,Set<String>> callees = new LinkedHashMap<>();
+
+  // the function currently being visited
+  private String currFunName = null;
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // ACCESSORS
+  //----------------------------------------------------------------------
+
+  // the user-defined functions in the program (in program order)
+  public Set<String> functions() {
+    return callees.keySet();
+  }
+
+  /**
+   * Returns the user-defined functions directly called by the given
+   * function.
+   * @param funName the calling function
+   */
+  public Set<String> callees(String funName) {
+    return callees.getOrDefault(funName, Set.of());
+  }
+
+  /**
+   * Returns the user-defined functions that directly call the given
+   * function.
+   * @param funName the called function
+   */
+  public Set<String> callers(String funName) {
+    Set<String> callers = new LinkedHashSet<>();
+    for (Map.Entry<String,Set<String>> e : callees.entrySet())
+      if (e.getValue().contains(funName))
+        callers.add(e.getKey());
+    return callers;
+  }
+
+  /**
+   * Returns the functions that can be reached by a chain of calls
+   * from the given function (including the function itself).
+   * @param funName the root function (e.g., main)
+   */
+  public Set<String> reachableFrom(String funName) {
+    Set<String> reached = new LinkedHashSet<>();
+    Deque<String> todo = new ArrayDeque<>();
+    if (callees.containsKey(funName))
+      todo.push(funName);
+    while (!todo.isEmpty()) {
+      String f = todo.pop();
+      if (reached.add(f))
+        for (String g : callees(f))
+          todo.push(g);
+    }
+    return reached;
+  }
+
+  /**
+   * Returns the functions that can not be reached from the given
+   * function (in program order).
+   * @param funName the root function (e.g., main)
+   */
+  public List<String> unreachableFrom(String funName) {
+    Set<String> reached = reachableFrom(funName);
+    List<String> unreached = new ArrayList<>();
+    for (String f : functions())
+      if (!reached.contains(f))
+        unreached.add(f);
+    return unreached;
+  }
+
+  @Override
+  public String toString() {
+    String s = "";
+    for (Map.Entry<String,Set<String>> e : callees.entrySet())
+      s += e.getKey() + " -> " + e.getValue() + "\n";
+    return s;
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    currFunName = node.funName.lexeme();
+    callees.put(currFunName, new LinkedHashSet<>());
+    visitStmts(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    if (!StaticChecker.isBuiltIn(node.funName.lexeme()))
+      callees.get(currFunName).add(node.funName.lexeme());
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * File: ClosureEngine.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: An alternative way to run a VM's program. At load time each
+ *       function's instructions are turned into an array of handler
+ *       objects (lambdas with the instruction's operand, pc, and next
+ *       pc already bound), so running an instruction is one call that
+ *       returns the next pc instead of a walk down the VM's opcode
+ *       tests. Values, the heap, and runtime errors are the same as
+ *       the VM's (see VMOps). PCALLs always take their sequential
+ *       version.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class ClosureEngine {
+
+  // runs one instruction, returning the pc of the next one
+  private interface Handler {
+    int run(Frame f) throws MyPLException;
+  }
+
+  // a function: its frame (for names and error messages), the number
+  // of variables it uses, and its handlers
+  private static class Function {
+    VMFrame template;
+    int numVars = 0;
+    Handler[] code;
+
+    Function(VMFrame template) {
+      this.template = template;
+    }
+  }
+
+  // an active call of a function
+  private static class Frame {
+    Function function;
+    Object[] variables;
+    Object[] stack = new Object[8];
+    int sp = 0;
+    int pc = 0;
+    Frame caller;
+
+    Frame(Function function, Frame caller) {
+      this.function = function;
+      this.variables = new Object[function.numVars];
+      this.caller = caller;
+    }
+
+    void push(Object x) {
+      if (sp == stack.length)
+        stack = Arrays.copyOf(stack, sp * 2);
+      stack[sp++] = x;
+    }
+
+    Object pop() {
+      return stack[--sp];
+    }
+  }
+
+  // the VM whose program is run (and that holds the heap)
+  private VM vm;
+
+  private Map<String,Function> functions = new HashMap<>();
+
+  // the frame running now (null once main returns)
+  private Frame current = null;
+
+
+  /**
+   * Creates an engine for the functions of a VM, translating each
+   * function's instructions to handlers.
+   * @param vm the VM holding the (generated) frames
+   */
+  public ClosureEngine(VM vm) {
+    this.vm = vm;
+    for (String funName : vm.functionNames())
+      functions.put(funName, new Function(vm.frame(funName)));
+    for (Function f : functions.values())
+      compile(f);
+  }
+
+  /**
+   * Run the program (from main)
+   */
+  public void run() throws MyPLException {
+    if (!functions.containsKey("main"))
+      throw MyPLException.VMError("No 'main' function");
+    current = new Frame(functions.get("main"), null);
+    Frame f = current;
+    while (f != null && f.pc < f.function.code.length) {
+      f.pc = f.function.code[f.pc].run(f);
+      f = current;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void compile(Function function) {
+    List<VMInstr> instrs = function.template.instructions;
+    for (VMInstr instr : instrs)
+      if (instr.opcode() == OpCode.LOAD || instr.opcode() == OpCode.STORE)
+        function.numVars = Math.max(function.numVars, (int)instr.operand() + 1);
+    function.code = new Handler[instrs.size()];
+    for (int pc = 0; pc < instrs.size(); ++pc)
+      function.code[pc] = handler(function.template, pc, instrs.get(pc));
+  }
+
+  // the handler for the instruction at pc of a function
+  private Handler handler(VMFrame fn, int pc, VMInstr instr) {
+    final int next = pc + 1;
+    final Object operand = instr.operand();
+    switch (instr.opcode()) {
+
+    //------------------------------------------------------------
+    // Consts/Vars
+    //------------------------------------------------------------
+
+    case PUSH:
+      return f -> { f.push(operand); return next; };
+    case POP:
+      return f -> { f.sp--; return next; };
+    case LOAD: {
+      int k = (int)operand;
+      return f -> { f.push(f.variables[k]); return next; };
+    }
+    case STORE: {
+      int k = (int)operand;
+      return f -> { f.variables[k] = f.pop(); return next; };
+    }
+
+    //------------------------------------------------------------
+    // Ops
+    //------------------------------------------------------------
+
+    case ADD:
+      return f -> { Object x = f.pop(); f.push(VMOps.add(f.pop(), x, fn, pc)); return next; };
+    case SUB:
+      return f -> { Object x = f.pop(); f.push(VMOps.sub(f.pop(), x, fn, pc)); return next; };
+    case MUL:
+      return f -> { Object x = f.pop(); f.push(VMOps.mul(f.pop(), x, fn, pc)); return next; };
+    case DIV:
+      return f -> { Object x = f.pop(); f.push(VMOps.div(f.pop(), x, fn, pc)); return next; };
+    case MOD:
+      return f -> { Object x = f.pop(); f.push(VMOps.mod(f.pop(), x, fn, pc)); return next; };
+    case NEG:
+      return f -> { f.push(VMOps.neg(f.pop(), fn, pc)); return next; };
+    case AND:
+      return f -> { Object x = f.pop(); f.push(VMOps.and(f.pop(), x, fn, pc)); return next; };
+    case OR:
+      return f -> { Object x = f.pop(); f.push(VMOps.or(f.pop(), x, fn, pc)); return next; };
+    case NOT:
+      return f -> { f.push(VMOps.not(f.pop(), fn, pc)); return next; };
+    case CMPLT:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmplt(f.pop(), x, fn, pc)); return next; };
+    case CMPLE:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmple(f.pop(), x, fn, pc)); return next; };
+    case CMPGT:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmpgt(f.pop(), x, fn, pc)); return next; };
+    case CMPGE:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmpge(f.pop(), x, fn, pc)); return next; };
+    case CMPEQ:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmpeq(f.pop(), x)); return next; };
+    case CMPNE:
+      return f -> { Object x = f.pop(); f.push(VMOps.cmpne(f.pop(), x)); return next; };
+
+    //------------------------------------------------------------
+    // Jumps
+    //------------------------------------------------------------
+
+    case JMP: case FORK: {
+      // (PCALLs always take the sequential version)
+      int target = (int)operand;
+      return f -> target;
+    }
+    case JMPF: {
+      int target = (int)operand;
+      return f -> VMOps.isTrue(f.pop()) ? next : target;
+    }
+    case SWITCH: {
+      SwitchTable table = (SwitchTable)operand;
+      return f -> table.target(f.pop());
+    }
+
+    //------------------------------------------------------------
+    // Functions
+    //------------------------------------------------------------
+
+    case CALL: {
+      Function callee = functions.get(operand.toString());
+      return f -> {
+        call(f, callee);
+        return next;
+      };
+    }
+    case PCALL:
+      // never reached: the FORK before it always jumps
+      return f -> { throw VMOps.error("PCALL without FORK", fn, pc); };
+    case VRET:
+      return f -> {
+        Object x = f.pop();
+        current = f.caller;
+        if (current != null)
+          current.push(x);
+        return -1;
+      };
+
+    //------------------------------------------------------------
+    // Built-ins
+    //------------------------------------------------------------
+
+    case WRITE:
+      return f -> { VMOps.write(f.pop()); return next; };
+    case READ:
+      return f -> { f.push(VMOps.read()); return next; };
+    case LEN:
+      return f -> { f.push(VMOps.len(f.pop())); return next; };
+    case GETCHR:
+      return f -> { Object x = f.pop(); f.push(VMOps.getchr(f.pop(), x, fn, pc)); return next; };
+    case TOINT:
+      return f -> { f.push(VMOps.toint(f.pop(), fn, pc)); return next; };
+    case TODBL:
+      return f -> { f.push(VMOps.todbl(f.pop(), fn, pc)); return next; };
+    case TOSTR:
+      return f -> { f.push(VMOps.tostr(f.pop())); return next; };
+
+    //------------------------------------------------------------
+    // Heap related
+    //------------------------------------------------------------
+
+    case ALLOC: {
+      List<String> fields = VMInstr.names(operand);
+      return f -> { f.push(vm.alloc(fields, fn, pc)); return next; };
+    }
+    case FREE:
+      return f -> { vm.free(f.pop(), fn, pc); return next; };
+    case SETFLD: {
+      String field = operand.toString();
+      return f -> { Object val = f.pop(); vm.setField(f.pop(), val, field); return next; };
+    }
+    case GETFLD: {
+      String field = operand.toString();
+      return f -> { f.push(vm.getField(f.pop(), field, fn, pc)); return next; };
+    }
+
+    //------------------------------------------------------------
+    // Special instructions
+    //------------------------------------------------------------
+
+    case DUP:
+      return f -> { Object x = f.pop(); f.push(x); f.push(x); return next; };
+    case SWAP:
+      return f -> { Object x = f.pop(); Object y = f.pop(); f.push(x); f.push(y); return next; };
+    default:
+      // NOP
+      return f -> next;
+    }
+  }
+
+  // start a call: move the arguments to the callee's stack (in the
+  // same order as the VM) and make it the current frame
+  private void call(Frame caller, Function callee) {
+    Frame f = new Frame(callee, caller);
+    int n = callee.template.argCount();
+    if (f.stack.length < n)
+      f.stack = new Object[n];
+    for (int i = 0; i < n; ++i)
+      f.stack[i] = caller.pop();
+    f.sp = n;
+    current = f;
+  }
+
+}
@@ -28,11 +28,87 @@ public class CodeGenerator implements Visitor {
   // to keep track of the typedecl objects for initialization
   Map<String,TypeDecl> typeDecls = new HashMap<>();
 
+  // minimum number of "x == c" tests in an if-elif chain before it is
+  // compiled to a SWITCH instead of a series of JMPFs
+  private static final int MIN_SWITCH_CASES = 3;
+
+  // unroll factor for for loops with constant bounds: loops with at
+  // most this many iterations are fully unrolled, longer ones are
+  // unrolled this many times per loop test (1 turns unrolling off)
+  private int unrollFactor = 4;
+
+  // loop variables of fully unrolled loops and their current values
+  private Map<String,Integer> constVars = new HashMap<>();
+
+  // true if calls to pure functions on both sides of an operator may
+  // run in parallel (as a PCALL)
+  private boolean parallelCalls = false;
+
+  // the program's call graph and the functions left out because they
+  // can't be reached from main
+  private CallGraph callGraph = null;
+  private List<String> removedFunctions = new ArrayList<>();
+
+  // the pure functions of the program and their declarations, used
+  // to evaluate calls with constant arguments at compile time
+  private PurityAnalysis purity = null;
+  private Map<String,FunDecl> funDecls = new HashMap<>();
+
+  // a VM holding just the pure functions (created on first use)
+  private VM sandbox = null;
+
+  // max instructions to run per compile-time call (0 turns it off)
+  private long evalStepLimit = 1000000;
+
+  // true if the VM measures coverage (see the constructor)
+  private boolean covering = false;
+
+  // results of calls evaluated at compile time (keyed by the function
+  // name followed by the argument values)
+  private Map<List<Object>,Object> evaluatedCalls = new HashMap<>();
+  private static final Object NOT_CONSTANT = new Object();
+
+  // the source position of the next instructions emitted
+  private int currLine = 0;
+  private int currColumn = 0;
+
 
   //----------------------------------------------------------------------
   // HELPER FUNCTIONS
   //----------------------------------------------------------------------
   
+  // adds an instruction to the current frame (at the current source
+  // position)
+  private void emit(VMInstr instr) {
+    currFrame.lines.add(currFrame.instructions.size(), currLine, currColumn);
+    currFrame.instructions.add(instr);
+  }
+
+  // sets the source position of the next instructions emitted
+  private void at(Token token) {
+    currLine = token.line();
+    currColumn = token.column();
+  }
+
+  // the token an expression's source position is taken from (its
+  // operator, or else the first token of its first term)
+  static Token token(Expr expr) {
+    if (expr.op != null)
+      return expr.op;
+    if (expr.first instanceof ComplexTerm)
+      return token(((ComplexTerm)expr.first).expr);
+    RValue rvalue = ((SimpleTerm)expr.first).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue)rvalue).value;
+    else if (rvalue instanceof IDRValue)
+      return ((IDRValue)rvalue).path.get(0);
+    else if (rvalue instanceof CallExpr)
+      return ((CallExpr)rvalue).funName;
+    else if (rvalue instanceof NewRValue)
+      return ((NewRValue)rvalue).typeName;
+    return token(((NegatedRValue)rvalue).expr);
+  }
+
   // helper function to clean up un-needed NOP instructions
   private void fixNoOp() {
     int nextIndex = currFrame.instructions.size();
@@ -51,11 +127,263 @@ public class CodeGenerator implements Visitor {
     if (s instanceof CallExpr) {
       VMInstr instr = VMInstr.POP();
       instr.addComment("clean up call return value");
-      currFrame.instructions.add(instr);
+      emit(instr);
     }
 
   }
+
+  // visits a block of statements, popping the (unused) values of call
+  // statements so the operand stack is the same height at the end of
+  // each statement (including inside loops and branches)
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts) {
+      stmt.accept(this);
+      fixCallStmt(stmt);
+    }
+  }
   
+  // helper function to convert a literal value token to its VM value
+  private Object literal(Token value) {
+    if (value.type() == TokenType.INT_VAL)
+      return Integer.parseInt(value.lexeme());
+    else if (value.type() == TokenType.DOUBLE_VAL)
+      return Double.parseDouble(value.lexeme());
+    else if (value.type() == TokenType.BOOL_VAL)
+      return value.lexeme().equals("true");
+    else if (value.type() == TokenType.CHAR_VAL || value.type() == TokenType.STRING_VAL) {
+      String s = value.lexeme();
+      s = s.replace("\\n", "\n");
+      s = s.replace("\\t", "\t");
+      s = s.replace("\\r", "\r");
+      s = s.replace("\\\\", "\\");
+      return s;
+    }
+    return VM.NIL_OBJ;
+  }
+
+  // helper function that returns the value of an int expression
+  // built from int literals, unrolled loop variables, neg, and +, -,
+  // *, /, % (null if the expression isn't a constant int)
+  private Integer intConstant(Expr expr) {
+    if (expr == null || expr.logicallyNegated)
+      return null;
+    Integer first = null;
+    if (expr.first instanceof ComplexTerm)
+      first = intConstant(((ComplexTerm)expr.first).expr);
+    else {
+      RValue rvalue = ((SimpleTerm)expr.first).rvalue;
+      if (rvalue instanceof SimpleRValue && ((SimpleRValue)rvalue).value.type() == TokenType.INT_VAL)
+        first = (Integer)literal(((SimpleRValue)rvalue).value);
+      else if (rvalue instanceof IDRValue && ((IDRValue)rvalue).path.size() == 1)
+        first = constVars.get(((IDRValue)rvalue).path.get(0).lexeme());
+      else if (rvalue instanceof NegatedRValue) {
+        Integer val = intConstant(((NegatedRValue)rvalue).expr);
+        if (val != null)
+          first = -1 * val;
+      }
+    }
+    if (first == null || expr.op == null)
+      return first;
+    Integer rest = intConstant(expr.rest);
+    if (rest == null)
+      return null;
+    TokenType op = expr.op.type();
+    if (op == TokenType.PLUS)
+      return first + rest;
+    else if (op == TokenType.MINUS)
+      return first - rest;
+    else if (op == TokenType.MULTIPLY)
+      return first * rest;
+    else if (op == TokenType.DIVIDE && rest != 0)
+      return first / rest;
+    else if (op == TokenType.MODULO && rest != 0)
+      return first % rest;
+    return null;
+  }
+
+  // helper function that returns the value of a constant expression
+  // (an int constant or a single literal value), or null
+  private Object constant(Expr expr) {
+    Integer val = intConstant(expr);
+    if (val != null)
+      return val;
+    while (expr.op == null && !expr.logicallyNegated && expr.first instanceof ComplexTerm)
+      expr = ((ComplexTerm)expr.first).expr;
+    if (expr.op == null && !expr.logicallyNegated && simpleRValue(expr.first) instanceof SimpleRValue)
+      return literal(((SimpleRValue)simpleRValue(expr.first)).value);
+    return null;
+  }
+
+  // helper function that runs a call to a pure function with constant
+  // arguments in the sandbox VM and returns the result, or null if
+  // the call can't be evaluated now (it is then left for run time)
+  private Object evaluateCall(CallExpr node) throws MyPLException {
+    String funName = node.funName.lexeme();
+    if (evalStepLimit == 0 || purity == null || !purity.isPure(funName))
+      return null;
+    List<Object> key = new ArrayList<>();
+    key.add(funName);
+    for (Expr arg : node.args) {
+      Object val = constant(arg);
+      if (val == null)
+        return null;
+      key.add(val);
+    }
+    if (!evaluatedCalls.containsKey(key)) {
+      Object result = null;
+      try {
+        result = sandbox().evaluate(funName, key.subList(1, key.size()), evalStepLimit);
+      } catch (MyPLException | RuntimeException e) {
+        // runtime errors and calls that run too long happen at run time
+      }
+      evaluatedCalls.put(key, result == null ? NOT_CONSTANT : result);
+    }
+    Object result = evaluatedCalls.get(key);
+    return result == NOT_CONSTANT ? null : result;
+  }
+
+  // helper function that returns the call in the given term if it
+  // can run in parallel with another call: a call to a pure function
+  // whose arguments contain no calls (or null)
+  private CallExpr parallelCall(ExprTerm term) {
+    RValue rvalue = simpleRValue(term);
+    if (!(rvalue instanceof CallExpr) || !purity.isPure(((CallExpr)rvalue).funName.lexeme()))
+      return null;
+    CallExpr call = (CallExpr)rvalue;
+    boolean allConstant = true;
+    for (Expr arg : call.args) {
+      if (containsCall(arg))
+        return null;
+      allConstant = allConstant && constant(arg) != null;
+    }
+    // leave calls that may be evaluated at compile time alone
+    if (allConstant && evalStepLimit > 0)
+      return null;
+    return call;
+  }
+
+  // helper function to check if an expression contains a call (or
+  // creates an object)
+  private boolean containsCall(Expr expr) {
+    if (expr == null)
+      return false;
+    if (expr.first instanceof ComplexTerm && containsCall(((ComplexTerm)expr.first).expr))
+      return true;
+    RValue rvalue = simpleRValue(expr.first);
+    if (rvalue instanceof CallExpr || rvalue instanceof NewRValue)
+      return true;
+    if (rvalue instanceof NegatedRValue && containsCall(((NegatedRValue)rvalue).expr))
+      return true;
+    return containsCall(expr.rest);
+  }
+
+  // helper function to create the VM used for compile-time calls
+  private VM sandbox() throws MyPLException {
+    if (sandbox == null) {
+      sandbox = new VM();
+      CodeGenerator genVisitor = new CodeGenerator(typeInfo, sandbox);
+      genVisitor.setEvalStepLimit(0);
+      for (FunDecl fdecl : funDecls.values())
+        if (purity.isPure(fdecl.funName.lexeme()))
+          fdecl.accept(genVisitor);
+    }
+    return sandbox;
+  }
+
+  // helper function to check if a list of statements (or any nested
+  // statements) assigns to or redeclares the given variable
+  private boolean assignsVar(List<Stmt> stmts, String varName) {
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof AssignStmt) {
+        AssignStmt assign = (AssignStmt)stmt;
+        if (assign.lvalue.size() == 1 && assign.lvalue.get(0).lexeme().equals(varName))
+          return true;
+      }
+      else if (stmt instanceof VarDeclStmt) {
+        if (((VarDeclStmt)stmt).varName.lexeme().equals(varName))
+          return true;
+      }
+      else if (stmt instanceof CondStmt) {
+        CondStmt cond = (CondStmt)stmt;
+        if (assignsVar(cond.ifPart.stmts, varName) || assignsVar(cond.elseStmts, varName))
+          return true;
+        for (BasicIf elif : cond.elifs)
+          if (assignsVar(elif.stmts, varName))
+            return true;
+      }
+      else if (stmt instanceof WhileStmt) {
+        if (assignsVar(((WhileStmt)stmt).stmts, varName))
+          return true;
+      }
+      else if (stmt instanceof ForStmt) {
+        ForStmt loop = (ForStmt)stmt;
+        if (loop.varName.lexeme().equals(varName) || assignsVar(loop.stmts, varName))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  // helper function that returns {variable name, constant value} if
+  // the condition is a test of the form "x == c" or "c == x", where x
+  // is a variable and c is an int, char, or string literal (else null)
+  private Object[] switchCase(Expr cond) {
+    // strip redundant parentheses
+    while (cond.op == null && !cond.logicallyNegated && cond.first instanceof ComplexTerm)
+      cond = ((ComplexTerm)cond.first).expr;
+    if (cond.logicallyNegated || cond.op == null || cond.op.type() != TokenType.EQUAL)
+      return null;
+    if (cond.rest.op != null || cond.rest.logicallyNegated)
+      return null;
+    RValue lhs = simpleRValue(cond.first);
+    RValue rhs = simpleRValue(cond.rest.first);
+    if (rhs instanceof IDRValue) {
+      RValue tmp = lhs;
+      lhs = rhs;
+      rhs = tmp;
+    }
+    if (!(lhs instanceof IDRValue) || !(rhs instanceof SimpleRValue))
+      return null;
+    IDRValue var = (IDRValue)lhs;
+    Token value = ((SimpleRValue)rhs).value;
+    String varName = var.path.get(0).lexeme();
+    if (var.path.size() != 1 || !varMap.containsKey(varName) || constVars.containsKey(varName))
+      return null;
+    if (value.type() != TokenType.INT_VAL && value.type() != TokenType.CHAR_VAL &&
+        value.type() != TokenType.STRING_VAL)
+      return null;
+    return new Object[] {varName, literal(value)};
+  }
+
+  // helper function to get the rvalue of a simple term (or null)
+  private RValue simpleRValue(ExprTerm term) {
+    if (term instanceof SimpleTerm)
+      return ((SimpleTerm)term).rvalue;
+    return null;
+  }
+
+  // helper function that returns the case values of an if-elif chain
+  // that can be compiled to a SWITCH on a single variable (or null)
+  private List<Object> switchCases(CondStmt node) {
+    if (covering)
+      return null;
+    List<BasicIf> parts = new ArrayList<>();
+    parts.add(node.ifPart);
+    parts.addAll(node.elifs);
+    if (parts.size() < MIN_SWITCH_CASES)
+      return null;
+    String varName = null;
+    List<Object> values = new ArrayList<>();
+    for (BasicIf part : parts) {
+      Object[] test = switchCase(part.cond);
+      if (test == null || (varName != null && !varName.equals(test[0])))
+        return null;
+      varName = (String)test[0];
+      values.add(test[1]);
+    }
+    return values;
+  }
+
   //----------------------------------------------------------------------  
   // Constructor
   //----------------------------------------------------------------------
@@ -63,23 +391,107 @@ public class CodeGenerator implements Visitor {
   public CodeGenerator(TypeInfo typeInfo, VM vm) {
     this.typeInfo = typeInfo;
     this.vm = vm;
+    // (coverage measures the calls the program makes when it runs, so
+    // none are evaluated at compile time, every function is generated
+    // so those never called are reported as missed, and if-elif
+    // chains keep a JMPF per branch)
+    covering = vm.coverage();
+    if (covering)
+      evalStepLimit = 0;
   }
 
-  
-  //----------------------------------------------------------------------
-  // VISITOR FUNCTIONS
-  //----------------------------------------------------------------------
-  
-  public void visit(Program node) throws MyPLException {
+  /**
+   * Set the unroll factor for for loops with constant bounds. Loops
+   * with at most factor iterations are fully unrolled and longer
+   * loops run factor copies of the body per loop test.
+   * @param factor the unroll factor (1 to turn off unrolling)
+   */
+  public void setUnrollFactor(int factor) {
+    unrollFactor = Math.max(1, factor);
+  }
+
+  /**
+   * Turn on/off parallel calls. When on, an operator applied to two
+   * calls of pure functions, like fib(x - 2) + fib(x - 1), generates
+   * a PCALL that lets the VM run both calls at the same time.
+   * @param parallel true to generate PCALLs (by default false)
+   */
+  public void setParallelCalls(boolean parallel) {
+    parallelCalls = parallel;
+  }
+
+  // the call graph of the last program visited
+  public CallGraph callGraph() {
+    return callGraph;
+  }
+
+  // the functions of the last program visited that had no code
+  // generated because main never calls them
+  public List<String> removedFunctions() {
+    return removedFunctions;
+  }
 
+  /**
+   * Set the maximum number of instructions a call to a pure function
+   * with constant arguments may run when it is evaluated at compile
+   * time. Calls that run longer are left for run time.
+   * @param maxSteps the instruction limit (0 turns off compile-time
+   *        evaluation)
+   */
+  public void setEvalStepLimit(long maxSteps) {
+    evalStepLimit = Math.max(0, maxSteps);
+  }
+
+  /**
+   * Generate code for one function of a program and the functions it
+   * calls, skipping those that already have code in the VM (e.g., to
+   * compile functions as they are needed).
+   * @param node the (checked) program
+   * @param funName the function to generate
+   */
+  public void generate(Program node, String funName) throws MyPLException {
+    if (callGraph == null)
+      prepare(node);
+    for (String name : callGraph.reachableFrom(funName))
+      if (vm.frame(name) == null && funDecls.containsKey(name))
+        funDecls.get(name).accept(this);
+  }
+
+  // collects what code generation needs to know about the whole
+  // program: its types, call graph, pure functions, and functions
+  private void prepare(Program node) throws MyPLException {
     // store UDTs for later
     for (TypeDecl tdecl : node.tdecls) {
       // add a mapping from type name to the TypeDecl
       typeDecls.put(tdecl.typeName.lexeme(), tdecl);
     }
-    // only need to translate the function declarations
+    // build the call graph (only functions reachable from main need
+    // to be translated)
+    callGraph = new CallGraph();
+    node.accept(callGraph);
+    // find the pure functions (for compile-time evaluation and
+    // parallel calls)
+    purity = new PurityAnalysis(callGraph);
+    node.accept(purity);
     for (FunDecl fdecl : node.fdecls)
-      fdecl.accept(this);
+      funDecls.put(fdecl.funName.lexeme(), fdecl);
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+  
+  public void visit(Program node) throws MyPLException {
+    prepare(node);
+    Set<String> reachable = callGraph.reachableFrom("main");
+    // only need to translate the function declarations
+    removedFunctions.clear();
+    for (FunDecl fdecl : node.fdecls) {
+      if (covering || reachable.contains(fdecl.funName.lexeme()))
+        fdecl.accept(this);
+      else
+        removedFunctions.add(fdecl.funName.lexeme());
+    }
   }
 
   public void visit(TypeDecl node) throws MyPLException {
@@ -90,6 +502,7 @@ public class CodeGenerator implements Visitor {
     // 1. create a new frame for the function
     currFrame = new VMFrame(node.funName.lexeme(),node.params.size());
     vm.add(currFrame);
+    at(node.funName);
     // 2. create a variable mapping for the frame
     varMap = new HashMap<>();
     currVarIndex = 0;
@@ -97,90 +510,98 @@ public class CodeGenerator implements Visitor {
     // 3. store args
     for(FunParam param:node.params){
       varMap.put(param.paramName.lexeme(), currVarIndex);
-      currFrame.instructions.add(VMInstr.STORE(currVarIndex));
+      emit(VMInstr.STORE(currVarIndex));
       currVarIndex++;
     }
     // 4. visit statement nodes
-    for(Stmt stmt: node.stmts){
-      stmt.accept(this);
-      fixCallStmt(stmt);
-    }
+    visitStmts(node.stmts);
     // 5. check to see if the last statement was a return (if not, add
     //    return nil)
     if(node.stmts == null|| node.stmts.size()==0 || !(node.stmts.get(node.stmts.size()-1) instanceof ReturnStmt)){
-      currFrame.instructions.add(VMInstr.PUSH("nil"));
-      currFrame.instructions.add(VMInstr.VRET());
+      emit(VMInstr.PUSH("nil"));
+      emit(VMInstr.VRET());
     }
 
     fixNoOp();
   } //DONE
   
   public void visit(VarDeclStmt node) throws MyPLException {
+    at(node.varName);
     node.expr.accept(this);
+    at(node.varName);
     varMap.put(node.varName.lexeme(),currVarIndex);
-    currFrame.instructions.add(VMInstr.STORE(currVarIndex));
+    emit(VMInstr.STORE(currVarIndex));
     currVarIndex++;
   } //DONE
   
   public void visit(AssignStmt node) throws MyPLException {
+    at(node.lvalue.get(0));
     node.expr.accept(this);
+    at(node.lvalue.get(0));
     if(node.lvalue.size() == 1) {
-      currFrame.instructions.add(VMInstr.STORE(varMap.get(node.lvalue.get(0).lexeme())));
+      emit(VMInstr.STORE(varMap.get(node.lvalue.get(0).lexeme())));
     }
     else{
-      currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.lvalue.get(0).lexeme())));
+      emit(VMInstr.LOAD(varMap.get(node.lvalue.get(0).lexeme())));
       //currFrame.instructions.add(VMInstr.SWAP());
       for(int i = 1; i < node.lvalue.size()-1; i++){
         //currFrame.instructions.add(VMInstr.SWAP());
-        currFrame.instructions.add(VMInstr.GETFLD(node.lvalue.get(i).lexeme()));
+        emit(VMInstr.GETFLD(node.lvalue.get(i).lexeme()));
         //currFrame.instructions.add(VMInstr.SWAP());
       }
-      currFrame.instructions.add(VMInstr.SWAP());
-      currFrame.instructions.add(VMInstr.SETFLD(node.lvalue.get(node.lvalue.size()-1).lexeme()));
+      emit(VMInstr.SWAP());
+      emit(VMInstr.SETFLD(node.lvalue.get(node.lvalue.size()-1).lexeme()));
     }
 
   } //DONE
   
   public void visit(CondStmt node) throws MyPLException {
 
+    // if-elif chains testing one variable against constants use a
+    // single SWITCH (jump table) instead of a test per branch
+    List<Object> cases = switchCases(node);
+    if (cases != null) {
+      switchStmt(node, cases);
+      return;
+    }
+
     node.ifPart.cond.accept(this);
     int jmpfIndex = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.JMPF(-1));
+    emit(VMInstr.JMPF(-1));
     ArrayList<Integer> jmpToEndIndexes = new ArrayList<>();
 
-    for(Stmt stmt: node.ifPart.stmts){
-      stmt.accept(this);
-    }
+    visitStmts(node.ifPart.stmts);
 
+    // (the jumps and NOPs between the parts belong to the tests, not
+    // to the last statement of a part)
+    at(token(node.ifPart.cond));
     jmpToEndIndexes.add(currFrame.instructions.size());
-    currFrame.instructions.add(VMInstr.JMP(-1)); //jump to end of conditional statements
+    emit(VMInstr.JMP(-1)); //jump to end of conditional statements
 
     currFrame.instructions.set(jmpfIndex,VMInstr.JMPF(currFrame.instructions.size()));
-    currFrame.instructions.add(VMInstr.NOP());
+    emit(VMInstr.NOP());
 
     for(BasicIf basicIf: node.elifs){
       basicIf.cond.accept(this);
 
       int elifFalseIndex = currFrame.instructions.size();
-      currFrame.instructions.add(VMInstr.JMPF(-1));
+      emit(VMInstr.JMPF(-1));
 
-      for(Stmt stmt: basicIf.stmts){
-        stmt.accept(this);
-      }
+      visitStmts(basicIf.stmts);
 
+      at(token(basicIf.cond));
       jmpToEndIndexes.add(currFrame.instructions.size());
-      currFrame.instructions.add(VMInstr.JMP(-1));
+      emit(VMInstr.JMP(-1));
 
       currFrame.instructions.set(elifFalseIndex,VMInstr.JMPF(currFrame.instructions.size()));
-      currFrame.instructions.add(VMInstr.NOP());
+      emit(VMInstr.NOP());
     }
 
-    for(Stmt stmt: node.elseStmts){
-      stmt.accept(this);
-    }
+    visitStmts(node.elseStmts);
 
+    at(token(node.ifPart.cond));
     int bottom = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.NOP());
+    emit(VMInstr.NOP());
 
     for(Integer index: jmpToEndIndexes){
       currFrame.instructions.set(index,VMInstr.JMP(bottom));
@@ -188,235 +609,362 @@ public class CodeGenerator implements Visitor {
 
   } //DONE
 
+  // generates an if-elif chain as: LOAD x, SWITCH, then each branch
+  // body followed by a jump to the end (with the else part last)
+  private void switchStmt(CondStmt node, List<Object> cases) throws MyPLException {
+    List<BasicIf> parts = new ArrayList<>();
+    parts.add(node.ifPart);
+    parts.addAll(node.elifs);
+
+    String varName = (String)switchCase(node.ifPart.cond)[0];
+    at(token(node.ifPart.cond));
+    emit(VMInstr.LOAD(varMap.get(varName)));
+    SwitchTable table = new SwitchTable();
+    emit(VMInstr.SWITCH(table));
+    ArrayList<Integer> jmpToEndIndexes = new ArrayList<>();
+
+    for (int i = 0; i < parts.size(); ++i) {
+      table.add(cases.get(i), currFrame.instructions.size());
+      visitStmts(parts.get(i).stmts);
+      at(token(node.ifPart.cond));
+      jmpToEndIndexes.add(currFrame.instructions.size());
+      emit(VMInstr.JMP(-1));
+    }
+
+    table.setDefault(currFrame.instructions.size());
+    visitStmts(node.elseStmts);
+
+    at(token(node.ifPart.cond));
+    int bottom = currFrame.instructions.size();
+    emit(VMInstr.NOP());
+    for (Integer index : jmpToEndIndexes)
+      currFrame.instructions.set(index, VMInstr.JMP(bottom));
+    table.build();
+  }
+
   public void visit(WhileStmt node) throws MyPLException {
     int top = currFrame.instructions.size();
     node.cond.accept(this);
     int jmpfIndex = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.JMPF(-1));
-    for(Stmt stmt: node.stmts){
-      stmt.accept(this);
-    }
-    currFrame.instructions.add(VMInstr.JMP(top));
-    currFrame.instructions.add(VMInstr.NOP());
+    emit(VMInstr.JMPF(-1));
+    visitStmts(node.stmts);
+    at(token(node.cond));
+    emit(VMInstr.JMP(top));
+    emit(VMInstr.NOP());
     currFrame.instructions.set(jmpfIndex,VMInstr.JMPF(currFrame.instructions.size()));
   } //DONE
 
   public void visit(ForStmt node) throws MyPLException {
 
+    // try to unroll loops with constant bounds
+    Integer start = intConstant(node.start);
+    Integer end = intConstant(node.end);
+    String varName = node.varName.lexeme();
+    at(node.varName);
+    if (unrollFactor > 1 && start != null && end != null && !assignsVar(node.stmts, varName)) {
+      unrollFor(node, start, end);
+      return;
+    }
+
     //initialize the for loop
     node.start.accept(this);
-    currFrame.instructions.add(VMInstr.STORE(currVarIndex));
+    emit(VMInstr.STORE(currVarIndex));
     varMap.put(node.varName.lexeme(), currVarIndex);
     currVarIndex++;
 
     //loop
     //check
     int top = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
+    emit(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
     node.end.accept(this);
     if(node.upto){
-      currFrame.instructions.add(VMInstr.CMPLE());
+      emit(VMInstr.CMPLE());
     }
     else{
-      currFrame.instructions.add(VMInstr.CMPGE());
+      emit(VMInstr.CMPGE());
     }
 
     int jmpfIndex = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.JMPF(-1));
+    emit(VMInstr.JMPF(-1));
 
-    for(Stmt stmt: node.stmts){
-      stmt.accept(this);
-    }
+    visitStmts(node.stmts);
     //increment
-    currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
-    currFrame.instructions.add(VMInstr.PUSH(1));
+    at(node.varName);
+    emit(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
+    emit(VMInstr.PUSH(1));
     if(node.upto){
-      currFrame.instructions.add(VMInstr.ADD());
+      emit(VMInstr.ADD());
     }
     else{
-      currFrame.instructions.add(VMInstr.SUB());
+      emit(VMInstr.SUB());
     }
-    currFrame.instructions.add(VMInstr.STORE(varMap.get(node.varName.lexeme())));
-    currFrame.instructions.add(VMInstr.JMP(top));
+    emit(VMInstr.STORE(varMap.get(node.varName.lexeme())));
+    emit(VMInstr.JMP(top));
     //end of loop
-    currFrame.instructions.add(VMInstr.NOP());
+    emit(VMInstr.NOP());
     currFrame.instructions.set(jmpfIndex,VMInstr.JMPF(currFrame.instructions.size()));
     //varMap.remove(node.varName.lexeme());
   }
   
+  // generates a for loop with constant bounds either as straight-line
+  // code (with the loop variable replaced by its value) or as a loop
+  // that runs unrollFactor copies of the body per loop test followed
+  // by the left-over iterations as straight-line code
+  private void unrollFor(ForStmt node, int start, int end) throws MyPLException {
+    String varName = node.varName.lexeme();
+    int step = node.upto ? 1 : -1;
+    long trips = Math.max(0, ((long)end - start) * step + 1);
+    long blocks = trips <= unrollFactor ? 0 : trips / unrollFactor;
+    int next = start;
+    at(node.varName);
+
+    if (blocks > 0) {
+      // i = start; while i <= last block start (or >= for downto)
+      emit(VMInstr.PUSH(start));
+      emit(VMInstr.STORE(currVarIndex));
+      varMap.put(varName, currVarIndex);
+      currVarIndex++;
+      int top = currFrame.instructions.size();
+      emit(VMInstr.LOAD(varMap.get(varName)));
+      emit(VMInstr.PUSH(start + (int)(blocks - 1) * unrollFactor * step));
+      emit(node.upto ? VMInstr.CMPLE() : VMInstr.CMPGE());
+      int jmpfIndex = currFrame.instructions.size();
+      emit(VMInstr.JMPF(-1));
+      Integer outer = constVars.remove(varName);
+      for (int i = 0; i < unrollFactor; ++i) {
+        visitStmts(node.stmts);
+        at(node.varName);
+        emit(VMInstr.LOAD(varMap.get(varName)));
+        emit(VMInstr.PUSH(1));
+        emit(node.upto ? VMInstr.ADD() : VMInstr.SUB());
+        emit(VMInstr.STORE(varMap.get(varName)));
+      }
+      if (outer != null)
+        constVars.put(varName, outer);
+      emit(VMInstr.JMP(top));
+      emit(VMInstr.NOP());
+      currFrame.instructions.set(jmpfIndex, VMInstr.JMPF(currFrame.instructions.size()));
+      next = start + (int)(blocks * unrollFactor) * step;
+    }
+
+    // remaining iterations with the loop variable as a constant
+    Integer outer = constVars.get(varName);
+    for (long i = blocks * unrollFactor; i < trips; ++i) {
+      constVars.put(varName, next);
+      visitStmts(node.stmts);
+      next += step;
+    }
+    if (outer != null)
+      constVars.put(varName, outer);
+    else
+      constVars.remove(varName);
+  }
+
   public void visit(ReturnStmt node) throws MyPLException {
     if(node.expr != null){
       node.expr.accept(this);
     }
     else{
-      currFrame.instructions.add(VMInstr.PUSH("nil"));
+      emit(VMInstr.PUSH("nil"));
     }
-    currFrame.instructions.add(VMInstr.VRET());
+    emit(VMInstr.VRET());
   } //DONE
   
   public void visit(DeleteStmt node) throws MyPLException {
-    currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
-    currFrame.instructions.add(VMInstr.FREE());
+    at(node.varName);
+    emit(VMInstr.LOAD(varMap.get(node.varName.lexeme())));
+    emit(VMInstr.FREE());
   } //DONE
 
   public void visit(CallExpr node) throws MyPLException {
+    at(node.funName);
+    // pure function calls with constant args are evaluated now
+    Object value = evaluateCall(node);
+    if (value != null) {
+      VMInstr instr = VMInstr.PUSH(value);
+      instr.addComment("result of " + node.funName.lexeme() + "()");
+      emit(instr);
+      return;
+    }
     // push args (in order)
     for (Expr arg : node.args)
       arg.accept(this);
+    at(node.funName);
     // built-in functions:
     if (node.funName.lexeme().equals("print")) {
-      currFrame.instructions.add(VMInstr.WRITE());
-      currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
+      emit(VMInstr.WRITE());
+      emit(VMInstr.PUSH(VM.NIL_OBJ));
     }
     else if (node.funName.lexeme().equals("read")){
-      currFrame.instructions.add(VMInstr.READ());
+      emit(VMInstr.READ());
     }
     else if(node.funName.lexeme().equals("length")){
-      currFrame.instructions.add(VMInstr.LEN());
+      emit(VMInstr.LEN());
     }
     else if(node.funName.lexeme().equals("length")){
-      currFrame.instructions.add(VMInstr.LEN());
+      emit(VMInstr.LEN());
     }
     else if(node.funName.lexeme().equals("get")){
-      currFrame.instructions.add(VMInstr.GETCHR());
+      emit(VMInstr.GETCHR());
     }
     else if(node.funName.lexeme().equals("stoi") || node.funName.lexeme().equals("dtoi")){
-      currFrame.instructions.add(VMInstr.TOINT());
+      emit(VMInstr.TOINT());
     }
     else if(node.funName.lexeme().equals("stod") || node.funName.lexeme().equals("itod")){
-      currFrame.instructions.add(VMInstr.TODBL());
+      emit(VMInstr.TODBL());
     }
     else if(node.funName.lexeme().equals("itos") || node.funName.lexeme().equals("dtos")){
-      currFrame.instructions.add(VMInstr.TOSTR());
+      emit(VMInstr.TOSTR());
     }
     // user-defined functions
     else
-      currFrame.instructions.add(VMInstr.CALL(node.funName.lexeme()));
+      emit(VMInstr.CALL(node.funName.lexeme()));
   } //DONE
   
   public void visit(SimpleRValue node) throws MyPLException {
-    if (node.value.type() == TokenType.INT_VAL) {
-      int val = Integer.parseInt(node.value.lexeme());
-      currFrame.instructions.add(VMInstr.PUSH(val));
-    }
-    else if (node.value.type() == TokenType.DOUBLE_VAL) {
-      double val = Double.parseDouble(node.value.lexeme());
-      currFrame.instructions.add(VMInstr.PUSH(val));
-    }
-    else if (node.value.type() == TokenType.BOOL_VAL) {
-      if (node.value.lexeme().equals("true"))
-        currFrame.instructions.add(VMInstr.PUSH(true));
-      else
-        currFrame.instructions.add(VMInstr.PUSH(false));        
-    }
-    else if (node.value.type() == TokenType.CHAR_VAL) {
-      String s = node.value.lexeme();
-      s = s.replace("\\n", "\n");
-      s = s.replace("\\t", "\t");
-      s = s.replace("\\r", "\r");
-      s = s.replace("\\\\", "\\");
-      currFrame.instructions.add(VMInstr.PUSH(s));
-    }
-    else if (node.value.type() == TokenType.STRING_VAL) {
-      String s = node.value.lexeme();
-      s = s.replace("\\n", "\n");
-      s = s.replace("\\t", "\t");
-      s = s.replace("\\r", "\r");
-      s = s.replace("\\\\", "\\");
-      currFrame.instructions.add(VMInstr.PUSH(s));
-    }
-    else if (node.value.type() == TokenType.NIL) {
-      currFrame.instructions.add(VMInstr.PUSH(VM.NIL_OBJ));
-    }
+    at(node.value);
+    emit(VMInstr.PUSH(literal(node.value)));
   } //DONE
   
   public void visit(NewRValue node) throws MyPLException {
     List<String> components = new ArrayList<>();
     components.addAll(typeInfo.components(node.typeName.lexeme()));
-    currFrame.instructions.add(VMInstr.ALLOC(components));
+    at(node.typeName);
+    // (the comment names the type, e.g., for heap profiles)
+    VMInstr alloc = VMInstr.ALLOC(components);
+    alloc.addComment(node.typeName.lexeme());
+    emit(alloc);
     int i = 0;
     for(String component: components){
-      currFrame.instructions.add(VMInstr.DUP());
+      emit(VMInstr.DUP());
       typeDecls.get(node.typeName.lexeme()).vdecls.get(i).expr.accept(this);
+      at(node.typeName);
       //currFrame.instructions.add(VMInstr.PUSH(typeDecls.get(node.typeName.lexeme()).vdecls.get(i).expr));
-      currFrame.instructions.add(VMInstr.SETFLD(component));
+      emit(VMInstr.SETFLD(component));
       i++;
     }
   } //DONE
   
   public void visit(IDRValue node) throws MyPLException {
-    if (node.path.size() == 1) {
-      currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
+    at(node.path.get(0));
+    if (node.path.size() == 1 && constVars.containsKey(node.path.get(0).lexeme())) {
+      emit(VMInstr.PUSH(constVars.get(node.path.get(0).lexeme())));
+    }
+    else if (node.path.size() == 1) {
+      emit(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
     }
     else{
-      currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
+      emit(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
       for(int i = 1; i<node.path.size(); i++){
-        currFrame.instructions.add(VMInstr.GETFLD(node.path.get(i).lexeme()));
+        at(node.path.get(i));
+        emit(VMInstr.GETFLD(node.path.get(i).lexeme()));
       }
     }
 
   } //DONE
       
   public void visit(NegatedRValue node) throws MyPLException {
+    Integer val = intConstant(node.expr);
+    if (val != null) {
+      at(token(node.expr));
+      emit(VMInstr.PUSH(-1 * val));
+      return;
+    }
     node.expr.accept(this);
-    currFrame.instructions.add(VMInstr.NEG());
+    emit(VMInstr.NEG());
   } //DONE
 
   public void visit(Expr node) throws MyPLException {
-    node.first.accept(this);
-    if(node.rest != null) {
+    // fold constant int operations
+    Integer val = node.op != null ? intConstant(node) : null;
+    if (val != null) {
+      at(token(node));
+      emit(VMInstr.PUSH(val));
+      return;
+    }
+    // two pure calls as operands can run in parallel
+    CallExpr firstCall = null;
+    CallExpr restCall = null;
+    if (parallelCalls && node.op != null && node.rest.op == null && !node.rest.logicallyNegated) {
+      firstCall = parallelCall(node.first);
+      restCall = parallelCall(node.rest.first);
+    }
+    if (firstCall != null && restCall != null) {
+      // FORK Lseq, args, args, PCALL, JMP Lend, Lseq: (the usual
+      // sequential calls), Lend: (the operator)
+      int forkIndex = currFrame.instructions.size();
+      emit(VMInstr.FORK(-1));
+      for (Expr arg : firstCall.args)
+        arg.accept(this);
+      for (Expr arg : restCall.args)
+        arg.accept(this);
+      at(firstCall.funName);
+      emit(VMInstr.PCALL(List.of(firstCall.funName.lexeme(),
+                                                       restCall.funName.lexeme())));
+      int jmpIndex = currFrame.instructions.size();
+      emit(VMInstr.JMP(-1));
+      currFrame.instructions.set(forkIndex, VMInstr.FORK(currFrame.instructions.size()));
+      node.first.accept(this);
       node.rest.accept(this);
+      currFrame.instructions.set(jmpIndex, VMInstr.JMP(currFrame.instructions.size()));
+    }
+    else {
+      node.first.accept(this);
+      if(node.rest != null) {
+        node.rest.accept(this);
+      }
     }
     if(node.op != null){
+      at(node.op);
       if(node.op.type() == TokenType.PLUS){
-        currFrame.instructions.add(VMInstr.ADD());
+        emit(VMInstr.ADD());
       }
       else if(node.op.type() == TokenType.MINUS){
-        currFrame.instructions.add(VMInstr.SUB());
+        emit(VMInstr.SUB());
       }
       else if(node.op.type() == TokenType.MULTIPLY){
-        currFrame.instructions.add(VMInstr.MUL());
+        emit(VMInstr.MUL());
       }
       else if(node.op.type() == TokenType.DIVIDE){
-        currFrame.instructions.add(VMInstr.DIV());
+        emit(VMInstr.DIV());
       }
       else if(node.op.type() == TokenType.MODULO){
-        currFrame.instructions.add(VMInstr.MOD());
+        emit(VMInstr.MOD());
       }
       else if(node.op.type() == TokenType.AND){
-        currFrame.instructions.add(VMInstr.AND());
+        emit(VMInstr.AND());
       }
       else if(node.op.type() == TokenType.OR){
-        currFrame.instructions.add(VMInstr.OR());
+        emit(VMInstr.OR());
       }
       else if(node.op.type() == TokenType.MINUS){
-        currFrame.instructions.add(VMInstr.SUB());
+        emit(VMInstr.SUB());
       }
       else if(node.op.type() == TokenType.LESS_THAN){
-        currFrame.instructions.add(VMInstr.CMPLT());
+        emit(VMInstr.CMPLT());
       }
       else if(node.op.type() == TokenType.LESS_THAN_EQUAL){
-        currFrame.instructions.add(VMInstr.CMPLE());
+        emit(VMInstr.CMPLE());
       }
       else if(node.op.type() == TokenType.GREATER_THAN){
-        currFrame.instructions.add(VMInstr.CMPGT());
+        emit(VMInstr.CMPGT());
       }
       else if(node.op.type() == TokenType.GREATER_THAN_EQUAL){
-        currFrame.instructions.add(VMInstr.CMPGE());
+        emit(VMInstr.CMPGE());
       }
       else if(node.op.type() == TokenType.EQUAL){
-        currFrame.instructions.add(VMInstr.CMPEQ());
+        emit(VMInstr.CMPEQ());
       }
       else if(node.op.type() == TokenType.NOT_EQUAL){
-        currFrame.instructions.add(VMInstr.CMPNE());
+        emit(VMInstr.CMPNE());
       }
       else if(node.op.type() == TokenType.NEG){
-        currFrame.instructions.add(VMInstr.NEG());
+        emit(VMInstr.NEG());
       }
     }
 
     if(node.logicallyNegated){
-      currFrame.instructions.add(VMInstr.NOT());
+      emit(VMInstr.NOT());
     }
   } //DONE
 
@@ -0,0 +1,36 @@
+/*
+ * File: Coverage.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The instructions of a function that have run, and for each
+ *       JMPF, whether it has jumped and whether it has fallen
+ *       through. The VM sets the bits as it runs (see
+ *       VM.setCoverage), and CoverageReport maps them back to source
+ *       lines. A frame's copies share one Coverage.
+ */
+
+import java.util.BitSet;
+
+
+public class Coverage {
+
+  // the pcs of the instructions run
+  public BitSet executed = new BitSet();
+
+  // the pcs of the JMPFs that have jumped (their condition was false)
+  // and those that have fallen through (it was true)
+  public BitSet jumped = new BitSet();
+  public BitSet fellThrough = new BitSet();
+
+
+  /**
+   * Adds the bits of another run of the same function.
+   * @param other the other function's coverage
+   */
+  public void add(Coverage other) {
+    executed.or(other.executed);
+    jumped.or(other.jumped);
+    fellThrough.or(other.fellThrough);
+  }
+
+}
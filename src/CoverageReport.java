@@ -0,0 +1,151 @@
+/*
+ * File: CoverageReport.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Turns on coverage in the VMs it is given (see VM.setCoverage)
+ *       and, after the run, maps the instructions run back to source
+ *       lines and the JMPF outcomes to branches, written as an LCOV
+ *       tracefile (the format genhtml and most CI coverage tools
+ *       read). Coverage is kept as bits, not counts, so lines,
+ *       branches, and functions are hit or not (counts of 1 or 0).
+ *       While coverage is on, CodeGenerator keeps the functions main
+ *       never calls and a JMPF per if-elif test, so they are measured.
+ */
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+public class CoverageReport {
+
+  private List<VM> vms = new ArrayList<>();
+
+  // the totals of the last report written
+  private int lines = 0;
+  private int linesHit = 0;
+  private int branches = 0;
+  private int branchesHit = 0;
+  private int functions = 0;
+  private int functionsHit = 0;
+
+
+  /**
+   * Adds a VM to measure (call before it runs).
+   * @param vm the VM
+   */
+  public synchronized void add(VM vm) {
+    vm.setCoverage(true);
+    vms.add(vm);
+  }
+
+  /**
+   * Writes the coverage as one LCOV record.
+   * @param out where to write the record
+   * @param sourceFile the program's file name (for the record's SF line)
+   */
+  public synchronized void write(Writer out, String sourceFile) {
+    // (a function's coverage from each VM that ran it, in order of
+    // the functions' first lines)
+    Map<String,VMFrame> frames = new TreeMap<>();
+    Map<String,Coverage> coverage = new TreeMap<>();
+    for (VM vm : vms) {
+      for (String name : vm.functionNames()) {
+        VMFrame frame = vm.frame(name);
+        if (frame.coverage == null)
+          continue;
+        frames.putIfAbsent(name, frame);
+        coverage.computeIfAbsent(name, n -> new Coverage()).add(frame.coverage);
+      }
+    }
+    List<String> names = new ArrayList<>(frames.keySet());
+    names.sort((x, y) -> Integer.compare(frames.get(x).lines.line(0),
+                                         frames.get(y).lines.line(0)));
+
+    PrintWriter lcov = new PrintWriter(out);
+    lcov.println("TN:");
+    lcov.println("SF:" + sourceFile);
+    functions = functionsHit = 0;
+    for (String name : names) {
+      // (a function ran if its first instruction did; FNDA is 1 for
+      // any number of calls)
+      boolean hit = coverage.get(name).executed.get(0);
+      lcov.println("FN:" + frames.get(name).lines.line(0) + "," + name);
+      lcov.println("FNDA:" + (hit ? 1 : 0) + "," + name);
+      ++functions;
+      if (hit)
+        ++functionsHit;
+    }
+    lcov.println("FNF:" + functions);
+    lcov.println("FNH:" + functionsHit);
+
+    // each JMPF is a block of two branches: 0 where its condition was
+    // true (it fell through) and 1 where it was false (it jumped)
+    Map<Integer,Boolean> lineHits = new TreeMap<>();
+    branches = branchesHit = 0;
+    for (String name : names) {
+      VMFrame frame = frames.get(name);
+      Coverage c = coverage.get(name);
+      for (int pc = 0; pc < frame.instructions.size(); ++pc) {
+        int line = frame.lines.line(pc);
+        if (line <= 0)
+          continue;
+        lineHits.merge(line, c.executed.get(pc), Boolean::logicalOr);
+        if (frame.instructions.get(pc).opcode() != OpCode.JMPF)
+          continue;
+        boolean ran = c.executed.get(pc);
+        branch(lcov, line, pc, 0, ran, c.fellThrough.get(pc));
+        branch(lcov, line, pc, 1, ran, c.jumped.get(pc));
+      }
+    }
+    lcov.println("BRF:" + branches);
+    lcov.println("BRH:" + branchesHit);
+
+    lines = linesHit = 0;
+    for (Map.Entry<Integer,Boolean> e : lineHits.entrySet()) {
+      lcov.println("DA:" + e.getKey() + "," + (e.getValue() ? 1 : 0));
+      ++lines;
+      if (e.getValue())
+        ++linesHit;
+    }
+    lcov.println("LF:" + lines);
+    lcov.println("LH:" + linesHit);
+    lcov.println("end_of_record");
+    lcov.flush();
+  }
+
+  /**
+   * Prints the totals of the last record written.
+   * @param out where to print the totals
+   */
+  public synchronized void summary(PrintStream out) {
+    out.printf(Locale.ROOT, "Coverage: lines %d/%d (%.1f%%), branches %d/%d (%.1f%%), " +
+               "functions %d/%d\n", linesHit, lines, percent(linesHit, lines),
+               branchesHit, branches, percent(branchesHit, branches),
+               functionsHit, functions);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // writes a BRDA line (a branch of a JMPF that never ran is "-")
+  private void branch(PrintWriter lcov, int line, int pc, int branch, boolean ran,
+                      boolean taken) {
+    lcov.println("BRDA:" + line + "," + pc + "," + branch + "," +
+                 (!ran ? "-" : taken ? "1" : "0"));
+    ++branches;
+    if (taken)
+      ++branchesHit;
+  }
+
+  private static double percent(int n, int total) {
+    return total == 0 ? 100.0 : 100.0 * n / total;
+  }
+
+}
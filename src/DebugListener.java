@@ -0,0 +1,39 @@
+/*
+ * File: DebugListener.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Prints the state of the VM prior to each instruction (see
+ *       VM.setDebug).
+ */
+
+
+public class DebugListener implements VMListener {
+
+  private VM vm;
+
+  public DebugListener(VM vm) {
+    this.vm = vm;
+  }
+
+  @Override
+  public boolean tracesInstructions() {
+    return true;
+  }
+
+  @Override
+  public void instruction(VMFrame frame, int pc, VMInstr instr) {
+    System.out.println();
+    System.out.println("\t FRAME........: " + frame.functionName());
+    System.out.println("\t PC...........: " + pc);
+    System.out.println("\t INSTRUCTION..: " + instr);
+    System.out.println("\t OPERAND STACK: " + frame.operandStack);
+    System.out.println("\t HEAP ........: " + vm.heap());
+    System.out.println("TEST VARIABLE SIZE: ") ;
+    int i = 0;
+    for(Object vars: frame.variables) {
+      System.out.print(i + ":"+vars.toString() + " ");
+      i++;
+    }
+  }
+
+}
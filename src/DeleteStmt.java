@@ -9,6 +9,9 @@
 public class DeleteStmt implements Stmt {
 
   public Token varName = null;
+
+  // the variable index (cached by the AST interpreter)
+  public int slot = -1;
   
   @Override
   public void accept(Visitor visitor) throws MyPLException {
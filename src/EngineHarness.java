@@ -0,0 +1,158 @@
+/*
+ * File: EngineHarness.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Conformance harness for the execution engines. Runs each
+ *       program on each engine, checks that every engine prints the
+ *       same output (and fails or not) as the first one, and reports
+ *       each engine's run time per program.
+ *
+ *  Usage: java EngineHarness [--engines vm,jit,...] [--input file]
+ *           [--repeat n] [file-or-dir ...]
+ *  (by default all engines, no input, one run, and the programs in
+ *  examples/ and my-example-programs/)
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class EngineHarness {
+
+  // the result of running a program on an engine
+  private static class Result {
+    String output;
+    boolean failed;
+    long nanos;
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> engines = new ArrayList<>(Engines.NAMES);
+    byte[] input = new byte[0];
+    int repeat = 1;
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("--engines") && i + 1 < args.length)
+        engines = Arrays.asList(args[++i].split(","));
+      else if (args[i].equals("--input") && i + 1 < args.length)
+        input = Files.readAllBytes(new File(args[++i]).toPath());
+      else if (args[i].equals("--repeat") && i + 1 < args.length)
+        repeat = Math.max(1, Integer.parseInt(args[++i]));
+      else
+        addPrograms(new File(args[i]), files);
+    }
+    if (files.isEmpty()) {
+      addPrograms(new File("examples"), files);
+      addPrograms(new File("my-example-programs"), files);
+    }
+    for (String engine : engines) {
+      if (Engines.create(engine, false) == null) {
+        System.err.println("ERROR: Unknown engine '" + engine + "'");
+        System.exit(1);
+      }
+    }
+
+    System.out.printf("%-28s", "program");
+    for (String engine : engines)
+      System.out.printf(" %13s", engine);
+    System.out.println();
+    long[] totals = new long[engines.size()];
+    int mismatches = 0;
+    for (File file : files) {
+      String name = file.getName().replace(".mypl", "");
+      System.out.printf("%-28s", name.length() > 28 ? name.substring(0, 28) : name);
+      Result baseline = null;
+      for (int e = 0; e < engines.size(); ++e) {
+        Result result = null;
+        try {
+          for (int i = 0; i < repeat; ++i) {
+            Result r = run(file, engines.get(e), input);
+            if (result == null || r.nanos < result.nanos)
+              result = r;
+          }
+        } catch (MyPLException ex) {
+          // (lexer, parser, and static errors are the same for all)
+          System.out.print(" (not runnable: " + ex.getMessage() + ")");
+          break;
+        }
+        if (baseline == null)
+          baseline = result;
+        boolean same = result.output.equals(baseline.output) && result.failed == baseline.failed;
+        if (!same)
+          ++mismatches;
+        totals[e] += result.nanos;
+        System.out.printf(" %10.1fms%s", result.nanos / 1e6, same ? " " : "!");
+      }
+      System.out.println();
+    }
+    System.out.printf("%-28s", "total");
+    for (long total : totals)
+      System.out.printf(" %10.1fms ", total / 1e6);
+    System.out.println();
+    if (mismatches > 0) {
+      System.out.println(mismatches + " run(s) differ from " + engines.get(0) + " (marked !)");
+      System.exit(1);
+    }
+    System.out.println("all engines agree with " + engines.get(0));
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // adds a program file, or the .mypl files in a directory (in name
+  // order)
+  private static void addPrograms(File file, List<File> files) {
+    if (!file.isDirectory()) {
+      files.add(file);
+      return;
+    }
+    File[] entries = file.listFiles((dir, name) -> name.endsWith(".mypl"));
+    if (entries == null)
+      return;
+    Arrays.sort(entries);
+    files.addAll(Arrays.asList(entries));
+  }
+
+  // checks and runs a program on an engine with the given standard
+  // input, capturing its standard output (runtime errors are part of
+  // the result, other errors are thrown)
+  private static Result run(File file, String engine, byte[] input)
+    throws IOException, MyPLException
+  {
+    Program program = null;
+    TypeInfo typeInfo = new TypeInfo();
+    try (InputStream in = new FileInputStream(file)) {
+      program = new ASTParser(new Lexer(in)).parse();
+      program.accept(new StaticChecker(typeInfo));
+    }
+    Result result = new Result();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    InputStream stdin = System.in;
+    System.setOut(new PrintStream(output));
+    System.setIn(new ByteArrayInputStream(input));
+    long start = System.nanoTime();
+    try {
+      Engines.create(engine, false).run(program, typeInfo);
+    } catch (MyPLException | RuntimeException e) {
+      result.failed = true;
+    } finally {
+      result.nanos = System.nanoTime() - start;
+      System.setOut(stdout);
+      System.setIn(stdin);
+    }
+    result.output = output.toString();
+    return result;
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * File: Engines.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The available execution engines, by name. The "vm" engine
+ *       (generate code for the whole program and run it in the VM) is
+ *       the baseline the others are checked against (see
+ *       EngineHarness). All engines share the VM's values, heap, and
+ *       runtime errors.
+ */
+
+import java.util.List;
+import java.util.function.Consumer;
+
+
+public class Engines {
+
+  /**
+   * The name of the engine used when none is given
+   */
+  public static final String DEFAULT = "mixed";
+
+  /**
+   * The names of the engines (the baseline first)
+   */
+  public static final List<String> NAMES =
+    List.of("vm", "mixed", "ast", "jit", "traces", "closures", "registers");
+
+  /**
+   * Creates an engine.
+   * @param name the engine's name (see NAMES)
+   * @param parallel true to let engines running generated code run
+   *        independent pure calls in parallel (see CodeGenerator)
+   * @return the engine (null if there is no such engine)
+   */
+  public static ExecutionEngine create(String name, boolean parallel) {
+    return create(name, parallel, vm -> {});
+  }
+
+  /**
+   * Creates an engine that sets up each VM it creates before running
+   * (e.g., to attach listeners). Only the vm engine runs every
+   * instruction through the VM's run loop.
+   * @param name the engine's name (see NAMES)
+   * @param parallel true to let engines running generated code run
+   *        independent pure calls in parallel (see CodeGenerator)
+   * @param setup called with each VM
+   * @return the engine (null if there is no such engine)
+   */
+  public static ExecutionEngine create(String name, boolean parallel, Consumer<VM> setup) {
+    switch (name) {
+    case "vm":
+      return (program, typeInfo) -> generate(program, typeInfo, parallel, setup).run();
+    case "mixed":
+      // walk the AST, generating code for functions once they are hot
+      // (which the JIT then compiles when they stay hot)
+      return (program, typeInfo) -> {
+        VM vm = vm(setup);
+        vm.setJIT(JIT.DEFAULT_THRESHOLD);
+        program.accept(new ASTInterpreter(typeInfo, vm));
+      };
+    case "ast":
+      return (program, typeInfo) -> {
+        ASTInterpreter interpreter = new ASTInterpreter(typeInfo, vm(setup));
+        interpreter.setCompileThreshold(0);
+        program.accept(interpreter);
+      };
+    case "jit":
+      return (program, typeInfo) -> {
+        VM vm = generate(program, typeInfo, parallel, setup);
+        vm.setJIT(JIT.DEFAULT_THRESHOLD);
+        vm.run();
+      };
+    case "traces":
+      return (program, typeInfo) -> {
+        VM vm = generate(program, typeInfo, parallel, setup);
+        vm.setTracing(Tracer.DEFAULT_THRESHOLD);
+        vm.run();
+      };
+    case "closures":
+      return (program, typeInfo) ->
+        new ClosureEngine(generate(program, typeInfo, parallel, setup)).run();
+    case "registers":
+      return (program, typeInfo) ->
+        new RegisterVM(generate(program, typeInfo, parallel, setup)).run();
+    default:
+      return null;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // a new (set up) VM
+  private static VM vm(Consumer<VM> setup) {
+    VM vm = new VM();
+    setup.accept(vm);
+    return vm;
+  }
+
+  // generates code for the program into a new (set up) VM
+  private static VM generate(Program program, TypeInfo typeInfo, boolean parallel,
+                             Consumer<VM> setup)
+    throws MyPLException
+  {
+    VM vm = vm(setup);
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    genVisitor.setParallelCalls(parallel);
+    vm.phase("codegen", true);
+    try {
+      program.accept(genVisitor);
+    } finally {
+      vm.phase("codegen", false);
+    }
+    return vm;
+  }
+
+}
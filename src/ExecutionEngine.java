@@ -0,0 +1,19 @@
+/*
+ * File: ExecutionEngine.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Interface for the ways of running a MyPL program (see
+ *       Engines for the available engines).
+ */
+
+
+public interface ExecutionEngine {
+
+  /**
+   * Runs a program from main.
+   * @param program the (statically checked) program
+   * @param typeInfo the program's type information
+   */
+  public void run(Program program, TypeInfo typeInfo) throws MyPLException;
+
+}
@@ -16,6 +16,9 @@ public class ForStmt implements Stmt {
   public boolean upto = true;
   public Expr end = null;
   public List<Stmt> stmts = new ArrayList<>();
+
+  // the loop variable's index (cached by the AST interpreter)
+  public int slot = -1;
   
   @Override
   public void accept(Visitor visitor) throws MyPLException {
@@ -0,0 +1,127 @@
+/*
+ * File: FunctionProfiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A VM listener that records, for each function, the number of
+ *       calls, the time spent in its calls including their callees
+ *       (counting only the outermost call of a recursive function),
+ *       and the time spent in the function itself. Each thread keeps
+ *       a stack of its active calls (PCALL tasks run on their own
+ *       threads). The time a call spends waiting for a forked PCALL
+ *       task would count as its own, so MyPL turns forking off while
+ *       profiling.
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class FunctionProfiler implements VMListener {
+
+  // the totals for one function
+  static class Stats {
+    String name;
+    long calls = 0;
+    long totalNanos = 0;
+    long selfNanos = 0;
+    // calls of the function that are active (on any thread)
+    int active = 0;
+
+    Stats(String name) {
+      this.name = name;
+    }
+  }
+
+  // an active call
+  private static class Activation {
+    Stats stats;
+    long start;
+    long calleeNanos = 0;
+
+    Activation(Stats stats, long start) {
+      this.stats = stats;
+      this.start = start;
+    }
+  }
+
+  private Map<String,Stats> stats = new HashMap<>();
+
+  private ThreadLocal<Deque<Activation>> stacks =
+    ThreadLocal.withInitial(() -> new ArrayDeque<>());
+
+
+  @Override
+  public void call(VMFrame frame) {
+    Stats s;
+    synchronized (this) {
+      s = stats.computeIfAbsent(frame.functionName(), Stats::new);
+      ++s.calls;
+      ++s.active;
+    }
+    stacks.get().push(new Activation(s, System.nanoTime()));
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    finish(stacks.get(), System.nanoTime());
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    Deque<Activation> stack = stacks.get();
+    long now = System.nanoTime();
+    while (!stack.isEmpty())
+      finish(stack, now);
+  }
+
+  // the totals of a function (null if it was never called)
+  public synchronized Stats stats(String funName) {
+    return stats.get(funName);
+  }
+
+  /**
+   * Prints a flat profile: each function's calls, self time, and total
+   * time, by self time.
+   * @param out where to print the report
+   */
+  public synchronized void report(PrintStream out) {
+    List<Stats> all = new ArrayList<>(stats.values());
+    all.sort((x, y) -> Long.compare(y.selfNanos, x.selfNanos));
+    long total = 0;
+    for (Stats s : all)
+      total += s.selfNanos;
+    out.printf("Function profile (%.1f ms)\n", total / 1e6);
+    out.printf("  %-24s %12s %11s %7s %11s %11s\n",
+               "function", "calls", "self ms", "self %", "total ms", "us/call");
+    for (Stats s : all)
+      out.printf("  %-24s %12d %11.1f %6.2f%% %11.1f %11.2f\n", s.name, s.calls,
+                 s.selfNanos / 1e6, total == 0 ? 0.0 : 100.0 * s.selfNanos / total,
+                 s.totalNanos / 1e6, s.totalNanos / 1e3 / s.calls);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // ends the call on top of the stack at the given time
+  private void finish(Deque<Activation> stack, long now) {
+    Activation a = stack.poll();
+    if (a == null)
+      return;
+    long elapsed = now - a.start;
+    Activation caller = stack.peek();
+    if (caller != null)
+      caller.calleeNanos += elapsed;
+    synchronized (this) {
+      a.stats.selfNanos += elapsed - a.calleeNanos;
+      if (--a.stats.active == 0)
+        a.stats.totalNanos += elapsed;
+    }
+  }
+
+}
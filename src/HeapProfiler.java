@@ -0,0 +1,173 @@
+/*
+ * File: HeapProfiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A VM listener that tags heap objects with their allocation
+ *       site (the function and source position of the ALLOC, and its
+ *       type, which CodeGenerator puts in the ALLOC's comment) and
+ *       reports the objects still alive by site: their number and
+ *       approximate size (see VMMonitor), and, as suspected leaks,
+ *       the ones that were never deleted. To keep the overhead low it
+ *       can track a random sample of the allocations, one in so many
+ *       on average (see AllocationSampler; the counts are then scaled
+ *       up). The VM passes the allocating frame and ALLOC, so objects
+ *       created by compiled code (see JIT) get their own sites too.
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class HeapProfiler implements VMListener {
+
+  // the number of suspected leaks listed per site
+  private static final int EXAMPLES = 5;
+
+  // an allocation site (copies of an ALLOC, e.g., in an unrolled
+  // loop, are one site)
+  static class Site {
+    String name;
+    String type;
+    long allocated = 0;
+    long freed = 0;
+    long liveFields = 0;
+    // the tracked objects of the site still alive (in allocation order)
+    Map<Integer,Integer> live = new LinkedHashMap<>();
+
+    Site(String name, String type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  private int samplePeriod;
+  private AllocationSampler sampler;
+
+  // the sites by name, and the site of each tracked object
+  private Map<String,Site> sites = new LinkedHashMap<>();
+  private Map<Integer,Site> objects = new HashMap<>();
+
+
+  /**
+   * Creates a profiler.
+   * @param samplePeriod track one in this many allocations on average
+   *        (1 to track all of them)
+   */
+  public HeapProfiler(int samplePeriod) {
+    sampler = new AllocationSampler(samplePeriod);
+    this.samplePeriod = sampler.period();
+  }
+
+  @Override
+  public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+    if (!sampler.sample())
+      return;
+    synchronized (this) {
+      Site site = site(frame, pc);
+      ++site.allocated;
+      site.liveFields += fields.size();
+      site.live.put((Integer)oid, fields.size());
+      objects.put((Integer)oid, site);
+    }
+  }
+
+  @Override
+  public synchronized void free(VMFrame frame, int pc, Object oid) {
+    Site site = objects.remove((Integer)oid);
+    if (site == null)
+      return;
+    ++site.freed;
+    site.liveFields -= site.live.remove((Integer)oid);
+  }
+
+  // the number of tracked objects of a type still alive
+  public synchronized long live(String type) {
+    long n = 0;
+    for (Site site : sites.values())
+      if (site.type.equals(type))
+        n += site.live.size();
+    return n;
+  }
+
+  /**
+   * Prints the live objects by allocation site (most bytes first),
+   * then the suspected leaks: the objects that are still alive (with
+   * a few example object ids per site). Can be called while the
+   * program runs.
+   * @param out where to print the report
+   */
+  public synchronized void report(PrintStream out) {
+    List<Site> all = new ArrayList<>(sites.values());
+    all.sort((x, y) -> Long.compare(bytes(y), bytes(x)));
+    long live = 0;
+    long total = 0;
+    for (Site site : all) {
+      live += site.live.size() * (long)samplePeriod;
+      total += bytes(site);
+    }
+    out.printf("Heap profile (%d objects live, ~%d bytes%s)\n", live, total,
+               samplePeriod > 1 ? ", tracking 1 in " + samplePeriod + " allocations at random" : "");
+    out.printf("  %-28s %-16s %10s %12s %12s %10s\n",
+               "site", "type", "live", "~bytes", "allocated", "deleted");
+    for (Site site : all)
+      out.printf("  %-28s %-16s %10d %12d %12d %10d\n", site.name, site.type,
+                 site.live.size() * (long)samplePeriod, bytes(site),
+                 site.allocated * samplePeriod, site.freed * samplePeriod);
+    out.println("Suspected leaks (never deleted)");
+    boolean none = true;
+    for (Site site : all) {
+      if (site.live.isEmpty())
+        continue;
+      none = false;
+      List<Integer> examples = new ArrayList<>();
+      for (Integer oid : site.live.keySet()) {
+        if (examples.size() == EXAMPLES)
+          break;
+        examples.add(oid);
+      }
+      out.printf("  %d %s object(s) from %s, e.g., oids %s\n",
+                 site.live.size() * (long)samplePeriod, site.type, site.name, examples);
+    }
+    if (none)
+      out.println("  none");
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the site of a frame's ALLOC, named function:line:column (or
+  // function:line from the AST interpreter, which passes the negated
+  // line, and function@pc without a line table)
+  private Site site(VMFrame frame, int pc) {
+    String name = frame.functionName();
+    if (pc < 0)
+      name += ":" + -pc;
+    else if (frame.lines.line(pc) > 0)
+      name += ":" + frame.lines.line(pc) + ":" + frame.lines.column(pc);
+    else
+      name += "@" + pc;
+    Site site = sites.get(name);
+    if (site == null) {
+      String type = "?";
+      VMInstr instr = pc >= 0 && pc < frame.instructions.size() ?
+        frame.instructions.get(pc) : null;
+      if (instr != null && instr.opcode() == OpCode.ALLOC && instr.comment() != null)
+        type = instr.comment();
+      site = new Site(name, type);
+      sites.put(name, site);
+    }
+    return site;
+  }
+
+  // the approximate size of a site's live objects
+  private long bytes(Site site) {
+    return (site.live.size() * VMMonitor.OBJECT_BYTES +
+            site.liveFields * VMMonitor.FIELD_BYTES) * samplePeriod;
+  }
+
+}
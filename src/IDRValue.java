@@ -15,6 +15,10 @@ public class IDRValue implements RValue {
 
   public List<Token> path = new ArrayList<>();
 
+  // the variable index of the path's first name (cached by the AST
+  // interpreter)
+  public int slot = -1;
+
   @Override
   public void accept(Visitor visitor) throws MyPLException {
     visitor.visit(this);
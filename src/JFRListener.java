@@ -0,0 +1,207 @@
+/*
+ * File: JFRListener.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A VM listener that emits Java Flight Recorder events (in the
+ *       "MyPL" category) for function calls taking longer than a
+ *       threshold (20 ms unless the recording's settings say
+ *       otherwise), a sample of heap allocations, deletes, runtime
+ *       errors, and compile steps. Each event has the function and
+ *       source line it happened in. While no recording is on, each
+ *       hook only checks whether its event type is enabled.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+public class JFRListener implements VMListener {
+
+  // one in this many allocations is recorded (on average, picked at
+  // random)
+  private static final int ALLOC_SAMPLE_PERIOD = 64;
+
+  @Name("mypl.Call")
+  @Label("MyPL Call")
+  @Category("MyPL")
+  @Description("A MyPL function call (from its start to its return)")
+  @Threshold("20 ms")
+  @StackTrace(false)
+  static class CallEvent extends Event {
+    @Label("Function")
+    String function;
+    @Label("Line")
+    int line;
+  }
+
+  @Name("mypl.Alloc")
+  @Label("MyPL Allocation")
+  @Category("MyPL")
+  @Description("A sampled MyPL object allocation")
+  @StackTrace(false)
+  static class AllocEvent extends Event {
+    @Label("Function")
+    String function;
+    @Label("Line")
+    int line;
+    @Label("Fields")
+    int fields;
+    @Label("Allocations")
+    @Description("The number of allocations the sample stands for")
+    int weight;
+  }
+
+  @Name("mypl.Free")
+  @Label("MyPL Delete")
+  @Category("MyPL")
+  @StackTrace(false)
+  static class FreeEvent extends Event {
+    @Label("Function")
+    String function;
+    @Label("Line")
+    int line;
+  }
+
+  @Name("mypl.Error")
+  @Label("MyPL Runtime Error")
+  @Category("MyPL")
+  @StackTrace(false)
+  static class ErrorEvent extends Event {
+    @Label("Function")
+    String function;
+    @Label("Line")
+    int line;
+    @Label("Message")
+    String message;
+  }
+
+  @Name("mypl.Phase")
+  @Label("MyPL Compile Step")
+  @Category("MyPL")
+  @StackTrace(false)
+  static class PhaseEvent extends Event {
+    @Label("Step")
+    String step;
+  }
+
+  private static final EventType CALL = EventType.getEventType(CallEvent.class);
+  private static final EventType ALLOC = EventType.getEventType(AllocEvent.class);
+
+  // each thread's active calls (the events are null if calls weren't
+  // being recorded when they started)
+  private static class Activation {
+    VMFrame frame;
+    CallEvent event;
+
+    Activation(VMFrame frame, CallEvent event) {
+      this.frame = frame;
+      this.event = event;
+    }
+  }
+
+  private ThreadLocal<Deque<Activation>> stacks =
+    ThreadLocal.withInitial(() -> new ArrayDeque<>());
+
+  private AllocationSampler allocations = new AllocationSampler(ALLOC_SAMPLE_PERIOD);
+
+  // the compile steps running
+  private Map<String,PhaseEvent> phases = new HashMap<>();
+
+
+  @Override
+  public void call(VMFrame frame) {
+    CallEvent event = null;
+    if (CALL.isEnabled()) {
+      event = new CallEvent();
+      event.begin();
+    }
+    stacks.get().push(new Activation(frame, event));
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    Activation a = stacks.get().poll();
+    if (a == null || a.event == null)
+      return;
+    a.event.end();
+    if (a.event.shouldCommit()) {
+      a.event.function = frame.functionName();
+      a.event.line = frame.lines.line(0);
+      a.event.commit();
+    }
+  }
+
+  @Override
+  public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+    if (!ALLOC.isEnabled() || !allocations.sample())
+      return;
+    AllocEvent event = new AllocEvent();
+    event.function = frame.functionName();
+    event.line = pc < 0 ? -pc : frame.lines.line(pc);
+    event.fields = fields.size();
+    event.weight = ALLOC_SAMPLE_PERIOD;
+    event.commit();
+  }
+
+  @Override
+  public void free(VMFrame frame, int pc, Object oid) {
+    FreeEvent event = new FreeEvent();
+    if (!event.isEnabled())
+      return;
+    event.function = frame.functionName();
+    event.line = pc < 0 ? -pc : frame.lines.line(pc);
+    event.commit();
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    Deque<Activation> stack = stacks.get();
+    while (!stack.isEmpty())
+      ret(stack.peek().frame, VM.NIL_OBJ);
+    ErrorEvent event = new ErrorEvent();
+    if (!event.isEnabled())
+      return;
+    if (frame != null) {
+      event.function = frame.functionName();
+      event.line = line(frame);
+    }
+    event.message = error.getMessage();
+    event.commit();
+  }
+
+  @Override
+  public synchronized void phase(String name, boolean start) {
+    if (start) {
+      PhaseEvent event = new PhaseEvent();
+      event.step = name;
+      event.begin();
+      phases.put(name, event);
+    }
+    else {
+      PhaseEvent event = phases.remove(name);
+      if (event != null)
+        event.commit();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the source line of the instruction a frame is running
+  private static int line(VMFrame frame) {
+    return frame.lines.line(Math.max(0, frame.pc - 1));
+  }
+
+}
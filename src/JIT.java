@@ -0,0 +1,220 @@
+/*
+ * File: JIT.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The VM's second tier. Counts the calls and loop iterations
+ *       (backward jumps) of each function, and once a function gets
+ *       hot compiles it to JVM bytecode (see JITCompiler). Calls of a
+ *       compiled function then run the compiled code, and a function
+ *       that is hot because of a loop switches to the compiled code
+ *       at the loop's next iteration (on-stack replacement). Functions
+ *       that can't be compiled stay interpreted.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class JIT {
+
+  /**
+   * The interface implemented by the classes the JIT generates.
+   */
+  public interface Code {
+    /**
+     * Runs the compiled function.
+     * @param vm the VM (for the heap and interpreted calls)
+     * @param consts the instruction operands used by the code
+     * @param frame the function's frame (for error messages, and the
+     *        variable values when resuming at a loop)
+     * @param args the argument values (in parameter order)
+     * @param entry -1 to start at the beginning (using args), else the
+     *        loop (jump target) to resume at (using frame)
+     * @return the function's return value
+     */
+    Object call(VM vm, Object[] consts, VMFrame frame, Object[] args, int entry)
+      throws MyPLException;
+  }
+
+  /**
+   * The JIT state of a function. Compiled code calls other functions
+   * through these (which interpret the function until it is compiled).
+   */
+  public class Function {
+
+    // the function's (template) frame
+    private VMFrame frame;
+
+    // calls plus loop iterations so far
+    private int heat = 0;
+
+    // the compiled code and its operands (null until compiled)
+    private volatile Code code = null;
+    private Object[] consts = null;
+
+    // the loops the compiled code can be resumed at
+    private Set<Integer> entries = Set.of();
+
+    // true if the function could not be compiled
+    private boolean failed = false;
+
+    private Function(VMFrame frame) {
+      this.frame = frame;
+    }
+
+    public int argCount() {
+      return frame.argCount();
+    }
+
+    // call from compiled code (interpreted once the calls are nested
+    // too deeply)
+    public Object call(Object[] args) throws MyPLException {
+      int[] d = depth();
+      if (code == null && d[0] < MAX_DEPTH)
+        warm(this);
+      if (code == null || d[0] >= MAX_DEPTH)
+        return vm.interpret(frame, args);
+      ++d[0];
+      try {
+        return code.call(vm, consts, frame, args, -1);
+      } finally {
+        --d[0];
+      }
+    }
+
+    // run the compiled code from the start
+    public Object run(Object[] args) throws MyPLException {
+      int[] d = depth();
+      ++d[0];
+      try {
+        return code.call(vm, consts, frame, args, -1);
+      } finally {
+        --d[0];
+      }
+    }
+
+    // finish an interpreted call in the compiled code, starting at the
+    // given loop
+    public Object resume(VMFrame active, int entry) throws MyPLException {
+      int[] d = depth();
+      ++d[0];
+      try {
+        return code.call(vm, consts, active, null, entry);
+      } finally {
+        --d[0];
+      }
+    }
+  }
+
+  // calls plus loop iterations before a function is compiled (unless
+  // another threshold is given)
+  public static final int DEFAULT_THRESHOLD = 1000;
+
+  // compiled code calls functions on the Java stack, so calls nested
+  // deeper than this (per thread) are interpreted instead (the
+  // interpreter keeps its frames on the heap)
+  static final int MAX_DEPTH = 1000;
+
+  // the VM that runs the (interpreted) functions
+  private VM vm;
+
+  // the compiled calls running on the thread that created the JIT
+  // (which runs the program) and on each other thread (e.g., PCALL
+  // tasks)
+  private Thread owner = Thread.currentThread();
+  private int[] ownerDepth = new int[1];
+  private ThreadLocal<int[]> depths = ThreadLocal.withInitial(() -> new int[1]);
+
+  // calls plus loop iterations before compiling
+  private int threshold;
+
+  private Map<String,Function> functions = new ConcurrentHashMap<>();
+
+  // the functions compiled so far (in order)
+  private List<String> compiled = new ArrayList<>();
+
+
+  /**
+   * Creates a JIT for a VM.
+   * @param vm the VM whose functions are compiled
+   * @param threshold calls plus loop iterations before a function is
+   *        compiled
+   */
+  public JIT(VM vm, int threshold) {
+    this.vm = vm;
+    this.threshold = threshold;
+  }
+
+  // the JIT state of the given function (null if there is no such
+  // function)
+  Function function(String funName) {
+    return functions.computeIfAbsent(funName, f -> vm.frame(f) == null ? null : new Function(vm.frame(f)));
+  }
+
+  /**
+   * Counts a call of the given function.
+   * @return the function if it is compiled (and calls aren't nested
+   *         too deeply), else null (interpret it)
+   */
+  public Function enter(String funName) {
+    Function f = function(funName);
+    if (f == null || depth()[0] >= MAX_DEPTH)
+      return null;
+    if (f.code == null)
+      warm(f);
+    return f.code != null ? f : null;
+  }
+
+  /**
+   * Counts an iteration of the loop starting at the given instruction.
+   * @return the function if it is compiled and can be resumed at the
+   *         loop, else null (keep interpreting)
+   */
+  public Function loop(String funName, int entry) {
+    Function f = function(funName);
+    if (depth()[0] >= MAX_DEPTH)
+      return null;
+    if (f.code == null)
+      warm(f);
+    return f.code != null && f.entries.contains(entry) ? f : null;
+  }
+
+  // the functions compiled so far (in order)
+  public List<String> compiledFunctions() {
+    return compiled;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the compiled calls running on this thread
+  private int[] depth() {
+    return Thread.currentThread() == owner ? ownerDepth : depths.get();
+  }
+
+  // count a call or iteration, compiling the function when it gets hot
+  private void warm(Function f) {
+    if (!f.failed && ++f.heat >= threshold)
+      compile(f);
+  }
+
+  private synchronized void compile(Function f) {
+    if (f.code != null || f.failed)
+      return;
+    JITCompiler compiler = new JITCompiler(this, f.frame);
+    Code code = compiler.compile();
+    if (code == null) {
+      f.failed = true;
+      return;
+    }
+    f.consts = compiler.consts();
+    f.entries = compiler.entries();
+    f.code = code;
+    compiled.add(f.frame.functionName());
+  }
+
+}
@@ -0,0 +1,558 @@
+/*
+ * File: JITCompiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Translates the instructions of one VM frame into a JVM class
+ *       implementing JIT.Code, loaded as a hidden class. Each MyPL
+ *       variable becomes a JVM local and the VM's operand stack
+ *       becomes the JVM's operand stack. Instructions that compute
+ *       values call the same code as the VM (VMOps and the VM's heap
+ *       operations) so results and runtime errors are the same. The
+ *       class file is version 49 so it needs no stack map frames.
+ *       Functions whose operand stack height differs between paths
+ *       to an instruction can't be compiled.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+public class JITCompiler {
+
+  // method descriptors
+  private static final String OBJ = "Ljava/lang/Object;";
+  private static final String CALL =
+    "(LVM;[" + OBJ + "LVMFrame;[" + OBJ + "I)" + OBJ;
+  private static final String BINARY_OP = "(" + OBJ + OBJ + "LVMFrame;I)" + OBJ;
+  private static final String UNARY_OP = "(" + OBJ + "LVMFrame;I)" + OBJ;
+
+  // JVM local variable slots of the generated call method
+  private static final int VM_SLOT = 1;
+  private static final int CONSTS_SLOT = 2;
+  private static final int FRAME_SLOT = 3;
+  private static final int ARGS_SLOT = 4;
+  private static final int ENTRY_SLOT = 5;
+  private static final int VARS_SLOT = 6;
+
+  // the largest method the JVM allows
+  private static final int MAX_CODE = 65535;
+
+  private JIT jit;
+  private VMFrame frame;
+  private List<VMInstr> instrs;
+
+  // operand stack height before each instruction (-1 if unreachable)
+  private int[] depth;
+  private int maxDepth = 0;
+  private int numVars = 0;
+  private int maxArgs = 0;
+
+  // the jump targets of loops (stack height 0) the code can resume at
+  private Set<Integer> entries;
+
+  // instruction operands used by the code (by identity)
+  private List<Object> consts = new ArrayList<>();
+  private Map<Object,Integer> constIndex = new IdentityHashMap<>();
+
+  // class file constant pool
+  private Bytes pool = new Bytes();
+  private int poolCount = 1;
+  private Map<String,Integer> poolIndex = new HashMap<>();
+
+  // the call method's code, the code offset of each instruction, and
+  // the jumps to fill in once all offsets are known
+  private Bytes code = new Bytes();
+  private int[] labels;
+  private int normalEntry = 0;
+  private List<int[]> jumps = new ArrayList<>();
+
+
+  /**
+   * Creates a compiler for one function.
+   * @param jit the JIT (for the functions the code calls)
+   * @param frame the function's (template) frame
+   */
+  public JITCompiler(JIT jit, VMFrame frame) {
+    this.jit = jit;
+    this.frame = frame;
+    this.instrs = frame.instructions;
+  }
+
+  /**
+   * Compiles and loads the function.
+   * @return the compiled code, or null if the function can't be
+   *         compiled
+   */
+  public JIT.Code compile() {
+    if (!analyze())
+      return null;
+    generate();
+    if (code.size() > MAX_CODE)
+      return null;
+    try {
+      byte[] bytes = classFile("JIT_" + frame.functionName());
+      MethodHandles.Lookup lookup =
+        MethodHandles.lookup().defineHiddenClass(bytes, true);
+      return (JIT.Code)lookup.findConstructor(lookup.lookupClass(),
+                                              MethodType.methodType(void.class)).invoke();
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  // the operands the compiled code expects
+  public Object[] consts() {
+    return consts.toArray();
+  }
+
+  // the loops the compiled code can be resumed at
+  public Set<Integer> entries() {
+    return entries;
+  }
+
+
+  //----------------------------------------------------------------------
+  // STACK ANALYSIS
+  //----------------------------------------------------------------------
+
+  // finds the operand stack height before each instruction, returning
+  // false if the function can't be compiled
+  private boolean analyze() {
+    StackAnalysis analysis = new StackAnalysis(frame, this::argCount);
+    if (!analysis.isValid())
+      return false;
+    depth = new int[instrs.size()];
+    for (int pc = 0; pc < depth.length; ++pc)
+      depth[pc] = analysis.depth(pc);
+    maxDepth = analysis.maxDepth();
+    numVars = analysis.numVars();
+    maxArgs = analysis.maxArgs();
+    entries = analysis.loopHeaders();
+    return true;
+  }
+
+  // the number of arguments of a function (-1 if there is no such
+  // function)
+  private int argCount(String funName) {
+    JIT.Function f = jit.function(funName);
+    return f == null ? -1 : f.argCount();
+  }
+
+
+  //----------------------------------------------------------------------
+  // CODE GENERATION
+  //----------------------------------------------------------------------
+
+  private void generate() {
+    int n = instrs.size();
+    labels = new int[n];
+
+    // all variables start as nil
+    for (int k = 0; k < numVars; ++k) {
+      code.u1(0xb2).u2(fieldref("VM", "NIL_OBJ", "Ljava/lang/String;"));   // getstatic
+      astore(VARS_SLOT + k);
+    }
+
+    // resuming at a loop: load the variables from the frame and jump to
+    // the loop
+    if (!entries.isEmpty()) {
+      code.u1(0x15).u1(ENTRY_SLOT);            // iload entry
+      code.u1(0x9c).u2(8);                     // ifge +8
+      jump(0xc8, -1);                          // goto_w normal entry
+      for (int k = 0; k < numVars; ++k) {
+        aload(FRAME_SLOT);
+        pushInt(k);
+        invokestatic("VM", "variable", "(LVMFrame;I)" + OBJ);
+        astore(VARS_SLOT + k);
+      }
+      code.u1(0x15).u1(ENTRY_SLOT);            // iload entry
+      lookupswitch(new ArrayList<>(entries), -1);
+    }
+
+    // normal entry: push the arguments (first argument on top)
+    normalEntry = code.size();
+    for (int i = frame.argCount() - 1; i >= 0; --i) {
+      aload(ARGS_SLOT);
+      pushInt(i);
+      code.u1(0x32);                           // aaload
+    }
+
+    for (int pc = 0; pc < n; ++pc) {
+      labels[pc] = code.size();
+      if (depth[pc] != -1)
+        generate(pc, instrs.get(pc));
+    }
+
+    // fill in the jumps
+    for (int[] j : jumps) {
+      int target = j[2] == -1 ? normalEntry : labels[j[2]];
+      code.set4(j[0], target - j[1]);
+    }
+  }
+
+  private void generate(int pc, VMInstr instr) {
+    Object operand = instr.operand();
+    switch (instr.opcode()) {
+    case PUSH:
+      pushConst(operand);
+      break;
+    case POP:
+      code.u1(0x57);
+      break;
+    case LOAD:
+      aload(VARS_SLOT + (int)operand);
+      break;
+    case STORE:
+      astore(VARS_SLOT + (int)operand);
+      break;
+    case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+    case CMPLT: case CMPLE: case CMPGT: case CMPGE: case GETCHR:
+      aload(FRAME_SLOT);
+      pushInt(pc);
+      invokestatic("VMOps", instr.opcode().name().toLowerCase(), BINARY_OP);
+      break;
+    case CMPEQ: case CMPNE:
+      invokestatic("VMOps", instr.opcode().name().toLowerCase(), "(" + OBJ + OBJ + ")" + OBJ);
+      break;
+    case NEG: case NOT: case TOINT: case TODBL:
+      aload(FRAME_SLOT);
+      pushInt(pc);
+      invokestatic("VMOps", instr.opcode().name().toLowerCase(), UNARY_OP);
+      break;
+    case LEN: case TOSTR:
+      invokestatic("VMOps", instr.opcode().name().toLowerCase(), "(" + OBJ + ")" + OBJ);
+      break;
+    case JMP: case FORK:
+      // compiled code always takes the sequential version of a PCALL
+      jump(0xc8, (int)operand);                // goto_w
+      break;
+    case JMPF:
+      invokestatic("VMOps", "isTrue", "(" + OBJ + ")Z");
+      code.u1(0x9a).u2(8);                     // ifne +8
+      jump(0xc8, (int)operand);                // goto_w
+      break;
+    case SWITCH: {
+      SwitchTable table = (SwitchTable)operand;
+      pushConst(table);
+      code.u1(0xc0).u2(cls("SwitchTable"));    // checkcast
+      code.u1(0x5f);                           // swap
+      invokevirtual("SwitchTable", "target", "(" + OBJ + ")I");
+      lookupswitch(new ArrayList<>(new TreeSet<>(table.targets().values())),
+                   table.defaultTarget());
+      break;
+    }
+    case CALL:
+      call(operand.toString());
+      break;
+    case PCALL: {
+      // second call's arguments are on top: put them in an array (in
+      // the last temp slot), make the first call, then the second
+      List<String> funNames = VMInstr.names(operand);
+      int arraySlot = VARS_SLOT + numVars + maxArgs;
+      argArray(argCount(funNames.get(1)));
+      astore(arraySlot);
+      call(funNames.get(0));
+      pushConst(jit.function(funNames.get(1)));
+      code.u1(0xc0).u2(cls("JIT$Function"));   // checkcast
+      aload(arraySlot);
+      invokevirtual("JIT$Function", "call", "([" + OBJ + ")" + OBJ);
+      break;
+    }
+    case VRET:
+      code.u1(0xb0);                           // areturn
+      break;
+    case WRITE:
+      invokestatic("VMOps", "write", "(" + OBJ + ")V");
+      break;
+    case READ:
+      invokestatic("VMOps", "read", "()" + OBJ);
+      break;
+    case ALLOC:
+      aload(VM_SLOT);
+      pushConst(operand);
+      code.u1(0xc0).u2(cls("java/util/List")); // checkcast
+      aload(FRAME_SLOT);
+      pushInt(pc);
+      invokevirtual("VM", "alloc", "(Ljava/util/List;LVMFrame;I)" + OBJ);
+      break;
+    case FREE:
+      aload(VM_SLOT);
+      code.u1(0x5f);                           // swap
+      aload(FRAME_SLOT);
+      pushInt(pc);
+      invokevirtual("VM", "free", "(" + OBJ + "LVMFrame;I)V");
+      break;
+    case SETFLD:
+      // oid val -> vm oid val
+      aload(VM_SLOT);
+      code.u1(0x5b);                           // dup_x2
+      code.u1(0x57);                           // pop
+      pushConst(operand.toString());
+      code.u1(0xc0).u2(cls("java/lang/String"));
+      invokevirtual("VM", "setField", "(" + OBJ + OBJ + "Ljava/lang/String;)V");
+      break;
+    case GETFLD:
+      aload(VM_SLOT);
+      code.u1(0x5f);                           // swap
+      pushConst(operand.toString());
+      code.u1(0xc0).u2(cls("java/lang/String"));
+      aload(FRAME_SLOT);
+      pushInt(pc);
+      invokevirtual("VM", "getField", "(" + OBJ + "Ljava/lang/String;LVMFrame;I)" + OBJ);
+      break;
+    case DUP:
+      code.u1(0x59);
+      break;
+    case SWAP:
+      code.u1(0x5f);
+      break;
+    default:
+      // NOP
+      break;
+    }
+  }
+
+  // call a function with the arguments on the stack
+  private void call(String funName) {
+    int args = argCount(funName);
+    for (int i = args - 1; i >= 0; --i)
+      astore(VARS_SLOT + numVars + i);
+    pushConst(jit.function(funName));
+    code.u1(0xc0).u2(cls("JIT$Function"));     // checkcast
+    newArray(args);
+    invokevirtual("JIT$Function", "call", "([" + OBJ + ")" + OBJ);
+  }
+
+  // pop the given number of arguments into a new array
+  private void argArray(int args) {
+    for (int i = args - 1; i >= 0; --i)
+      astore(VARS_SLOT + numVars + i);
+    newArray(args);
+  }
+
+  // a new array holding the first args temp slots
+  private void newArray(int args) {
+    pushInt(args);
+    code.u1(0xbd).u2(cls("java/lang/Object")); // anewarray
+    for (int i = 0; i < args; ++i) {
+      code.u1(0x59);                           // dup
+      pushInt(i);
+      aload(VARS_SLOT + numVars + i);
+      code.u1(0x53);                           // aastore
+    }
+  }
+
+  private void pushConst(Object value) {
+    Integer i = constIndex.get(value);
+    if (i == null) {
+      i = consts.size();
+      consts.add(value);
+      constIndex.put(value, i);
+    }
+    aload(CONSTS_SLOT);
+    pushInt(i);
+    code.u1(0x32);                             // aaload
+  }
+
+  private void pushInt(int i) {
+    if (i >= -1 && i <= 5)
+      code.u1(0x03 + i);                       // iconst_<i>
+    else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE)
+      code.u1(0x10).u1(i);                     // bipush
+    else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE)
+      code.u1(0x11).u2(i);                     // sipush
+    else
+      code.u1(0x13).u2(integer(i));            // ldc_w
+  }
+
+  private void aload(int slot) {
+    if (slot <= 255)
+      code.u1(0x19).u1(slot);
+    else
+      code.u1(0xc4).u1(0x19).u2(slot);         // wide
+  }
+
+  private void astore(int slot) {
+    if (slot <= 255)
+      code.u1(0x3a).u1(slot);
+    else
+      code.u1(0xc4).u1(0x3a).u2(slot);         // wide
+  }
+
+  private void invokestatic(String owner, String name, String desc) {
+    code.u1(0xb8).u2(methodref(owner, name, desc));
+  }
+
+  private void invokevirtual(String owner, String name, String desc) {
+    code.u1(0xb6).u2(methodref(owner, name, desc));
+  }
+
+  // a jump instruction with a 4 byte offset to an instruction (-1 for
+  // the normal entry)
+  private void jump(int opcode, int pc) {
+    int base = code.size();
+    code.u1(opcode);
+    jumps.add(new int[] {code.size(), base, pc});
+    code.u4(0);
+  }
+
+  // jump to the instruction given by the int on top of the stack
+  private void lookupswitch(List<Integer> targets, int defaultTarget) {
+    int base = code.size();
+    code.u1(0xab);
+    while (code.size() % 4 != 0)
+      code.u1(0);
+    jumps.add(new int[] {code.size(), base, defaultTarget});
+    code.u4(0);
+    code.u4(targets.size());
+    for (int target : targets) {
+      code.u4(target);
+      jumps.add(new int[] {code.size(), base, target});
+      code.u4(0);
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // CLASS FILE
+  //----------------------------------------------------------------------
+
+  private byte[] classFile(String name) {
+    int thisClass = cls(name);
+    int superClass = cls("java/lang/Object");
+    int codeInterface = cls("JIT$Code");
+    int initName = utf8("<init>");
+    int initDesc = utf8("()V");
+    int objectInit = methodref("java/lang/Object", "<init>", "()V");
+    int callName = utf8("call");
+    int callDesc = utf8(CALL);
+    int codeName = utf8("Code");
+
+    Bytes out = new Bytes();
+    out.u4(0xCAFEBABE).u2(0).u2(49);
+    out.u2(poolCount).bytes(pool);
+    out.u2(0x0031);                            // public final super
+    out.u2(thisClass).u2(superClass);
+    out.u2(1).u2(codeInterface);
+    out.u2(0);                                 // fields
+    out.u2(2);                                 // methods
+
+    // public <init>() { super(); }
+    Bytes init = new Bytes().u1(0x2a).u1(0xb7).u2(objectInit).u1(0xb1);
+    out.u2(0x0001).u2(initName).u2(initDesc).u2(1);
+    codeAttribute(out, codeName, 1, 1, init);
+
+    // public Object call(VM, Object[], VMFrame, Object[], int)
+    int maxLocals = VARS_SLOT + numVars + maxArgs + 1;
+    out.u2(0x0001).u2(callName).u2(callDesc).u2(1);
+    codeAttribute(out, codeName, maxDepth + 8, maxLocals, code);
+
+    out.u2(0);                                 // class attributes
+    return out.toByteArray();
+  }
+
+  private void codeAttribute(Bytes out, int codeName, int maxStack, int maxLocals, Bytes c) {
+    out.u2(codeName).u4(12 + c.size());
+    out.u2(maxStack).u2(maxLocals).u4(c.size()).bytes(c);
+    out.u2(0).u2(0);                           // exceptions, attributes
+  }
+
+  private int utf8(String s) {
+    return constant("U" + s, () -> {
+        byte[] b = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        pool.u1(1).u2(b.length);
+        for (byte x : b)
+          pool.u1(x);
+      });
+  }
+
+  private int cls(String name) {
+    int n = utf8(name);
+    return constant("C" + name, () -> pool.u1(7).u2(n));
+  }
+
+  private int integer(int i) {
+    return constant("I" + i, () -> pool.u1(3).u4(i));
+  }
+
+  private int methodref(String owner, String name, String desc) {
+    int c = cls(owner);
+    int nt = nameAndType(name, desc);
+    return constant("M" + owner + "." + name + desc, () -> pool.u1(10).u2(c).u2(nt));
+  }
+
+  private int fieldref(String owner, String name, String desc) {
+    int c = cls(owner);
+    int nt = nameAndType(name, desc);
+    return constant("F" + owner + "." + name + desc, () -> pool.u1(9).u2(c).u2(nt));
+  }
+
+  private int nameAndType(String name, String desc) {
+    int n = utf8(name);
+    int d = utf8(desc);
+    return constant("N" + name + desc, () -> pool.u1(12).u2(n).u2(d));
+  }
+
+  // the pool index of a constant, adding it (with add) if needed
+  private int constant(String key, Runnable add) {
+    Integer index = poolIndex.get(key);
+    if (index == null) {
+      index = poolCount;
+      add.run();
+      ++poolCount;
+      poolIndex.put(key, index);
+    }
+    return index;
+  }
+
+  // a growable byte array (big endian)
+  private static class Bytes {
+    private byte[] data = new byte[256];
+    private int size = 0;
+
+    Bytes u1(int b) {
+      if (size == data.length)
+        data = Arrays.copyOf(data, size * 2);
+      data[size++] = (byte)b;
+      return this;
+    }
+
+    Bytes u2(int v) {
+      return u1(v >> 8).u1(v);
+    }
+
+    Bytes u4(int v) {
+      return u2(v >> 16).u2(v);
+    }
+
+    Bytes bytes(Bytes b) {
+      for (int i = 0; i < b.size; ++i)
+        u1(b.data[i]);
+      return this;
+    }
+
+    void set4(int pos, int v) {
+      data[pos] = (byte)(v >> 24);
+      data[pos + 1] = (byte)(v >> 16);
+      data[pos + 2] = (byte)(v >> 8);
+      data[pos + 3] = (byte)v;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(data, size);
+    }
+  }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * File: JavaGenerator.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Translates a checked MyPL program into the source of a Java
+ *       class (for ahead-of-time compilation, see AOTCompiler). Each
+ *       function becomes a static method over Object values that calls
+ *       MyPLRuntime for operators, built-ins, and the heap. Variables
+ *       are numbered per function the same way as by the CodeGenerator
+ *       (v0, v1, ...) and declared at the top of the method, so names
+ *       resolve the same way as in the VM.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class JavaGenerator implements Visitor {
+
+  // the name of the generated class
+  private String className;
+
+  // the class source built so far
+  private StringBuilder out = new StringBuilder();
+
+  // the current function's statements and indentation
+  private StringBuilder body = null;
+  private String indent = "";
+
+  // the Java code of the last expression visited
+  private String expr = null;
+
+  // maps a variable to its variable (slot) number, and the next number
+  private Map<String,Integer> varMap = null;
+  private int currVarIndex = 0;
+
+  // temporaries used for assignments to paths (per function)
+  private int tempCount = 0;
+
+  // user-defined types (for the fields of new objects)
+  private Map<String,TypeDecl> typeDecls = new HashMap<>();
+
+
+  /**
+   * Creates a generator for a class with the given name.
+   * @param className the name of the generated (public) class
+   */
+  public JavaGenerator(String className) {
+    this.className = className;
+  }
+
+  // the generated class source (after visiting the program)
+  public String source() {
+    return out.toString();
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void line(String s) {
+    body.append(indent).append(s).append("\n");
+  }
+
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    String outer = indent;
+    indent += "  ";
+    for (Stmt stmt : stmts) {
+      stmt.accept(this);
+      // call statements (other statements add their own lines)
+      if (stmt instanceof CallExpr)
+        line(expr + ";");
+    }
+    indent = outer;
+  }
+
+  // the Java code of an expression
+  private String expr(Expr e) throws MyPLException {
+    e.accept(this);
+    return expr;
+  }
+
+  private static String var(int index) {
+    return "v" + index;
+  }
+
+  // a Java string literal with the given value
+  private static String quote(String s) {
+    StringBuilder q = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        q.append('\\').append(c);
+      else if (c == '\n')
+        q.append("\\n");
+      else if (c == '\t')
+        q.append("\\t");
+      else if (c == '\r')
+        q.append("\\r");
+      else if (c < 0x20)
+        q.append(String.format("\\%03o", (int)c));
+      else if (c > 0x7e)
+        q.append(String.format("\\u%04x", (int)c));
+      else
+        q.append(c);
+    }
+    return q.append('"').toString();
+  }
+
+  // the Java code for a literal value token (same values as the VM)
+  private static String literal(Token value) {
+    if (value.type() == TokenType.INT_VAL)
+      return "Integer.valueOf(" + Integer.parseInt(value.lexeme()) + ")";
+    else if (value.type() == TokenType.DOUBLE_VAL)
+      return "Double.valueOf(" + Double.parseDouble(value.lexeme()) + ")";
+    else if (value.type() == TokenType.BOOL_VAL)
+      return "Boolean." + (value.lexeme().equals("true") ? "TRUE" : "FALSE");
+    else if (value.type() == TokenType.CHAR_VAL || value.type() == TokenType.STRING_VAL) {
+      String s = value.lexeme();
+      s = s.replace("\\n", "\n");
+      s = s.replace("\\t", "\t");
+      s = s.replace("\\r", "\r");
+      s = s.replace("\\\\", "\\");
+      return quote(s);
+    }
+    return "NIL";
+  }
+
+  // the runtime function for a binary operator
+  private static String operator(Token op) {
+    switch (op.type()) {
+    case PLUS: return "add";
+    case MINUS: return "sub";
+    case MULTIPLY: return "mul";
+    case DIVIDE: return "div";
+    case MODULO: return "mod";
+    case AND: return "and";
+    case OR: return "or";
+    case LESS_THAN: return "cmplt";
+    case LESS_THAN_EQUAL: return "cmple";
+    case GREATER_THAN: return "cmpgt";
+    case GREATER_THAN_EQUAL: return "cmpge";
+    case EQUAL: return "cmpeq";
+    case NOT_EQUAL: return "cmpne";
+    default: return "neg";
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (TypeDecl tdecl : node.tdecls)
+      typeDecls.put(tdecl.typeName.lexeme(), tdecl);
+    out.append("// Generated by the MyPL compiler\n\n");
+    out.append("public class " + className + " extends MyPLRuntime {\n\n");
+    out.append("  public static void main(String[] args) {\n");
+    out.append("    try {\n");
+    out.append("      runMain(() -> f_main());\n");
+    out.append("    } catch (MyPLException e) {\n");
+    out.append("      System.out.flush();\n");
+    out.append("      System.err.println(e.getMessage());\n");
+    out.append("      System.exit(1);\n");
+    out.append("    }\n");
+    out.append("  }\n");
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+    out.append("\n}\n");
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // Intentionally left blank -- fields are set up by new
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    varMap = new HashMap<>();
+    currVarIndex = 0;
+    tempCount = 0;
+    body = new StringBuilder();
+    indent = "  ";
+    String params = "";
+    for (FunParam param : node.params) {
+      varMap.put(param.paramName.lexeme(), currVarIndex);
+      params += (currVarIndex > 0 ? ", " : "") + "Object " + var(currVarIndex);
+      currVarIndex++;
+    }
+    visitStmts(node.stmts);
+    out.append("\n  static Object f_" + node.funName.lexeme() + "(" + params +
+               ") throws MyPLException {\n");
+    for (int i = node.params.size(); i < currVarIndex; ++i)
+      out.append("    Object " + var(i) + " = NIL;\n");
+    out.append(body);
+    // the same as the VM when the function doesn't end in a return
+    out.append("    return \"nil\";\n");
+    out.append("  }\n");
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    String value = expr(node.expr);
+    varMap.put(node.varName.lexeme(), currVarIndex);
+    line(var(currVarIndex) + " = " + value + ";");
+    currVarIndex++;
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    String value = expr(node.expr);
+    String target = var(varMap.get(node.lvalue.get(0).lexeme()));
+    if (node.lvalue.size() == 1) {
+      line(target + " = " + value + ";");
+      return;
+    }
+    // the value is computed before the path (as in the VM)
+    String temp = "t" + tempCount++;
+    line("{");
+    line("  Object " + temp + " = " + value + ";");
+    for (int i = 1; i < node.lvalue.size() - 1; ++i)
+      target = "getField(" + target + ", " + quote(node.lvalue.get(i).lexeme()) + ")";
+    String field = node.lvalue.get(node.lvalue.size() - 1).lexeme();
+    line("  setField(" + target + ", " + quote(field) + ", " + temp + ");");
+    line("}");
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    line("if (isTrue(" + expr(node.ifPart.cond) + ")) {");
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      line("} else if (isTrue(" + expr(elif.cond) + ")) {");
+      visitStmts(elif.stmts);
+    }
+    if (node.elseStmts != null && node.elseStmts.size() > 0) {
+      line("} else {");
+      visitStmts(node.elseStmts);
+    }
+    line("}");
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    line("while (isTrue(" + expr(node.cond) + ")) {");
+    visitStmts(node.stmts);
+    line("}");
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    String start = expr(node.start);
+    int index = currVarIndex++;
+    varMap.put(node.varName.lexeme(), index);
+    line(var(index) + " = " + start + ";");
+    String test = node.upto ? "cmple" : "cmpge";
+    line("while (isTrue(" + test + "(" + var(index) + ", " + expr(node.end) + "))) {");
+    visitStmts(node.stmts);
+    String step = node.upto ? "add" : "sub";
+    line("  " + var(index) + " = " + step + "(" + var(index) + ", Integer.valueOf(1));");
+    line("}");
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    String value = node.expr != null ? expr(node.expr) : "\"nil\"";
+    // (if keeps any statements after the return reachable for javac)
+    line("if (true) return " + value + ";");
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    line("free(" + var(varMap.get(node.varName.lexeme())) + ");");
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    String funName = node.funName.lexeme();
+    String args = "";
+    for (Expr arg : node.args)
+      args += (args.isEmpty() ? "" : ", ") + expr(arg);
+    if (funName.equals("print"))
+      expr = "write(" + args + ")";
+    else if (funName.equals("read"))
+      expr = "read()";
+    else if (funName.equals("length"))
+      expr = "len(" + args + ")";
+    else if (funName.equals("get"))
+      expr = "getchr(" + args + ")";
+    else if (funName.equals("stoi") || funName.equals("dtoi"))
+      expr = "toint(" + args + ")";
+    else if (funName.equals("stod") || funName.equals("itod"))
+      expr = "todbl(" + args + ")";
+    else if (funName.equals("itos") || funName.equals("dtos"))
+      expr = "tostr(" + args + ")";
+    else
+      expr = "f_" + funName + "(" + args + ")";
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    expr = literal(node.value);
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    TypeDecl tdecl = typeDecls.get(node.typeName.lexeme());
+    String fields = "";
+    for (VarDeclStmt vdecl : tdecl.vdecls)
+      fields += ", " + quote(vdecl.varName.lexeme());
+    String code = "alloc(" + fields.substring(Math.min(2, fields.length())) + ")";
+    for (VarDeclStmt vdecl : tdecl.vdecls)
+      code = "initField(" + code + ", " + quote(vdecl.varName.lexeme()) + ", " +
+        expr(vdecl.expr) + ")";
+    expr = code;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    String code = var(varMap.get(node.path.get(0).lexeme()));
+    for (int i = 1; i < node.path.size(); ++i)
+      code = "getField(" + code + ", " + quote(node.path.get(i).lexeme()) + ")";
+    expr = code;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    expr = "neg(" + expr(node.expr) + ")";
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    String code = expr;
+    if (node.op != null)
+      code = operator(node.op) + "(" + code + ", " + expr(node.rest) + ")";
+    if (node.logicallyNegated)
+      code = "not(" + code + ")";
+    expr = code;
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
@@ -22,6 +22,9 @@ public class Lexer {
   private Token returnToken;
   private StringBuilder lexeme;
   private boolean whitespaceTrue;
+  private int tokenCount = 0;    // tokens returned (not counting end-of-file)
+  private long lexNanos = 0;     // time spent finding them
+  private boolean timing = false; // true to measure lexNanos
 
 
   //--------------------------------------------------------------------
@@ -109,6 +112,36 @@ public class Lexer {
 
   // Returns next token in input stream
   public Token nextToken() throws MyPLException {
+    Token t;
+    if (timing) {
+      long start = System.nanoTime();
+      t = scanToken();
+      lexNanos += System.nanoTime() - start;
+    }
+    else
+      t = scanToken();
+    if (t.type() != TokenType.EOS)
+      ++tokenCount;
+    return t;
+  }
+
+  // turn on/off timing the tokens found (by default off)
+  public void setTiming(boolean timing) {
+    this.timing = timing;
+  }
+
+  // the number of tokens returned so far (not counting end-of-file)
+  public int tokenCount() {
+    return tokenCount;
+  }
+
+  // the time spent finding the tokens returned so far (while timing)
+  public long lexNanos() {
+    return lexNanos;
+  }
+
+  // finds the next token
+  private Token scanToken() throws MyPLException {
     returnToken = null;
 
 
@@ -0,0 +1,109 @@
+/*
+ * File: LineProfiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A VM listener that counts the instructions run for each
+ *       source line (using the frames' line tables) and estimates the
+ *       time spent on each line by sampling: every SAMPLE_PERIOD-th
+ *       instruction of a line is timed until the next instruction
+ *       starts (so a line's time doesn't include the functions it
+ *       calls). While it is attached the VM runs PCALLs sequentially,
+ *       so the counts are only updated by one thread.
+ */
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class LineProfiler implements VMListener {
+
+  // one in this many instructions of a line is timed
+  private static final int SAMPLE_PERIOD = 16;
+
+  // per source line (indexed by line number)
+  private long[] counts = new long[64];
+  private long[] sampledNanos = new long[64];
+  private long[] samples = new long[64];
+  private String[] funNames = new String[64];
+
+  // the line being timed (-1 if none) and when it started
+  private int timing = -1;
+  private long start = 0;
+
+
+  @Override
+  public boolean tracesInstructions() {
+    return true;
+  }
+
+  @Override
+  public void instruction(VMFrame frame, int pc, VMInstr instr) {
+    if (timing >= 0) {
+      sampledNanos[timing] += System.nanoTime() - start;
+      ++samples[timing];
+      timing = -1;
+    }
+    int line = frame.lines.line(pc);
+    if (line >= counts.length)
+      grow(line);
+    if (++counts[line] % SAMPLE_PERIOD == 0) {
+      funNames[line] = frame.functionName();
+      timing = line;
+      start = System.nanoTime();
+    }
+    else if (funNames[line] == null)
+      funNames[line] = frame.functionName();
+  }
+
+  // the number of instructions run for a source line
+  public long count(int line) {
+    return line < counts.length ? counts[line] : 0;
+  }
+
+  /**
+   * Prints, in line order, each line that ran: its function, the
+   * number of instructions run, and its estimated time (and share of
+   * the total), followed by the line's source text if given.
+   * @param out where to print the report
+   * @param source the program's source lines (or null)
+   */
+  public void report(PrintStream out, List<String> source) {
+    double[] estimates = new double[counts.length];
+    double total = 0;
+    long instructions = 0;
+    for (int line = 0; line < counts.length; ++line) {
+      if (samples[line] > 0)
+        estimates[line] = (double)sampledNanos[line] / samples[line] * counts[line];
+      total += estimates[line];
+      instructions += counts[line];
+    }
+    out.printf("Line profile (%d instructions, %.1f ms estimated)\n", instructions, total / 1e6);
+    out.printf("  %5s %-16s %14s %10s %7s\n", "line", "function", "instrs", "est. ms", "%");
+    for (int line = 0; line < counts.length; ++line) {
+      if (counts[line] == 0)
+        continue;
+      String name = funNames[line].length() > 16 ? funNames[line].substring(0, 16) : funNames[line];
+      out.printf("  %5s %-16s %14d %10.1f %6.2f%%", line == 0 ? "?" : "" + line, name,
+                 counts[line], estimates[line] / 1e6,
+                 total == 0 ? 0.0 : 100.0 * estimates[line] / total);
+      if (source != null && line > 0 && line <= source.size())
+        out.print("  " + source.get(line - 1).trim());
+      out.println();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // makes room for the counts of the given line
+  private void grow(int line) {
+    int size = Math.max(line + 1, counts.length * 2);
+    counts = Arrays.copyOf(counts, size);
+    sampledNanos = Arrays.copyOf(sampledNanos, size);
+    samples = Arrays.copyOf(samples, size);
+    funNames = Arrays.copyOf(funNames, size);
+  }
+
+}
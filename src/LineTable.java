@@ -0,0 +1,75 @@
+/*
+ * File: LineTable.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Maps a frame's instructions to the source positions they were
+ *       generated from. Only the first instruction of each run of
+ *       instructions with the same position is stored (like a class
+ *       file's line number table), and a position is found by binary
+ *       search.
+ */
+
+import java.util.Arrays;
+
+
+public class LineTable {
+
+  // entry i covers the instructions from startPcs[i] up to (but not
+  // including) startPcs[i+1]
+  private int[] startPcs = new int[8];
+  private int[] lines = new int[8];
+  private int[] columns = new int[8];
+  private int size = 0;
+
+
+  /**
+   * Sets the source position of the instruction at pc and the ones
+   * after it (replacing the positions of any from pc on).
+   * @param pc the instruction's index
+   * @param line the source line
+   * @param column the source column
+   */
+  public void add(int pc, int line, int column) {
+    while (size > 0 && startPcs[size - 1] >= pc)
+      --size;
+    if (size > 0 && lines[size - 1] == line && columns[size - 1] == column)
+      return;
+    if (size == startPcs.length) {
+      startPcs = Arrays.copyOf(startPcs, size * 2);
+      lines = Arrays.copyOf(lines, size * 2);
+      columns = Arrays.copyOf(columns, size * 2);
+    }
+    startPcs[size] = pc;
+    lines[size] = line;
+    columns[size] = column;
+    ++size;
+  }
+
+  // the source line of the instruction at pc (0 if unknown)
+  public int line(int pc) {
+    int i = entry(pc);
+    return i < 0 ? 0 : lines[i];
+  }
+
+  // the source column of the instruction at pc (0 if unknown)
+  public int column(int pc) {
+    int i = entry(pc);
+    return i < 0 ? 0 : columns[i];
+  }
+
+  // the number of entries in the table
+  public int size() {
+    return size;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the index of the entry covering pc (-1 if none)
+  private int entry(int pc) {
+    int i = Arrays.binarySearch(startPcs, 0, size, pc);
+    return i >= 0 ? i : -i - 2;
+  }
+
+}
@@ -12,9 +12,15 @@ import java.io.InputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import javax.management.JMException;
 
 public class MyPL {
 
@@ -26,9 +32,107 @@ public class MyPL {
       boolean printMode = false;
       boolean checkMode = false;
       boolean outIRMode = false;
-      int argCount = args.length;
       InputStream input = System.in;
 
+      // pull out the options that change how programs are compiled
+      // and run (these can be combined with a mode and a file)
+      List<String> argList = new ArrayList<>(Arrays.asList(args));
+      boolean parallelMode = argList.remove("--parallel");
+      String engineName = optionValue(argList, "--engine");
+      // (the engine flags are short for --engine name)
+      for (String name : List.of("jit", "closures", "registers", "traces", "ast"))
+        if (argList.remove("--" + name) && engineName == null)
+          engineName = name;
+      // profilers (attached to the VMs the engine runs)
+      List<VMListener> listeners = new ArrayList<>();
+      OpProfiler opProfiler = null;
+      if (argList.remove("--profile-ops"))
+        opProfiler = new OpProfiler(false);
+      if (argList.remove("--profile-ops-timed"))
+        opProfiler = new OpProfiler(true);
+      if (opProfiler != null)
+        listeners.add(opProfiler);
+      FunctionProfiler funProfiler = null;
+      if (argList.remove("--profile")) {
+        funProfiler = new FunctionProfiler();
+        listeners.add(funProfiler);
+      }
+      LineProfiler lineProfiler = null;
+      if (argList.remove("--profile-lines")) {
+        lineProfiler = new LineProfiler();
+        listeners.add(lineProfiler);
+      }
+      String sampleFile = optionValue(argList, "--sample");
+      String sampleInterval = optionValue(argList, "--sample-interval");
+      SamplingProfiler sampler = null;
+      if (sampleFile != null) {
+        sampler = new SamplingProfiler(sampleInterval == null ? 1000 :
+                                       Long.parseLong(sampleInterval));
+        listeners.add(sampler);
+      }
+      String traceFile = optionValue(argList, "--trace-out");
+      TraceEventWriter tracer = null;
+      FileWriter traceOut = null;
+      if (traceFile != null) {
+        traceOut = new FileWriter(traceFile);
+        tracer = new TraceEventWriter(traceOut);
+        listeners.add(tracer);
+      }
+      String heapSample = optionValue(argList, "--heap-sample");
+      HeapProfiler heapProfiler = null;
+      if (argList.remove("--heap-report")) {
+        heapProfiler = new HeapProfiler(heapSample == null ? 1 : Integer.parseInt(heapSample));
+        listeners.add(heapProfiler);
+      }
+      RunStats stats = null;
+      if (argList.remove("--stats")) {
+        stats = new RunStats();
+        listeners.add(stats);
+      }
+      if (argList.remove("--jfr"))
+        listeners.add(new JFRListener());
+      String coverageFile = optionValue(argList, "--coverage");
+      CoverageReport coverage = coverageFile == null ? null : new CoverageReport();
+      boolean jmx = argList.remove("--jmx");
+      // (parallel calls need generated code, and profiles, coverage,
+      // and the JMX counters need the VM's run loop)
+      if (engineName == null)
+        engineName = parallelMode || !listeners.isEmpty() || coverage != null || jmx ?
+          "vm" : Engines.DEFAULT;
+      RunStats runStats = stats;
+      HeapProfiler monitoredHeap = heapProfiler;
+      boolean profiling = funProfiler != null;
+      ExecutionEngine engine = Engines.create(engineName, parallelMode, vm -> {
+          for (VMListener l : listeners)
+            vm.addListener(l);
+          // (time waiting for a forked call would count as the
+          // caller's own)
+          if (profiling)
+            vm.setForkDepthLimit(0);
+          if (runStats != null)
+            runStats.add(vm);
+          if (coverage != null)
+            coverage.add(vm);
+          if (jmx) {
+            try {
+              VMMonitor monitor = new VMMonitor(vm);
+              monitor.setHeapProfiler(monitoredHeap);
+              monitor.register();
+            } catch (JMException e) {
+              System.err.println("WARNING: Unable to register the VM's MBean (" +
+                                 e.getMessage() + ")");
+            }
+          }
+        });
+      if (engine == null) {
+        System.err.println("ERROR: Unknown engine '" + engineName + "' (engines are " +
+                           String.join(", ", Engines.NAMES) + ")");
+        System.exit(1);
+      }
+      String compileFile = optionValue(argList, "--compile");
+      args = argList.toArray(new String[0]);
+      int argCount = args.length;
+
       // check for too many command line args
       if (argCount > 2) {
         displayUsageInfo();
@@ -66,6 +170,7 @@ public class MyPL {
       
       // create the lexer
       Lexer lexer = new Lexer(input);
+      lexer.setTiming(stats != null);
 
       // run in lexer mode
       if (lexerMode) {
@@ -104,19 +209,72 @@ public class MyPL {
         program.accept(checkVisitor);
         VM vm = new VM();
         CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+        genVisitor.setParallelCalls(parallelMode);
         program.accept(genVisitor);
-        System.out.println(vm);
+        if (engineName.equals("registers"))
+          System.out.println(new RegisterVM(vm));
+        else
+          System.out.println(vm);
+        if (genVisitor.removedFunctions().size() > 0)
+          System.out.println("Removed (unreachable from main): " +
+                             String.join(", ", genVisitor.removedFunctions()));
       }
       // run normally
       else {
+        // (the lexer runs as the parser asks for tokens)
+        phase(listeners, "parse", true);
         ASTParser parser = new ASTParser(lexer);
         Program program = parser.parse();
+        phase(listeners, "parse", false);
+        phase(listeners, "check", true);
         TypeInfo typeInfo = new TypeInfo();
         program.accept(new StaticChecker(typeInfo));
-        VM vm = new VM();
-        CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
-        program.accept(genVisitor);
-        vm.run();
+        phase(listeners, "check", false);
+        if (stats != null)
+          stats.frontEnd(lexer, program);
+        // compile to a jar (or Java source) instead of running
+        if (compileFile != null) {
+          AOTCompiler.compile(program, compileFile);
+          return;
+        }
+        // (profiles are reported even if the program fails)
+        if (sampler != null)
+          sampler.start();
+        boolean completed = false;
+        phase(listeners, "run", true);
+        try {
+          engine.run(program, typeInfo);
+          completed = true;
+        } finally {
+          phase(listeners, "run", false);
+          if (stats != null)
+            stats.report(System.err, completed);
+          if (tracer != null) {
+            tracer.close();
+            traceOut.close();
+          }
+          if (sampler != null) {
+            sampler.stop();
+            try (FileWriter out = new FileWriter(sampleFile)) {
+              sampler.write(out);
+            }
+          }
+          if (opProfiler != null)
+            opProfiler.report(System.err);
+          if (funProfiler != null)
+            funProfiler.report(System.err);
+          if (heapProfiler != null)
+            heapProfiler.report(System.err);
+          if (lineProfiler != null)
+            lineProfiler.report(System.err, argCount == 1 ?
+                                Files.readAllLines(Paths.get(args[0])) : null);
+          if (coverage != null) {
+            try (FileWriter out = new FileWriter(coverageFile)) {
+              coverage.write(out, argCount == 1 ? args[0] : "<stdin>");
+            }
+            coverage.summary(System.err);
+          }
+        }
       }
     }
     catch (MyPLException e) {
@@ -128,16 +286,93 @@ public class MyPL {
       System.err.println("ERROR: Unable to open file '" + args[i] + "'");
       System.exit(1);
     }
+    catch (IOException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  // tells the listeners a step of the compile and run started or
+  // ended
+  private static void phase(List<VMListener> listeners, String name, boolean start) {
+    for (VMListener l : listeners)
+      l.phase(name, start);
+  }
+
+  // removes an option that takes a value (and the value) from the
+  // arguments, returning the value (null if the option isn't given)
+  private static String optionValue(List<String> argList, String option) {
+    int i = argList.indexOf(option);
+    if (i < 0)
+      return null;
+    argList.remove(i);
+    if (i == argList.size()) {
+      displayUsageInfo();
+      System.exit(1);
+    }
+    return argList.remove(i);
   }
 
   private static void displayUsageInfo() {
-    System.out.println("Usage: ./mypl [flag] [script-file]");
+    System.out.println("Usage: ./mypl [options] [flag] [script-file]");
     System.out.println("Options:");
     System.out.println("  --lex      Display token information.");
     System.out.println("  --parse    Check for valid syntax.");
     System.out.println("  --print    Pretty print the program.");
     System.out.println("  --check    Statically check program.");
     System.out.println("  --ir       Print intermediate code.");
+    System.out.println("Run options:");
+    System.out.println("  --engine name");
+    System.out.println("             Run with the given engine:");
+    System.out.println("               vm: generate code and run it in the VM");
+    System.out.println("               mixed: walk the AST, compiling functions");
+    System.out.println("                 called more than once (the default)");
+    System.out.println("               ast: walk the AST only");
+    System.out.println("               jit: compile hot functions to JVM bytecode");
+    System.out.println("               traces: run hot loops as compiled traces");
+    System.out.println("               closures: run pre-compiled instruction handlers");
+    System.out.println("               registers: run register instructions (with");
+    System.out.println("                 --ir, print the register instructions)");
+    System.out.println("  --jit, --traces, --closures, --registers, --ast");
+    System.out.println("             Short for --engine with that name.");
+    System.out.println("  --parallel Run independent pure calls in parallel.");
+    System.out.println("Profiling options (reports go to stderr):");
+    System.out.println("  --profile  Time each function (calls, self, total).");
+    System.out.println("  --sample out.folded");
+    System.out.println("             Sample the call stack, writing folded");
+    System.out.println("             stacks (for flame graphs) to the file.");
+    System.out.println("  --sample-interval us");
+    System.out.println("             Time between samples (default 1000).");
+    System.out.println("  --profile-lines");
+    System.out.println("             Count instructions and estimate time per");
+    System.out.println("             source line.");
+    System.out.println("  --profile-ops");
+    System.out.println("             Count opcodes and opcode pairs and triples.");
+    System.out.println("  --profile-ops-timed");
+    System.out.println("             As --profile-ops, also timing opcodes.");
+    System.out.println("  --heap-report");
+    System.out.println("             Print the objects alive at exit by allocation");
+    System.out.println("             site, listing them as suspected leaks.");
+    System.out.println("  --heap-sample n");
+    System.out.println("             Track a random one in n allocations (default 1).");
+    System.out.println("  --stats    Print compile and run statistics (one line");
+    System.out.println("             of JSON).");
+    System.out.println("  --trace-out out.json");
+    System.out.println("             Write a timeline of the compile steps and");
+    System.out.println("             calls (Chrome trace event format).");
+    System.out.println("  --coverage out.info");
+    System.out.println("             Write the lines and branches run as an LCOV");
+    System.out.println("             tracefile (and print the totals).");
+    System.out.println("  --jfr      Emit Java Flight Recorder events for calls,");
+    System.out.println("             allocations, deletes, errors, and compile steps");
+    System.out.println("             (recorded when a recording is on).");
+    System.out.println("  --jmx      Publish live VM counters as a JMX MBean");
+    System.out.println("             (mypl:type=VM) for tools like jconsole (with");
+    System.out.println("             --heap-report, its heapReport operation");
+    System.out.println("             returns the heap profile so far).");
+    System.out.println("  --compile out.jar");
+    System.out.println("             Compile to a runnable jar (or to Java");
+    System.out.println("             source if the file ends in .java).");
   }
   
 }
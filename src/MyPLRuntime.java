@@ -0,0 +1,311 @@
+/*
+ * File: MyPLRuntime.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The runtime support for MyPL programs compiled to Java (see
+ *       JavaGenerator and AOTCompiler): nil, the heap of user-defined
+ *       type objects, the operators, and the built-in functions. Values
+ *       are represented the same way as in the VM (Integer, Double,
+ *       Boolean, String for strings and chars, and Integer object ids
+ *       starting at 1111). Only depends on MyPLException so it can be
+ *       shipped in a jar with the compiled program. Generated programs
+ *       extend this class so they can call its functions directly.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+
+public class MyPLRuntime {
+
+  /**
+   * For representing "nil" as a value
+   */
+  public static final String NIL = new String("nil");
+
+  // the heap (free store) accessible via object-id
+  private static Map<Integer,Map<String,Object>> heap = new HashMap<>();
+
+  // next available object-id
+  private static int objectId = 1111;
+
+  // the stack size of the thread the program runs on (the same as the
+  // AST interpreter's, so calls can nest as deeply)
+  private static final long STACK_SIZE = 1L << 30;
+
+  // a program's main function
+  public interface Main {
+    void run() throws MyPLException;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Errors
+  //----------------------------------------------------------------------
+
+  private static MyPLException error(String m) {
+    return MyPLException.VMError(m);
+  }
+
+  private static void ensureNotNil(Object v) throws MyPLException {
+    if (v == NIL)
+      throw error("Nil reference");
+  }
+
+
+  //----------------------------------------------------------------------
+  // Running
+  //----------------------------------------------------------------------
+
+  /**
+   * Runs a program's main function. Calls nest on the Java stack, so
+   * it runs on a thread with a large stack.
+   * @param main the main function
+   * @throws MyPLException the runtime error that stopped the program
+   *         (including calls nested too deeply)
+   */
+  public static void runMain(Main main) throws MyPLException {
+    Throwable[] error = new Throwable[1];
+    Thread runner = new Thread(null, () -> {
+        try {
+          main.run();
+        } catch (StackOverflowError e) {
+          error[0] = error("Calls nested too deeply");
+        } catch (MyPLException | RuntimeException | Error e) {
+          error[0] = e;
+        }
+      }, "mypl-main", STACK_SIZE);
+    runner.start();
+    try {
+      runner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw error("Interrupted");
+    }
+    if (error[0] instanceof MyPLException)
+      throw (MyPLException)error[0];
+    if (error[0] instanceof RuntimeException)
+      throw (RuntimeException)error[0];
+    if (error[0] instanceof Error)
+      throw (Error)error[0];
+  }
+
+
+  //----------------------------------------------------------------------
+  // Operators
+  //----------------------------------------------------------------------
+
+  public static Object add(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y + (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y + (Double)x;
+    return (String)y + (String)x;
+  }
+
+  public static Object sub(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y - (Integer)x;
+    return (Double)y - (Double)x;
+  }
+
+  public static Object mul(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y * (Integer)x;
+    return (Double)y * (Double)x;
+  }
+
+  public static Object div(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (int)y / (int)x;
+    return (double)y / (double)x;
+  }
+
+  public static Object mod(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    return (Integer)y % (Integer)x;
+  }
+
+  public static Object neg(Object x) throws MyPLException {
+    ensureNotNil(x);
+    if (x instanceof Integer)
+      return -1 * (Integer)x;
+    return -1 * (Double)x;
+  }
+
+  public static Object and(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    return (boolean)x && (boolean)y;
+  }
+
+  public static Object or(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    return (boolean)x || (boolean)y;
+  }
+
+  public static Object not(Object x) throws MyPLException {
+    ensureNotNil(x);
+    return !(boolean)x;
+  }
+
+  public static Object cmplt(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y < (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y < (Double)x;
+    return ((String)y).compareTo((String)x) < 0;
+  }
+
+  public static Object cmple(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y <= (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y <= (Double)x;
+    return ((String)y).compareTo((String)x) <= 0;
+  }
+
+  public static Object cmpgt(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y > (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y > (Double)x;
+    return ((String)y).compareTo((String)x) > 0;
+  }
+
+  public static Object cmpge(Object y, Object x) throws MyPLException {
+    ensureNotNil(x);
+    ensureNotNil(y);
+    if (x instanceof Integer)
+      return (Integer)y >= (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y >= (Double)x;
+    return ((String)y).compareTo((String)x) >= 0;
+  }
+
+  public static Object cmpeq(Object y, Object x) {
+    return x.equals(y);
+  }
+
+  public static Object cmpne(Object y, Object x) {
+    return !x.equals(y);
+  }
+
+  // the value of an if or loop condition
+  public static boolean isTrue(Object x) {
+    return (boolean)x;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Built-ins
+  //----------------------------------------------------------------------
+
+  public static Object write(Object x) {
+    System.out.print(x.toString());
+    return NIL;
+  }
+
+  public static Object read() {
+    Scanner s = new Scanner(System.in);
+    return s.nextLine();
+  }
+
+  public static Object len(Object x) {
+    return ((String)x).length();
+  }
+
+  public static Object getchr(Object y, Object x) throws MyPLException {
+    String s = (String)x;
+    int index = (int)y;
+    if (index >= s.length() || index < 0)
+      throw error("out of bounds in GETCHR");
+    return s.substring(index, index + 1);
+  }
+
+  public static Object toint(Object x) throws MyPLException {
+    if (x instanceof Double)
+      return (int)(double)x;
+    else if (x instanceof String) {
+      try {
+        return Integer.valueOf((String)x);
+      } catch(Exception e) {
+        throw error("nonDouble String");
+      }
+    }
+    return null;
+  }
+
+  public static Object todbl(Object x) throws MyPLException {
+    if (x instanceof Integer)
+      return Double.valueOf((int)x);
+    else if (x instanceof String) {
+      try {
+        return Double.valueOf((String)x);
+      } catch(Exception e) {
+        throw error("nonDouble String");
+      }
+    }
+    return null;
+  }
+
+  public static Object tostr(Object x) {
+    return x.toString();
+  }
+
+
+  //----------------------------------------------------------------------
+  // Heap
+  //----------------------------------------------------------------------
+
+  // create an object with the given (nil) fields, returning its oid
+  public static Object alloc(String... fields) {
+    Map<String,Object> fieldsMap = new HashMap<>();
+    for (String field : fields)
+      fieldsMap.put(field, NIL);
+    heap.put(objectId, fieldsMap);
+    return objectId++;
+  }
+
+  public static void free(Object oid) throws MyPLException {
+    ensureNotNil(oid);
+    heap.remove((int)oid);
+  }
+
+  public static void setField(Object oid, String field, Object val) {
+    heap.get((int)oid).put(field, val);
+  }
+
+  // set a field of a new object (for field initializers), returning
+  // the object
+  public static Object initField(Object oid, String field, Object val) {
+    setField(oid, field, val);
+    return oid;
+  }
+
+  public static Object getField(Object oid, String field) throws MyPLException {
+    try {
+      return heap.get((int)oid).get(field);
+    } catch(Exception e) {
+      throw error("Invalid heap access");
+    }
+  }
+
+}
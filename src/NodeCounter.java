@@ -0,0 +1,140 @@
+/*
+ * File: NodeCounter.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Counts the nodes of a program's AST (every node a visitor
+ *       visits, including type declarations and their fields).
+ */
+
+import java.util.List;
+
+
+public class NodeCounter implements Visitor {
+
+  private int count = 0;
+
+
+  // the number of nodes visited so far
+  public int count() {
+    return count;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    if (stmts == null)
+      return;
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    ++count;
+    for (TypeDecl tdecl : node.tdecls)
+      tdecl.accept(this);
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    ++count;
+    for (VarDeclStmt vdecl : node.vdecls)
+      vdecl.accept(this);
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    ++count;
+    visitStmts(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    ++count;
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    ++count;
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    ++count;
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    ++count;
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    ++count;
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    ++count;
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    ++count;
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    ++count;
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    ++count;
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    ++count;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    ++count;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    ++count;
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    ++count;
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    ++count;
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    ++count;
+    node.expr.accept(this);
+  }
+
+}
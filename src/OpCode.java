@@ -34,10 +34,14 @@ public enum OpCode {
   // jump
   JMP,          // jump to given instruction
   JMPF,         // pop x off stack, if x is false jump to instruction
+  SWITCH,       // pop x off stack, jump to x's instruction in the switch table
 
   // functions
   CALL,         // calls the function f
   VRET,         // pop x, exit from function passing back x
+  FORK,         // jump to instruction if calls can't run in parallel here
+  PCALL,        // calls pure functions f and g in parallel, push f's
+                // return value then g's
 
   // built-ins
   WRITE,        // pop x, write to stdout
@@ -0,0 +1,168 @@
+/*
+ * File: OpProfiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A VM listener that counts how often each opcode runs, and
+ *       each sequence of two and three opcodes run one after the other
+ *       in the same call (candidates for fused or specialized
+ *       instructions). It can also time opcodes by sampling: every
+ *       SAMPLE_PERIOD-th instruction is timed until the next one
+ *       starts. While it is attached the VM runs PCALLs sequentially,
+ *       so the counts are only updated by one thread.
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class OpProfiler implements VMListener {
+
+  // one in this many instructions is timed
+  private static final int SAMPLE_PERIOD = 16;
+
+  // the number of pairs and triples reported
+  private static final int TOP = 20;
+
+  private static final OpCode[] OPS = OpCode.values();
+  private static final int N = OPS.length;
+
+  private boolean timed;
+  private long[] counts = new long[N];
+  private long[] pairs = new long[N * N];
+  private long[] triples = new long[N * N * N];
+  private long[] sampledNanos = new long[N];
+  private long[] samples = new long[N];
+
+  // the last two opcodes run in the current call (-1 if none)
+  private int last = -1;
+  private int beforeLast = -1;
+
+  // the opcode being timed (-1 if none) and when it started
+  private int timing = -1;
+  private long start = 0;
+
+
+  /**
+   * Creates a profiler.
+   * @param timed true to also time opcodes (by sampling)
+   */
+  public OpProfiler(boolean timed) {
+    this.timed = timed;
+  }
+
+  @Override
+  public boolean tracesInstructions() {
+    return true;
+  }
+
+  @Override
+  public void instruction(VMFrame frame, int pc, VMInstr instr) {
+    int op = instr.opcode().ordinal();
+    if (timing >= 0) {
+      sampledNanos[timing] += System.nanoTime() - start;
+      ++samples[timing];
+      timing = -1;
+    }
+    long count = ++counts[op];
+    if (last >= 0) {
+      ++pairs[last * N + op];
+      if (beforeLast >= 0)
+        ++triples[(beforeLast * N + last) * N + op];
+    }
+    beforeLast = last;
+    last = op;
+    if (timed && count % SAMPLE_PERIOD == 0) {
+      timing = op;
+      start = System.nanoTime();
+    }
+  }
+
+  // (sequences don't span calls and returns)
+  @Override
+  public void call(VMFrame frame) {
+    last = beforeLast = -1;
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    last = beforeLast = -1;
+  }
+
+  // the number of times an opcode ran
+  public long count(OpCode op) {
+    return counts[op.ordinal()];
+  }
+
+  // the number of times one opcode ran right after another
+  public long count(OpCode first, OpCode second) {
+    return pairs[first.ordinal() * N + second.ordinal()];
+  }
+
+  /**
+   * Prints the opcodes by count (with their share of all instructions
+   * and, if timed, their estimated time), then the most frequent
+   * pairs and triples (with how many others were left out).
+   * @param out where to print the report
+   */
+  public void report(PrintStream out) {
+    long total = 0;
+    for (long c : counts)
+      total += c;
+    out.println("Opcode profile (" + total + " instructions)");
+    out.printf("  %-8s %14s %7s", "opcode", "count", "%");
+    if (timed)
+      out.printf(" %12s %8s", "est. ms", "ns/op");
+    out.println();
+    for (int op : byCount(counts)) {
+      out.printf("  %-8s %14d %6.2f%%", OPS[op], counts[op], 100.0 * counts[op] / total);
+      if (timed && samples[op] > 0) {
+        double nsPerOp = (double)sampledNanos[op] / samples[op];
+        out.printf(" %12.1f %8.1f", nsPerOp * counts[op] / 1e6, nsPerOp);
+      }
+      out.println();
+    }
+    out.println("Top pairs");
+    List<Integer> sorted = byCount(pairs);
+    for (int i : top(sorted))
+      out.printf("  %-17s %14d\n", OPS[i / N] + " " + OPS[i % N], pairs[i]);
+    omitted(out, sorted, pairs);
+    out.println("Top triples");
+    sorted = byCount(triples);
+    for (int i : top(sorted))
+      out.printf("  %-26s %14d\n", OPS[i / (N * N)] + " " + OPS[i / N % N] + " " + OPS[i % N],
+                 triples[i]);
+    omitted(out, sorted, triples);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the indexes of the non-zero counts, largest first
+  private static List<Integer> byCount(long[] counts) {
+    List<Integer> indexes = new ArrayList<>();
+    for (int i = 0; i < counts.length; ++i)
+      if (counts[i] > 0)
+        indexes.add(i);
+    indexes.sort((i, j) -> Long.compare(counts[j], counts[i]));
+    return indexes;
+  }
+
+  // the first (at most TOP) of the sorted indexes
+  private static List<Integer> top(List<Integer> sorted) {
+    return sorted.subList(0, Math.min(TOP, sorted.size()));
+  }
+
+  // prints how many of the sorted indexes were left out of the report
+  // and how many times they ran in all
+  private static void omitted(PrintStream out, List<Integer> sorted, long[] counts) {
+    if (sorted.size() <= TOP)
+      return;
+    long runs = 0;
+    for (int i : sorted.subList(TOP, sorted.size()))
+      runs += counts[i];
+    out.printf("  (%d more not shown, run %d times in all)\n", sorted.size() - TOP, runs);
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * File: PurityAnalysis.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Finds the side-effect-free (pure) user-defined functions of a
+ *       checked program. A function is pure if it does no I/O (print
+ *       or read), never touches the heap (new, delete, or paths like
+ *       x.y), and only calls pure functions. Calls to pure functions
+ *       with the same arguments always return the same value.
+ */
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class PurityAnalysis implements Visitor {
+
+  // the program's call graph
+  private CallGraph callGraph = null;
+
+  // the functions that are pure
+  private Set<String> pure = new HashSet<>();
+
+  // the function currently being visited and whether it is pure so
+  // far (ignoring the functions it calls)
+  private String currFunName = null;
+  private boolean currPure = true;
+
+
+  //----------------------------------------------------------------------
+  // Constructor
+  //----------------------------------------------------------------------
+
+  public PurityAnalysis(CallGraph callGraph) {
+    this.callGraph = callGraph;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // ACCESSORS
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns true if the given user-defined function is pure. Only
+   * valid after the analysis has visited the program (the call graph
+   * must already be built).
+   * @param funName the name of the function
+   */
+  public boolean isPure(String funName) {
+    return pure.contains(funName);
+  }
+
+  // the set of pure functions
+  public Set<String> pureFunctions() {
+    return pure;
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+    // remove functions that (directly or indirectly) call an impure
+    // function until nothing changes
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (String funName : new HashSet<>(pure)) {
+        for (String callee : callGraph.callees(funName)) {
+          if (!pure.contains(callee)) {
+            pure.remove(funName);
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    currFunName = node.funName.lexeme();
+    currPure = true;
+    visitStmts(node.stmts);
+    if (currPure)
+      pure.add(currFunName);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    if (node.lvalue.size() > 1)
+      currPure = false;
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    currPure = false;
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    String funName = node.funName.lexeme();
+    if (StaticChecker.isImpureBuiltIn(funName))
+      currPure = false;
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    currPure = false;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    if (node.path.size() > 1)
+      currPure = false;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
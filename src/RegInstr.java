@@ -0,0 +1,104 @@
+/*
+ * File: RegInstr.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A register instruction (see RegOpCode). Each instruction
+ *       reads and writes numbered registers of the current call
+ *       instead of an operand stack, e.g., ADD r3, r1, r2. Also keeps
+ *       the index of the stack instruction it came from so runtime
+ *       errors are reported the same way as by the VM.
+ */
+
+
+public class RegInstr {
+
+  private RegOpCode opcode;
+  private int dst;
+  private int a;
+  private int b;
+  private Object operand;
+  private int origin;
+
+
+  public RegInstr(RegOpCode opcode, int dst, int a, int b, Object operand, int origin) {
+    this.opcode = opcode;
+    this.dst = dst;
+    this.a = a;
+    this.b = b;
+    this.operand = operand;
+    this.origin = origin;
+  }
+
+  public RegOpCode opcode() {
+    return opcode;
+  }
+
+  // the register written
+  public int dst() {
+    return dst;
+  }
+
+  public void updateDst(int dst) {
+    this.dst = dst;
+  }
+
+  // the first register read (or the jump target of JMP)
+  public int a() {
+    return a;
+  }
+
+  public void updateA(int a) {
+    this.a = a;
+  }
+
+  // the second register read (the jump target of JMPF, the number of
+  // arguments of CALL)
+  public int b() {
+    return b;
+  }
+
+  public void updateB(int b) {
+    this.b = b;
+  }
+
+  // the function name, field name(s), or switch table
+  public Object operand() {
+    return operand;
+  }
+
+  public void updateOperand(Object operand) {
+    this.operand = operand;
+  }
+
+  // the index of the VM instruction this instruction came from
+  public int origin() {
+    return origin;
+  }
+
+  public String toString() {
+    String op = opcode.toString();
+    switch (opcode) {
+    case MOVE: case NEG: case NOT: case LEN: case TOINT: case TODBL: case TOSTR:
+      return op + " r" + dst + ", r" + a;
+    case JMP:
+      return op + " " + a;
+    case JMPF:
+      return op + " r" + a + ", " + b;
+    case SWITCH: case RET: case WRITE: case FREE:
+      return op + " r" + a;
+    case CALL:
+      return op + " r" + dst + ", " + operand + "(" + b + " args from r" + a + ")";
+    case READ:
+      return op + " r" + dst;
+    case ALLOC:
+      return op + " r" + dst + ", " + operand;
+    case SETFLD:
+      return op + " r" + a + "." + operand + ", r" + b;
+    case GETFLD:
+      return op + " r" + dst + ", r" + a + "." + operand;
+    default:
+      return op + " r" + dst + ", r" + a + ", r" + b;
+    }
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * File: RegOpCode.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Opcodes of the register instructions (see RegInstr) and their
+ *       semantics. r[x] is register x of the current call; d, a, and
+ *       b are the instruction's register fields.
+ */
+
+
+public enum RegOpCode {
+
+  // moves
+  MOVE,         // r[d] = r[a]
+
+  // ops
+  ADD,          // r[d] = r[a] + r[b]
+  SUB,          // r[d] = r[a] - r[b]
+  MUL,          // r[d] = r[a] * r[b]
+  DIV,          // r[d] = r[a] / r[b]
+  MOD,          // r[d] = r[a] % r[b]
+  AND,          // r[d] = r[a] and r[b]
+  OR,           // r[d] = r[a] or r[b]
+  NOT,          // r[d] = not r[a]
+  CMPLT,        // r[d] = r[a] < r[b]
+  CMPLE,        // r[d] = r[a] <= r[b]
+  CMPGT,        // r[d] = r[a] > r[b]
+  CMPGE,        // r[d] = r[a] >= r[b]
+  CMPEQ,        // r[d] = r[a] == r[b]
+  CMPNE,        // r[d] = r[a] != r[b]
+  NEG,          // r[d] = -r[a]
+
+  // jumps
+  JMP,          // jump to instruction a
+  JMPF,         // if r[a] is false jump to instruction b
+  SWITCH,       // jump to r[a]'s instruction in the switch table
+
+  // functions
+  CALL,         // call function f with the b arguments starting at
+                // r[a], r[d] = the return value
+  RET,          // exit from function passing back r[a]
+
+  // built-ins
+  WRITE,        // write r[a] to stdout
+  READ,         // r[d] = line read from stdin
+  LEN,          // r[d] = r[a].length()
+  GETCHR,       // r[d] = r[b].substring(r[a], r[a]+1)
+  TOINT,        // r[d] = r[a] as an integer
+  TODBL,        // r[d] = r[a] as a double
+  TOSTR,        // r[d] = r[a].toString()
+
+  // heap
+  ALLOC,        // allocate obj w/ atts-list, r[d] = oid
+  FREE,         // deallocate object with oid r[a]
+  SETFLD,       // set field f: obj(r[a]).f = r[b]
+  GETFLD        // get field f: r[d] = obj(r[a]).f
+
+}
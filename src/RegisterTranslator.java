@@ -0,0 +1,390 @@
+/*
+ * File: RegisterTranslator.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Translates the stack instructions of one VM frame into
+ *       register instructions (see RegInstr). Registers are laid out
+ *       as the variables, then one register per operand stack slot
+ *       (plus a scratch register), then one register per constant.
+ *       The operand stack is tracked at translation time: PUSH, LOAD,
+ *       DUP, SWAP, POP, and NOP only change which register each stack
+ *       slot stands for, values are copied into their slot's register
+ *       only where needed (before jumps, calls, and jump targets), and
+ *       a STORE right after the instruction computing its value
+ *       becomes that instruction's destination. Stack heights come
+ *       from StackAnalysis so functions whose height differs between
+ *       paths can't be translated.
+ */
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+
+public class RegisterTranslator {
+
+  private VMFrame frame;
+  private ToIntFunction<String> argCounts;
+
+  // register layout: variables from 0, stack slots from stackBase (the
+  // scratch register is right after the last slot), constants from
+  // constBase
+  private int numVars = 0;
+  private int stackBase = 0;
+  private int scratch = 0;
+  private int constBase = 0;
+
+  // the constants (by identity) and their order
+  private List<Object> consts = new ArrayList<>();
+  private Map<Object,Integer> constIndex = new IdentityHashMap<>();
+
+  // the register instructions, and the first register instruction of
+  // each stack instruction
+  private List<RegInstr> code = new ArrayList<>();
+  private int[] labels;
+
+  // the register each operand stack slot stands for (slot i is "in
+  // place" if it is stackBase + i)
+  private int[] vstack;
+  private int size = 0;
+
+  // the index of the instruction that computed the top of the stack
+  // into its slot (-1 if there isn't one)
+  private int lastProducer = -1;
+
+  // true if the first instructions store the arguments to the first
+  // variables (calls then pass arguments straight to the variables)
+  private boolean argsInVars = false;
+
+
+  /**
+   * Creates a translator for one function.
+   * @param frame the function's (template) frame
+   * @param argCounts the number of arguments of each function called
+   *        (-1 if there's no such function)
+   */
+  public RegisterTranslator(VMFrame frame, ToIntFunction<String> argCounts) {
+    this.frame = frame;
+    this.argCounts = argCounts;
+  }
+
+  /**
+   * Translates the function.
+   * @return false if the function can't be translated
+   */
+  public boolean translate() {
+    StackAnalysis analysis = new StackAnalysis(frame, argCounts);
+    if (!analysis.isValid())
+      return false;
+    numVars = Math.max(analysis.numVars(), frame.argCount());
+    stackBase = numVars;
+    scratch = stackBase + analysis.maxDepth();
+    constBase = scratch + 1;
+    vstack = new int[analysis.maxDepth() + 1];
+
+    List<VMInstr> instrs = frame.instructions;
+    int n = instrs.size();
+    labels = new int[n];
+    int start = 0;
+    argsInVars = storesArgs(analysis);
+    if (argsInVars)
+      start = frame.argCount();
+
+    // live is false after an instruction that never falls through
+    boolean live = false;
+    for (int pc = 0; pc < n; ++pc) {
+      labels[pc] = code.size();
+      int depth = analysis.depth(pc);
+      if (depth == -1 || pc < start) {
+        live = false;
+        continue;
+      }
+      if (analysis.isTarget(pc) || !live) {
+        if (live)
+          materializeAll();
+        for (size = 0; size < depth; ++size)
+          vstack[size] = slot(size);
+        lastProducer = -1;
+        labels[pc] = code.size();
+      }
+      live = translate(pc, instrs.get(pc));
+    }
+
+    // fill in the jump targets
+    for (RegInstr instr : code) {
+      if (instr.opcode() == RegOpCode.JMP)
+        instr.updateA(labels[instr.a()]);
+      else if (instr.opcode() == RegOpCode.JMPF)
+        instr.updateB(labels[instr.b()]);
+      else if (instr.opcode() == RegOpCode.SWITCH) {
+        SwitchTable old = (SwitchTable)instr.operand();
+        SwitchTable table = new SwitchTable();
+        for (Map.Entry<Object,Integer> e : old.targets().entrySet())
+          table.add(e.getKey(), labels[e.getValue()]);
+        table.setDefault(labels[old.defaultTarget()]);
+        table.build();
+        instr.updateOperand(table);
+      }
+    }
+    return true;
+  }
+
+  public List<RegInstr> instructions() {
+    return code;
+  }
+
+  // the registers a call starts with: nil variables and stack slots
+  // followed by the constants
+  public Object[] registers() {
+    Object[] regs = new Object[constBase + consts.size()];
+    for (int i = 0; i < constBase; ++i)
+      regs[i] = VM.NIL_OBJ;
+    for (int i = 0; i < consts.size(); ++i)
+      regs[constBase + i] = consts.get(i);
+    return regs;
+  }
+
+  // true if arguments go to the first variables (otherwise to the stack
+  // slots, first argument on top, as in the VM)
+  public boolean argsInVars() {
+    return argsInVars;
+  }
+
+  // the first stack slot register
+  public int stackBase() {
+    return stackBase;
+  }
+
+  public String toString() {
+    String s = frame.functionName() + ": " + numVars + " vars, " +
+      (constBase - stackBase - 1) + " stack slots, consts";
+    for (int i = 0; i < consts.size(); ++i)
+      s += " r" + (constBase + i) + "=" + consts.get(i);
+    s = s.replace("\n", "\\n") + "\n";
+    for (int i = 0; i < code.size(); ++i)
+      s += "  " + i + ": " + code.get(i).toString().replace("\n", "\\n") + "\n";
+    return s;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // translates one stack instruction, returning false if it never
+  // falls through to the next one
+  private boolean translate(int pc, VMInstr instr) {
+    Object operand = instr.operand();
+    switch (instr.opcode()) {
+    case PUSH:
+      push(constant(operand));
+      break;
+    case POP:
+      pop();
+      break;
+    case LOAD:
+      push((int)operand);
+      break;
+    case STORE:
+      store((int)operand);
+      break;
+    case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+    case CMPLT: case CMPLE: case CMPGT: case CMPGE: case CMPEQ: case CMPNE:
+    case GETCHR: {
+      int x = pop();
+      int y = pop();
+      produce(RegOpCode.valueOf(instr.opcode().name()), y, x, null, pc);
+      break;
+    }
+    case NEG: case NOT: case LEN: case TOINT: case TODBL: case TOSTR:
+      produce(RegOpCode.valueOf(instr.opcode().name()), pop(), 0, null, pc);
+      break;
+    case GETFLD:
+      produce(RegOpCode.GETFLD, pop(), 0, operand, pc);
+      break;
+    case READ:
+      produce(RegOpCode.READ, 0, 0, null, pc);
+      break;
+    case ALLOC:
+      produce(RegOpCode.ALLOC, 0, 0, operand, pc);
+      break;
+    case WRITE:
+      emit(RegOpCode.WRITE, 0, pop(), 0, null, pc);
+      break;
+    case FREE:
+      emit(RegOpCode.FREE, 0, pop(), 0, null, pc);
+      break;
+    case SETFLD: {
+      int val = pop();
+      emit(RegOpCode.SETFLD, 0, pop(), val, operand, pc);
+      break;
+    }
+    case JMP: case FORK:
+      // (PCALLs always take the sequential version)
+      materializeAll();
+      emit(RegOpCode.JMP, 0, (int)operand, 0, null, pc);
+      return false;
+    case JMPF: {
+      int x = pop();
+      materializeAll();
+      emit(RegOpCode.JMPF, 0, x, (int)operand, null, pc);
+      break;
+    }
+    case SWITCH: {
+      int x = pop();
+      materializeAll();
+      emit(RegOpCode.SWITCH, 0, x, 0, operand, pc);
+      return false;
+    }
+    case CALL: {
+      int args = argCounts.applyAsInt(operand.toString());
+      int first = size - args;
+      for (int i = first; i < size; ++i)
+        materialize(i);
+      size = first;
+      produce(RegOpCode.CALL, slot(first), args, operand, pc);
+      break;
+    }
+    case PCALL: {
+      // never reached (the FORK before it always jumps), so only the
+      // stack is tracked
+      List<String> funNames = VMInstr.names(operand);
+      size -= argCounts.applyAsInt(funNames.get(0)) + argCounts.applyAsInt(funNames.get(1));
+      push(slot(size));
+      push(slot(size));
+      break;
+    }
+    case VRET:
+      emit(RegOpCode.RET, 0, pop(), 0, null, pc);
+      return false;
+    case DUP:
+      push(vstack[size - 1]);
+      break;
+    case SWAP:
+      swap();
+      break;
+    default:
+      // NOP
+      break;
+    }
+    return true;
+  }
+
+  // true if the function starts by storing its arguments in order
+  // (STORE 0, STORE 1, ...) with no jumps into those instructions
+  private boolean storesArgs(StackAnalysis analysis) {
+    List<VMInstr> instrs = frame.instructions;
+    int n = frame.argCount();
+    if (instrs.size() <= n)
+      return false;
+    for (int i = 0; i < n; ++i) {
+      VMInstr instr = instrs.get(i);
+      if (instr.opcode() != OpCode.STORE || (int)instr.operand() != i ||
+          analysis.isTarget(i))
+        return false;
+    }
+    return !analysis.isTarget(n) && analysis.depth(n) == 0;
+  }
+
+  private int slot(int i) {
+    return stackBase + i;
+  }
+
+  private boolean isSlot(int reg) {
+    return reg >= stackBase && reg <= scratch;
+  }
+
+  // the register holding a constant
+  private int constant(Object value) {
+    Integer index = constIndex.get(value);
+    if (index == null) {
+      index = consts.size();
+      consts.add(value);
+      constIndex.put(value, index);
+    }
+    return constBase + index;
+  }
+
+  private void push(int reg) {
+    vstack[size++] = reg;
+  }
+
+  private int pop() {
+    return vstack[--size];
+  }
+
+  private void emit(RegOpCode op, int dst, int a, int b, Object operand, int pc) {
+    code.add(new RegInstr(op, dst, a, b, operand, pc));
+    lastProducer = -1;
+  }
+
+  // emits an instruction that computes a value into the next free
+  // stack slot and pushes that slot
+  private void produce(RegOpCode op, int a, int b, Object operand, int pc) {
+    emit(op, slot(size), a, b, operand, pc);
+    lastProducer = code.size() - 1;
+    push(slot(size));
+  }
+
+  // copies a stack slot's value into the slot's own register
+  private void materialize(int i) {
+    if (vstack[i] != slot(i)) {
+      emit(RegOpCode.MOVE, slot(i), vstack[i], 0, null, -1);
+      vstack[i] = slot(i);
+    }
+  }
+
+  private void materializeAll() {
+    for (int i = 0; i < size; ++i)
+      materialize(i);
+  }
+
+  private void store(int var) {
+    boolean computed = lastProducer == code.size() - 1 && lastProducer >= 0;
+    int x = pop();
+    // slots still standing for the variable need its old value
+    for (int i = 0; i < size; ++i) {
+      if (vstack[i] == var) {
+        materialize(i);
+        computed = false;
+      }
+    }
+    if (x == var)
+      return;
+    if (computed && x == slot(size))
+      code.get(code.size() - 1).updateDst(var);
+    else
+      emit(RegOpCode.MOVE, var, x, 0, null, -1);
+    lastProducer = -1;
+  }
+
+  private void swap() {
+    int x = vstack[size - 1];
+    int y = vstack[size - 2];
+    int i = size - 2;
+    if (!isSlot(x) && !isSlot(y)) {
+      vstack[i] = x;
+      vstack[i + 1] = y;
+    }
+    else if (!isSlot(x)) {
+      emit(RegOpCode.MOVE, slot(i + 1), y, 0, null, -1);
+      vstack[i] = x;
+      vstack[i + 1] = slot(i + 1);
+    }
+    else if (!isSlot(y)) {
+      emit(RegOpCode.MOVE, slot(i), x, 0, null, -1);
+      vstack[i] = slot(i);
+      vstack[i + 1] = y;
+    }
+    else {
+      emit(RegOpCode.MOVE, scratch, y, 0, null, -1);
+      emit(RegOpCode.MOVE, slot(i), x, 0, null, -1);
+      emit(RegOpCode.MOVE, slot(i + 1), scratch, 0, null, -1);
+      vstack[i] = slot(i);
+      vstack[i + 1] = slot(i + 1);
+    }
+  }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * File: RegisterVM.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: An alternative way to run a VM's program. At load time each
+ *       function is translated to register instructions (see
+ *       RegisterTranslator), which are then interpreted over an array
+ *       of registers per call instead of an operand stack. This runs
+ *       fewer (but larger) instructions than the stack VM. Values, the
+ *       heap, and runtime errors are the same as the VM's (see VMOps).
+ *       PCALLs always take their sequential version.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class RegisterVM {
+
+  // a translated function: its frame (for names and error messages),
+  // its instructions, the registers a call starts with, and the
+  // function each CALL instruction calls
+  private static class Function {
+    VMFrame template;
+    RegisterTranslator translation;
+    RegInstr[] code;
+    Object[] registers;
+    Function[] callees;
+    boolean argsInVars;
+    int stackBase;
+
+    Function(VMFrame template, RegisterTranslator translation) {
+      this.template = template;
+      this.translation = translation;
+      List<RegInstr> instrs = translation.instructions();
+      code = instrs.toArray(new RegInstr[0]);
+      registers = translation.registers();
+      callees = new Function[code.length];
+      argsInVars = translation.argsInVars();
+      stackBase = translation.stackBase();
+    }
+  }
+
+  // an active call of a function
+  private static class Frame {
+    Function function;
+    Object[] regs;
+    int pc = 0;
+    Frame caller;
+
+    Frame(Function function, Frame caller) {
+      this.function = function;
+      this.regs = function.registers.clone();
+      this.caller = caller;
+    }
+  }
+
+  // the VM whose program is run (and that holds the heap)
+  private VM vm;
+
+  private Map<String,Function> functions = new HashMap<>();
+
+
+  /**
+   * Creates a register VM for the functions of a VM, translating each
+   * function's instructions to register instructions.
+   * @param vm the VM holding the (generated) frames
+   */
+  public RegisterVM(VM vm) throws MyPLException {
+    this.vm = vm;
+    for (String funName : vm.functionNames()) {
+      VMFrame frame = vm.frame(funName);
+      RegisterTranslator translation = new RegisterTranslator(frame, this::argCount);
+      if (!translation.translate())
+        throw MyPLException.VMError("Can't translate function '" + funName + "' to registers");
+      functions.put(funName, new Function(frame, translation));
+    }
+    for (Function f : functions.values())
+      for (int i = 0; i < f.code.length; ++i)
+        if (f.code[i].opcode() == RegOpCode.CALL)
+          f.callees[i] = functions.get(f.code[i].operand().toString());
+  }
+
+  /**
+   * Run the program (from main)
+   */
+  public void run() throws MyPLException {
+    if (!functions.containsKey("main"))
+      throw MyPLException.VMError("No 'main' function");
+    Frame f = new Frame(functions.get("main"), null);
+    Object[] r = f.regs;
+    RegInstr[] code = f.function.code;
+    VMFrame fn = f.function.template;
+    int pc = 0;
+
+    while (pc < code.length) {
+      RegInstr instr = code[pc++];
+      switch (instr.opcode()) {
+
+      case MOVE:
+        r[instr.dst()] = r[instr.a()];
+        break;
+
+      //------------------------------------------------------------
+      // Ops
+      //------------------------------------------------------------
+
+      case ADD:
+        r[instr.dst()] = VMOps.add(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case SUB:
+        r[instr.dst()] = VMOps.sub(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case MUL:
+        r[instr.dst()] = VMOps.mul(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case DIV:
+        r[instr.dst()] = VMOps.div(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case MOD:
+        r[instr.dst()] = VMOps.mod(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case NEG:
+        r[instr.dst()] = VMOps.neg(r[instr.a()], fn, instr.origin());
+        break;
+      case AND:
+        r[instr.dst()] = VMOps.and(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case OR:
+        r[instr.dst()] = VMOps.or(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case NOT:
+        r[instr.dst()] = VMOps.not(r[instr.a()], fn, instr.origin());
+        break;
+      case CMPLT:
+        r[instr.dst()] = VMOps.cmplt(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case CMPLE:
+        r[instr.dst()] = VMOps.cmple(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case CMPGT:
+        r[instr.dst()] = VMOps.cmpgt(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case CMPGE:
+        r[instr.dst()] = VMOps.cmpge(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case CMPEQ:
+        r[instr.dst()] = VMOps.cmpeq(r[instr.a()], r[instr.b()]);
+        break;
+      case CMPNE:
+        r[instr.dst()] = VMOps.cmpne(r[instr.a()], r[instr.b()]);
+        break;
+
+      //------------------------------------------------------------
+      // Jumps
+      //------------------------------------------------------------
+
+      case JMP:
+        pc = instr.a();
+        break;
+      case JMPF:
+        if (!VMOps.isTrue(r[instr.a()]))
+          pc = instr.b();
+        break;
+      case SWITCH:
+        pc = ((SwitchTable)instr.operand()).target(r[instr.a()]);
+        break;
+
+      //------------------------------------------------------------
+      // Functions
+      //------------------------------------------------------------
+
+      case CALL: {
+        Function callee = f.function.callees[pc - 1];
+        Frame c = new Frame(callee, f);
+        int first = instr.a();
+        int n = instr.b();
+        if (callee.argsInVars)
+          System.arraycopy(r, first, c.regs, 0, n);
+        else
+          for (int i = 0; i < n; ++i)
+            c.regs[callee.stackBase + i] = r[first + n - 1 - i];
+        f.pc = pc;
+        f = c;
+        r = f.regs;
+        code = callee.code;
+        fn = callee.template;
+        pc = 0;
+        break;
+      }
+      case RET: {
+        Object x = r[instr.a()];
+        f = f.caller;
+        if (f == null)
+          return;
+        pc = f.pc;
+        r = f.regs;
+        code = f.function.code;
+        fn = f.function.template;
+        r[code[pc - 1].dst()] = x;
+        break;
+      }
+
+      //------------------------------------------------------------
+      // Built-ins
+      //------------------------------------------------------------
+
+      case WRITE:
+        VMOps.write(r[instr.a()]);
+        break;
+      case READ:
+        r[instr.dst()] = VMOps.read();
+        break;
+      case LEN:
+        r[instr.dst()] = VMOps.len(r[instr.a()]);
+        break;
+      case GETCHR:
+        r[instr.dst()] = VMOps.getchr(r[instr.a()], r[instr.b()], fn, instr.origin());
+        break;
+      case TOINT:
+        r[instr.dst()] = VMOps.toint(r[instr.a()], fn, instr.origin());
+        break;
+      case TODBL:
+        r[instr.dst()] = VMOps.todbl(r[instr.a()], fn, instr.origin());
+        break;
+      case TOSTR:
+        r[instr.dst()] = VMOps.tostr(r[instr.a()]);
+        break;
+
+      //------------------------------------------------------------
+      // Heap related
+      //------------------------------------------------------------
+
+      case ALLOC:
+        r[instr.dst()] = vm.alloc(VMInstr.names(instr.operand()), fn, instr.origin());
+        break;
+      case FREE:
+        vm.free(r[instr.a()], fn, instr.origin());
+        break;
+      case SETFLD:
+        vm.setField(r[instr.a()], r[instr.b()], instr.operand().toString());
+        break;
+      case GETFLD:
+        r[instr.dst()] = vm.getField(r[instr.a()], instr.operand().toString(), fn,
+                                     instr.origin());
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the register instructions of each function (for printing)
+   */
+  public String toString() {
+    String s = "";
+    for (Function f : functions.values())
+      s += f.translation.toString();
+    return s;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the number of arguments of a function (-1 if there is no such
+  // function)
+  private int argCount(String funName) {
+    VMFrame frame = vm.frame(funName);
+    return frame == null ? -1 : frame.argCount();
+  }
+
+}
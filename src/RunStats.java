@@ -0,0 +1,168 @@
+/*
+ * File: RunStats.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Collects statistics of a compile and run: the time of each
+ *       step (lex, parse, check, codegen, run), the size of the
+ *       program (tokens, AST nodes, functions, and generated
+ *       instructions per function), and, as a VM listener, the
+ *       instructions run, the deepest call stack, and the most heap
+ *       objects alive at once. The statistics are written as one
+ *       line of JSON (for collecting from many runs).
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class RunStats implements VMListener {
+
+  // the total time of each step (in the order they first ran) and the
+  // start times of the steps running
+  private Map<String,Long> stepNanos = new LinkedHashMap<>();
+  private Map<String,Long> stepStarts = new HashMap<>();
+
+  // the program's size
+  private long tokens = 0;
+  private long lexNanos = 0;
+  private long astNodes = 0;
+  private long functions = 0;
+  private List<VM> vms = new ArrayList<>();
+
+  // the call depth of each thread, and the deepest seen
+  private ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+  private AtomicInteger maxDepth = new AtomicInteger();
+
+  // heap objects alive, and the most seen
+  private AtomicInteger objects = new AtomicInteger();
+  private AtomicInteger maxObjects = new AtomicInteger();
+
+
+  /**
+   * Records the size of the front end's output and the time spent
+   * lexing (which happens during the "parse" step, and is only
+   * measured if the lexer's timing is on).
+   * @param lexer the lexer the program was parsed from
+   * @param program the parsed program
+   */
+  public void frontEnd(Lexer lexer, Program program) throws MyPLException {
+    tokens = lexer.tokenCount();
+    lexNanos = lexer.lexNanos();
+    NodeCounter counter = new NodeCounter();
+    program.accept(counter);
+    astNodes = counter.count();
+    functions = program.fdecls.size();
+  }
+
+  /**
+   * Adds a VM whose generated code and executed instructions are
+   * counted.
+   * @param vm the VM
+   */
+  public synchronized void add(VM vm) {
+    vms.add(vm);
+  }
+
+  // (compile steps of a function, e.g. "codegen f", count towards the
+  // step, e.g. "codegen")
+  @Override
+  public synchronized void phase(String name, boolean start) {
+    int space = name.indexOf(' ');
+    String step = space < 0 ? name : name.substring(0, space);
+    long now = System.nanoTime();
+    if (start)
+      stepStarts.put(step, now);
+    else if (stepStarts.containsKey(step))
+      stepNanos.merge(step, now - stepStarts.remove(step), Long::sum);
+  }
+
+  @Override
+  public void call(VMFrame frame) {
+    int d = ++depth.get()[0];
+    if (d > maxDepth.get())
+      maxDepth.accumulateAndGet(d, Math::max);
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    int[] d = depth.get();
+    if (d[0] > 0)
+      --d[0];
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    depth.get()[0] = 0;
+  }
+
+  @Override
+  public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+    int n = objects.incrementAndGet();
+    if (n > maxObjects.get())
+      maxObjects.accumulateAndGet(n, Math::max);
+  }
+
+  @Override
+  public void free(VMFrame frame, int pc, Object oid) {
+    objects.decrementAndGet();
+  }
+
+  /**
+   * Writes the statistics as one line of JSON. The "run" step includes
+   * any code generated while running, and "parse" excludes lexing.
+   * @param out where to write the statistics
+   * @param completed false if the run failed
+   */
+  public synchronized void report(PrintStream out, boolean completed) {
+    Map<String,Long> steps = new LinkedHashMap<>();
+    if (stepNanos.containsKey("parse")) {
+      steps.put("lex", lexNanos);
+      steps.put("parse", stepNanos.get("parse") - lexNanos);
+    }
+    for (Map.Entry<String,Long> e : stepNanos.entrySet())
+      steps.putIfAbsent(e.getKey(), e.getValue());
+
+    Map<String,Integer> frames = new TreeMap<>();
+    long executed = 0;
+    for (VM vm : vms) {
+      for (String name : vm.functionNames())
+        frames.put(name, vm.frame(name).instructions.size());
+      executed += vm.instructionsExecuted();
+    }
+    long instructions = 0;
+    for (int n : frames.values())
+      instructions += n;
+
+    StringBuilder json = new StringBuilder("{\"completed\":" + completed);
+    json.append(",\"ms\":{");
+    String sep = "";
+    for (Map.Entry<String,Long> e : steps.entrySet()) {
+      json.append(sep).append('"').append(e.getKey()).append("\":")
+        .append(String.format(Locale.ROOT, "%.3f", e.getValue() / 1e6));
+      sep = ",";
+    }
+    json.append("},\"tokens\":").append(tokens)
+      .append(",\"astNodes\":").append(astNodes)
+      .append(",\"functions\":").append(functions)
+      .append(",\"instructions\":").append(instructions)
+      .append(",\"frameInstructions\":{");
+    sep = "";
+    for (Map.Entry<String,Integer> e : frames.entrySet()) {
+      json.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue());
+      sep = ",";
+    }
+    json.append("},\"executed\":").append(executed)
+      .append(",\"maxCallDepth\":").append(maxDepth.get())
+      .append(",\"maxHeapObjects\":").append(maxObjects.get())
+      .append('}');
+    out.println(json);
+  }
+
+}
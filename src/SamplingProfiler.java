@@ -0,0 +1,160 @@
+/*
+ * File: SamplingProfiler.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A sampling profiler. As a VM listener it publishes each
+ *       thread's current call chain (an immutable list of frames that
+ *       is replaced, never changed, on each call and return), and a
+ *       background thread reads the chains at a fixed interval while
+ *       the VM keeps running. Samples are written as folded stacks
+ *       (one "main;f;g;g@pc count" line per distinct stack, with the
+ *       running instruction as the top frame), the input format of
+ *       the usual flame graph tools.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class SamplingProfiler implements VMListener {
+
+  // a call in a call chain (the frame's pc is read while it runs)
+  private static class Call {
+    final VMFrame frame;
+    final Call caller;
+
+    Call(VMFrame frame, Call caller) {
+      this.frame = frame;
+      this.caller = caller;
+    }
+  }
+
+  // the published call chain of one thread (null when it is idle)
+  private static class Chain {
+    volatile Call top = null;
+  }
+
+  private long intervalNanos;
+
+  private ConcurrentLinkedQueue<Chain> chains = new ConcurrentLinkedQueue<>();
+  private ThreadLocal<Chain> chain = ThreadLocal.withInitial(() -> {
+      Chain c = new Chain();
+      chains.add(c);
+      return c;
+    });
+
+  // the number of samples of each folded stack (only used by the
+  // sampling thread until it stops)
+  private Map<String,Long> samples = new TreeMap<>();
+  private long sampleCount = 0;
+
+  private volatile boolean running = false;
+  private Thread sampler = null;
+
+
+  /**
+   * Creates a profiler.
+   * @param intervalMicros the time between samples (in microseconds)
+   */
+  public SamplingProfiler(long intervalMicros) {
+    this.intervalNanos = Math.max(1, intervalMicros) * 1000;
+  }
+
+  @Override
+  public void call(VMFrame frame) {
+    Chain c = chain.get();
+    c.top = new Call(frame, c.top);
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    Chain c = chain.get();
+    if (c.top != null)
+      c.top = c.top.caller;
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    chain.get().top = null;
+  }
+
+  /**
+   * Starts sampling (on a daemon thread).
+   */
+  public void start() {
+    running = true;
+    sampler = new Thread(() -> {
+        while (running) {
+          LockSupport.parkNanos(intervalNanos);
+          sample();
+        }
+      }, "mypl-sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  /**
+   * Stops sampling (waiting for the sampling thread to finish).
+   */
+  public void stop() {
+    running = false;
+    if (sampler == null)
+      return;
+    try {
+      sampler.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sampler = null;
+  }
+
+  // the number of samples taken (call after stop)
+  public long sampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Writes the samples as folded stacks (call after stop).
+   * @param out where to write the samples
+   */
+  public void write(Writer out) throws IOException {
+    PrintWriter writer = new PrintWriter(out);
+    for (Map.Entry<String,Long> e : samples.entrySet())
+      writer.println(e.getKey() + " " + e.getValue());
+    writer.flush();
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // records the current call chain of each running thread
+  private void sample() {
+    for (Chain c : chains) {
+      Call top = c.top;
+      if (top == null)
+        continue;
+      List<String> names = new ArrayList<>();
+      // (a frame's pc is one past the running instruction)
+      names.add(top.frame.functionName() + "@" + (top.frame.pc - 1));
+      for (Call call = top; call != null; call = call.caller)
+        names.add(call.frame.functionName());
+      StringBuilder folded = new StringBuilder();
+      for (int i = names.size() - 1; i >= 0; --i) {
+        folded.append(names.get(i));
+        if (i > 0)
+          folded.append(';');
+      }
+      samples.merge(folded.toString(), 1L, Long::sum);
+      ++sampleCount;
+    }
+  }
+
+}
@@ -9,6 +9,9 @@ public class SimpleRValue implements RValue {
 
   public Token value = null;
 
+  // the literal's value (cached by the AST interpreter)
+  public Object constant = null;
+
   @Override
   public void accept(Visitor visitor) throws MyPLException {
     visitor.visit(this);
@@ -0,0 +1,201 @@
+/*
+ * File: StackAnalysis.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Finds the operand stack height before each instruction of a
+ *       VM frame (by following every path from the first
+ *       instruction), plus the other facts translators of the stack
+ *       code need: the number of variables, the jump targets, and the
+ *       loop headers. Used by the JIT and the register translator,
+ *       which both need the height at each instruction to be the same
+ *       on every path.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.ToIntFunction;
+
+
+public class StackAnalysis {
+
+  private List<VMInstr> instrs;
+
+  // the number of arguments of a function (-1 if there's no such
+  // function)
+  private ToIntFunction<String> argCounts;
+
+  // operand stack height before each instruction (-1 if unreachable)
+  private int[] depth;
+  private int maxDepth = 0;
+  private int numVars = 0;
+  private int maxArgs = 0;
+
+  // the instructions jumped to, and the jump targets of loops (with
+  // an empty stack)
+  private Set<Integer> targets = new TreeSet<>();
+  private Set<Integer> loopHeaders = new TreeSet<>();
+
+  // false if the heights differ or an instruction is not supported
+  private boolean valid;
+
+
+  /**
+   * Analyzes a frame.
+   * @param frame the frame (function) to analyze
+   * @param argCounts the number of arguments of each function called
+   *        (-1 if there's no such function)
+   */
+  public StackAnalysis(VMFrame frame, ToIntFunction<String> argCounts) {
+    this.instrs = frame.instructions;
+    this.argCounts = argCounts;
+    valid = analyze(frame.argCount());
+  }
+
+  // true if the stack height is the same on every path to each
+  // instruction
+  public boolean isValid() {
+    return valid;
+  }
+
+  // the operand stack height before an instruction (-1 if unreachable)
+  public int depth(int pc) {
+    return depth[pc];
+  }
+
+  public int maxDepth() {
+    return maxDepth;
+  }
+
+  // the number of variables (one more than the largest LOAD or STORE
+  // index)
+  public int numVars() {
+    return numVars;
+  }
+
+  // the most arguments passed by a single CALL (or one call of a PCALL)
+  public int maxArgs() {
+    return maxArgs;
+  }
+
+  public boolean isTarget(int pc) {
+    return targets.contains(pc);
+  }
+
+  // backward jump targets where the stack is empty
+  public Set<Integer> loopHeaders() {
+    return loopHeaders;
+  }
+
+  /**
+   * Returns the instructions that can run after the instruction at pc
+   * (FORK is treated as possibly jumping).
+   */
+  public static List<Integer> successors(int pc, VMInstr instr) {
+    List<Integer> next = new ArrayList<>();
+    OpCode op = instr.opcode();
+    if (op == OpCode.JMP)
+      next.add((int)instr.operand());
+    else if (op == OpCode.JMPF || op == OpCode.FORK) {
+      next.add(pc + 1);
+      next.add((int)instr.operand());
+    }
+    else if (op == OpCode.SWITCH) {
+      SwitchTable table = (SwitchTable)instr.operand();
+      next.addAll(table.targets().values());
+      next.add(table.defaultTarget());
+    }
+    else if (op != OpCode.VRET)
+      next.add(pc + 1);
+    return next;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private boolean analyze(int argCount) {
+    int n = instrs.size();
+    depth = new int[n];
+    Arrays.fill(depth, -1);
+    if (n == 0)
+      return false;
+    depth[0] = argCount;
+    maxDepth = argCount;
+    Deque<Integer> todo = new ArrayDeque<>();
+    todo.push(0);
+    while (!todo.isEmpty()) {
+      int pc = todo.pop();
+      VMInstr instr = instrs.get(pc);
+      int[] effect = stackEffect(instr);
+      if (effect == null || depth[pc] < effect[0])
+        return false;
+      int d = depth[pc] - effect[0] + effect[1];
+      maxDepth = Math.max(maxDepth, d);
+      List<Integer> next = successors(pc, instr);
+      for (int target : next) {
+        if (target < 0 || target >= n)
+          return false;
+        if (depth[target] == -1) {
+          depth[target] = d;
+          todo.push(target);
+        }
+        else if (depth[target] != d)
+          return false;
+        if (instr.opcode() != OpCode.VRET && (target != pc + 1 || next.size() > 1 ||
+                                              instr.opcode() == OpCode.JMP))
+          targets.add(target);
+        if (instr.opcode() == OpCode.JMP && target <= pc && d == 0)
+          loopHeaders.add(target);
+      }
+    }
+    for (VMInstr instr : instrs)
+      if (instr.opcode() == OpCode.LOAD || instr.opcode() == OpCode.STORE)
+        numVars = Math.max(numVars, (int)instr.operand() + 1);
+    return true;
+  }
+
+  // the number of values an instruction pops and pushes (null if it
+  // isn't supported)
+  private int[] stackEffect(VMInstr instr) {
+    switch (instr.opcode()) {
+    case PUSH: case LOAD: case READ: case ALLOC:
+      return new int[] {0, 1};
+    case POP: case STORE: case WRITE: case FREE: case JMPF: case SWITCH: case VRET:
+      return new int[] {1, 0};
+    case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+    case CMPLT: case CMPLE: case CMPGT: case CMPGE: case CMPEQ: case CMPNE:
+    case GETCHR:
+      return new int[] {2, 1};
+    case NEG: case NOT: case LEN: case TOINT: case TODBL: case TOSTR: case GETFLD:
+      return new int[] {1, 1};
+    case SETFLD:
+      return new int[] {2, 0};
+    case DUP:
+      return new int[] {1, 2};
+    case SWAP:
+      return new int[] {2, 2};
+    case JMP: case FORK: case NOP:
+      return new int[] {0, 0};
+    case CALL: {
+      int args = argCounts.applyAsInt(instr.operand().toString());
+      maxArgs = Math.max(maxArgs, args);
+      return args < 0 ? null : new int[] {args, 1};
+    }
+    case PCALL: {
+      List<String> funNames = VMInstr.names(instr.operand());
+      int first = argCounts.applyAsInt(funNames.get(0));
+      int second = argCounts.applyAsInt(funNames.get(1));
+      maxArgs = Math.max(maxArgs, Math.max(first, second));
+      return first < 0 || second < 0 ? null : new int[] {first + second, 2};
+    }
+    default:
+      return null;
+    }
+  }
+
+}
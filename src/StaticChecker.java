@@ -11,6 +11,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 
 // NOTE: Some of the following are filled in, some partly filled in,
@@ -51,10 +52,21 @@ public class StaticChecker implements Visitor {
     return types;
   }
 
-  // return the build in function names
-  private List<String> getBuiltinFunctions() {
-    return Arrays.asList("print", "read", "length", "get", "stoi",
-                         "stod", "itos", "itod", "dtos", "dtoi");
+  // the built in functions, and whether each is pure (print and read
+  // do I/O)
+  private static final Map<String,Boolean> BUILT_INS =
+    Map.of("print", false, "read", false, "length", true, "get", true,
+           "stoi", true, "stod", true, "itos", true, "itod", true,
+           "dtos", true, "dtoi", true);
+
+  // check if given name is a built in function
+  public static boolean isBuiltIn(String funName) {
+    return BUILT_INS.containsKey(funName);
+  }
+
+  // check if given name is a built in function with side effects
+  public static boolean isImpureBuiltIn(String funName) {
+    return !BUILT_INS.getOrDefault(funName, true);
   }
   
   // check if given token is a valid function signature return type
@@ -136,7 +148,7 @@ public class StaticChecker implements Visitor {
     for (FunDecl fdecl : node.fdecls) {
       String funName = fdecl.funName.lexeme();
       // make sure not redefining built-in functions
-      if (getBuiltinFunctions().contains(funName)) {
+      if (isBuiltIn(funName)) {
         String m = "cannot redefine built in function " + funName;
         error(m, fdecl.funName);
       }
@@ -0,0 +1,101 @@
+/*
+ * File: SwitchTable.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Jump table used by the SWITCH instruction. Maps constant
+ *       (int or string) values to instruction indexes, with a default
+ *       index for values that are not in the table.
+ */
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class SwitchTable {
+
+  // the case values and their jump targets (in case order)
+  private Map<Object,Integer> targets = new LinkedHashMap<>();
+
+  // where to jump if the value is not in the table
+  private int defaultTarget = -1;
+
+  // dense table for int cases (null if the cases are strings or too
+  // spread out), indexed by (value - low)
+  private int[] dense = null;
+  private int low = 0;
+
+
+  /**
+   * Adds a case to the table. If the value is already in the table
+   * the first target is kept (matching an if-elif chain).
+   * @param value the (Integer or String) case value
+   * @param target the instruction index to jump to
+   */
+  public void add(Object value, int target) {
+    targets.putIfAbsent(value, target);
+    dense = null;
+  }
+
+  public void setDefault(int target) {
+    defaultTarget = target;
+  }
+
+  public int defaultTarget() {
+    return defaultTarget;
+  }
+
+  public Map<Object,Integer> targets() {
+    return targets;
+  }
+
+  /**
+   * Builds the dense (array) version of the table if all cases are
+   * ints within a small range. Must be called after the last add.
+   */
+  public void build() {
+    dense = null;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    for (Object value : targets.keySet()) {
+      if (!(value instanceof Integer))
+        return;
+      min = Math.min(min, (Integer)value);
+      max = Math.max(max, (Integer)value);
+    }
+    long range = (long)max - min + 1;
+    if (targets.isEmpty() || range > 2L * targets.size())
+      return;
+    int[] table = new int[(int)range];
+    Arrays.fill(table, -1);
+    for (Map.Entry<Object,Integer> e : targets.entrySet())
+      table[(Integer)e.getKey() - min] = e.getValue();
+    low = min;
+    dense = table;
+  }
+
+  /**
+   * Returns the instruction index to jump to for the given value.
+   */
+  public int target(Object value) {
+    if (dense != null && value instanceof Integer) {
+      long i = (long)(Integer)value - low;
+      if (i >= 0 && i < dense.length && dense[(int)i] != -1)
+        return dense[(int)i];
+      return defaultTarget;
+    }
+    Integer target = targets.get(value);
+    if (target == null)
+      return defaultTarget;
+    return target;
+  }
+
+  @Override
+  public String toString() {
+    String s = "{";
+    for (Map.Entry<Object,Integer> e : targets.entrySet())
+      s += e.getKey() + ": " + e.getValue() + ", ";
+    return s + "default: " + defaultTarget + "}";
+  }
+
+}
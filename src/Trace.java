@@ -0,0 +1,733 @@
+/*
+ * File: Trace.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: A loop iteration recorded by the Tracer, compiled into one
+ *       straight-line superblock that the VM runs in place of the
+ *       loop. Values live in an array of registers (the variables, one
+ *       per operand stack slot, then the constants) and the operand
+ *       stack is tracked at compile time (as in RegisterTranslator),
+ *       so pushes, loads, and stores mostly disappear and each step
+ *       does the work of several instructions. Jumps the iteration
+ *       took become guards, and arithmetic and comparisons on the
+ *       int or double operands seen are done directly behind a type
+ *       guard instead of through VMOps. When a guard fails the trace
+ *       exits: it writes the variables and operand stack back to the
+ *       frame and the VM continues at the instruction where the
+ *       iteration went differently. A guard that fails often gets a
+ *       branch: the rest of an iteration recorded from its exit, run
+ *       on the same registers without leaving the trace.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class Trace {
+
+  // where the VM continues when a guard fails: the instruction, the
+  // registers holding the operand stack (bottom first), how often the
+  // exit was taken (-1 once it can't get a branch), and its branch
+  static class Exit {
+    int pc;
+    int[] stack;
+    int count = 0;
+    Step[] branch = null;
+
+    Exit(int pc, int[] stack) {
+      this.pc = pc;
+      this.stack = stack;
+    }
+  }
+
+  // one step of the superblock, returning the exit to take (null to
+  // go on to the next step)
+  private interface Step {
+    Exit run(Object[] r) throws MyPLException;
+  }
+
+  // a step before the registers are final: a register instruction,
+  // the exit it takes if its guard fails, and the operand types seen
+  // (for arithmetic and comparisons) or the direction taken (for
+  // jumps)
+  private static class Op {
+    RegInstr instr;
+    Exit exit;
+    Class<?> type = null;
+    boolean taken = false;
+    int[] args = null;
+
+    Op(RegInstr instr, Exit exit) {
+      this.instr = instr;
+      this.exit = exit;
+    }
+  }
+
+  private VM vm;
+  private VMFrame frame;
+  private Tracer tracer;
+
+  // the loop's backward jump
+  private VMInstr jump;
+
+  // register layout: variables from 0, stack slots from slotBase (with
+  // a scratch register after the deepest slot), constants from
+  // constBase
+  private int numVars = 0;
+  private int slotBase = 0;
+  private int constBase = 0;
+  private List<Object> consts = new ArrayList<>();
+  private Map<Object,Integer> constIndex = new IdentityHashMap<>();
+
+  // the registers a run starts with, and the steps of an iteration
+  private Object[] registers;
+  private Step[] steps;
+  private List<Op> ops;
+
+
+  private Trace(VM vm, Tracer tracer, VMFrame frame, VMInstr jump) {
+    this.vm = vm;
+    this.tracer = tracer;
+    this.frame = frame;
+    this.jump = jump;
+  }
+
+  /**
+   * Compiles a recorded loop iteration.
+   * @param vm the VM (for calls and the heap)
+   * @param tracer the tracer to report frequent exits to
+   * @param frame the call the iteration was recorded in
+   * @param jump the loop's backward jump
+   * @param recording the instructions run (from the loop's first
+   *        instruction to just before the jump back)
+   * @return the trace (null if the iteration can't be compiled)
+   */
+  public static Trace compile(VM vm, Tracer tracer, VMFrame frame, VMInstr jump,
+                              List<Tracer.Entry> recording)
+  {
+    Trace trace = new Trace(vm, tracer, frame, jump);
+    StackAnalysis analysis =
+      new StackAnalysis(frame, f -> vm.frame(f) == null ? -1 : vm.frame(f).argCount());
+    if (recording.isEmpty() || !analysis.isValid())
+      return null;
+    trace.numVars = Math.max(analysis.numVars(), frame.argCount());
+    trace.slotBase = trace.numVars;
+    trace.constBase = trace.slotBase + analysis.maxDepth() + 1;
+    Builder builder = trace.new Builder(new int[0]);
+    if (!builder.translate(recording))
+      return null;
+    trace.steps = builder.steps();
+    trace.ops = builder.ops;
+    trace.buildRegisters();
+    return trace;
+  }
+
+  /**
+   * Compiles the rest of an iteration recorded from one of the trace's
+   * exits, so the exit continues in the trace.
+   * @param exit the exit the recording started at
+   * @param recording the instructions run (from the exit's instruction
+   *        to just before the jump back)
+   * @return false if the recording can't be compiled
+   */
+  public boolean attach(Exit exit, List<Tracer.Entry> recording) {
+    Builder builder = new Builder(exit.stack);
+    int numConsts = consts.size();
+    if (!builder.translate(recording)) {
+      for (int i = numConsts; i < consts.size(); ++i)
+        constIndex.remove(consts.get(i));
+      consts.subList(numConsts, consts.size()).clear();
+      return false;
+    }
+    Step[] branch = builder.steps();
+    buildRegisters();
+    exit.branch = branch;
+    return true;
+  }
+
+  // the loop's backward jump
+  public VMInstr jump() {
+    return jump;
+  }
+
+  /**
+   * Runs the loop from its first instruction (with an empty operand
+   * stack) until a guard without a branch fails.
+   * @param active the call running the loop
+   * @return the index of the instruction to continue at
+   */
+  public int run(VMFrame active) throws MyPLException {
+    Object[] r = registers.clone();
+    List<Object> variables = active.variables;
+    for (int k = 0; k < numVars && k < variables.size(); ++k)
+      r[k] = variables.get(k);
+    Step[] code = steps;
+    int i = 0;
+    while (true) {
+      // the end of an iteration (or branch) goes back to the top
+      if (i == code.length) {
+        code = steps;
+        i = 0;
+      }
+      Exit exit = code[i++].run(r);
+      if (exit == null)
+        continue;
+      if (exit.branch != null) {
+        // (a branch added while this run was in a call may use new
+        // constants)
+        if (r.length < registers.length)
+          r = grow(r);
+        code = exit.branch;
+        i = 0;
+        continue;
+      }
+      for (int k = 0; k < numVars; ++k) {
+        if (k < variables.size())
+          variables.set(k, r[k]);
+        else
+          variables.add(r[k]);
+      }
+      for (int reg : exit.stack)
+        active.operandStack.push(r[reg]);
+      if (exit.count >= 0 && ++exit.count >= tracer.threshold())
+        tracer.recordBranch(this, exit, active);
+      return exit.pc;
+    }
+  }
+
+  public String toString() {
+    String s = "trace in " + frame.functionName() + ":\n";
+    for (Op op : ops)
+      s += "  " + op.instr.toString().replace("\n", "\\n") +
+        (op.exit != null ? "  (exit " + op.exit.pc + ")" : "") + "\n";
+    return s;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void buildRegisters() {
+    Object[] regs = new Object[constBase + consts.size()];
+    Arrays.fill(regs, VM.NIL_OBJ);
+    for (int i = 0; i < consts.size(); ++i)
+      regs[constBase + i] = consts.get(i);
+    registers = regs;
+  }
+
+  private Object[] grow(Object[] r) {
+    Object[] bigger = Arrays.copyOf(r, registers.length);
+    System.arraycopy(registers, r.length, bigger, r.length, registers.length - r.length);
+    return bigger;
+  }
+
+  private int constant(Object value) {
+    Integer index = constIndex.get(value);
+    if (index == null) {
+      index = consts.size();
+      consts.add(value);
+      constIndex.put(value, index);
+    }
+    return constBase + index;
+  }
+
+
+  //----------------------------------------------------------------------
+  // TRANSLATION
+  //----------------------------------------------------------------------
+
+  // translates a recording (of an iteration, or the rest of one from
+  // an exit) into steps
+  private class Builder {
+
+    // the register each operand stack slot stands for, and the ops
+    int[] vstack;
+    int size = 0;
+    List<Op> ops = new ArrayList<>();
+    int lastProducer = -1;
+
+    Builder(int[] stack) {
+      vstack = new int[constBase - slotBase];
+      System.arraycopy(stack, 0, vstack, 0, stack.length);
+      size = stack.length;
+    }
+
+    Step[] steps() {
+      Step[] code = new Step[ops.size()];
+      for (int i = 0; i < ops.size(); ++i)
+        code[i] = step(ops.get(i));
+      return code;
+    }
+
+    boolean translate(List<Tracer.Entry> recording) {
+      for (Tracer.Entry e : recording)
+        if (!translate(e))
+          return false;
+      // each iteration ends with an empty stack
+      return size == 0;
+    }
+
+    boolean translate(Tracer.Entry e) {
+      int pc = e.pc;
+      Object operand = e.instr.operand();
+      switch (e.instr.opcode()) {
+      case PUSH:
+        push(constant(operand));
+        break;
+      case POP:
+        pop();
+        break;
+      case LOAD:
+        push((int)operand);
+        break;
+      case STORE:
+        store((int)operand);
+        break;
+      case ADD: case SUB: case MUL: case DIV: case MOD:
+      case CMPLT: case CMPLE: case CMPGT: case CMPGE: {
+        Exit exit = exit(pc);
+        int x = pop();
+        int y = pop();
+        Op op = produce(RegOpCode.valueOf(e.instr.opcode().name()), y, x, null, pc);
+        if (e.xType == e.yType && (e.xType == Integer.class || e.xType == Double.class)) {
+          op.type = e.xType;
+          op.exit = exit;
+        }
+        break;
+      }
+      case AND: case OR: case CMPEQ: case CMPNE: case GETCHR: {
+        int x = pop();
+        int y = pop();
+        produce(RegOpCode.valueOf(e.instr.opcode().name()), y, x, null, pc);
+        break;
+      }
+      case NEG: {
+        Exit exit = exit(pc);
+        Op op = produce(RegOpCode.NEG, pop(), 0, null, pc);
+        if (e.xType == Integer.class || e.xType == Double.class) {
+          op.type = e.xType;
+          op.exit = exit;
+        }
+        break;
+      }
+      case NOT: case LEN: case TOINT: case TODBL: case TOSTR:
+        produce(RegOpCode.valueOf(e.instr.opcode().name()), pop(), 0, null, pc);
+        break;
+      case GETFLD:
+        produce(RegOpCode.GETFLD, pop(), 0, operand, pc);
+        break;
+      case READ:
+        produce(RegOpCode.READ, 0, 0, null, pc);
+        break;
+      case ALLOC:
+        produce(RegOpCode.ALLOC, 0, 0, operand, pc);
+        break;
+      case WRITE:
+        emit(RegOpCode.WRITE, 0, pop(), 0, null, pc);
+        break;
+      case FREE:
+        emit(RegOpCode.FREE, 0, pop(), 0, null, pc);
+        break;
+      case SETFLD: {
+        int val = pop();
+        emit(RegOpCode.SETFLD, 0, pop(), val, operand, pc);
+        break;
+      }
+      case JMPF: {
+        // guard that the condition goes the same way as recorded
+        if (!(e.top instanceof Boolean))
+          return false;
+        int x = pop();
+        boolean taken = !(Boolean)e.top;
+        Op op = emit(RegOpCode.JMPF, 0, x, 0, null, pc);
+        op.taken = taken;
+        op.exit = exit(taken ? pc + 1 : (int)operand);
+        break;
+      }
+      case SWITCH: {
+        // guard that the value jumps to the same case as recorded
+        SwitchTable table = (SwitchTable)operand;
+        int x = pop();
+        Op op = emit(RegOpCode.SWITCH, 0, x, table.target(e.top), table, pc);
+        op.exit = exit(-1);
+        op.exit.count = -1;
+        break;
+      }
+      case CALL: {
+        VMFrame callee = vm.frame(operand.toString());
+        int n = callee.argCount();
+        int[] args = Arrays.copyOfRange(vstack, size - n, size);
+        size -= n;
+        Op op = produce(RegOpCode.CALL, 0, n, callee, pc);
+        op.args = args;
+        break;
+      }
+      case DUP:
+        push(vstack[size - 1]);
+        break;
+      case SWAP:
+        swap();
+        break;
+      case JMP: case NOP:
+        // (the iteration's jumps are followed)
+        break;
+      default:
+        return false;
+      }
+      return true;
+    }
+
+    int slot(int i) {
+      return slotBase + i;
+    }
+
+    void push(int reg) {
+      vstack[size++] = reg;
+    }
+
+    int pop() {
+      return vstack[--size];
+    }
+
+    // an exit to the given instruction with the current operand stack
+    Exit exit(int pc) {
+      return new Exit(pc, Arrays.copyOf(vstack, size));
+    }
+
+    Op emit(RegOpCode opcode, int dst, int a, int b, Object operand, int pc) {
+      Op op = new Op(new RegInstr(opcode, dst, a, b, operand, pc), null);
+      ops.add(op);
+      lastProducer = -1;
+      return op;
+    }
+
+    // an op computing a value into the next free stack slot
+    Op produce(RegOpCode opcode, int a, int b, Object operand, int pc) {
+      Op op = emit(opcode, slot(size), a, b, operand, pc);
+      lastProducer = ops.size() - 1;
+      push(slot(size));
+      return op;
+    }
+
+    void move(int dst, int src) {
+      emit(RegOpCode.MOVE, dst, src, 0, null, -1);
+    }
+
+    void store(int var) {
+      boolean computed = lastProducer == ops.size() - 1 && lastProducer >= 0;
+      int x = pop();
+      // slots still standing for the variable need its old value
+      for (int i = 0; i < size; ++i) {
+        if (vstack[i] == var) {
+          move(slot(i), var);
+          vstack[i] = slot(i);
+          computed = false;
+        }
+      }
+      if (x == var)
+        return;
+      if (computed && x == slot(size))
+        ops.get(ops.size() - 1).instr.updateDst(var);
+      else
+        move(var, x);
+      lastProducer = -1;
+    }
+
+    void swap() {
+      int i = size - 2;
+      int x = vstack[i + 1];
+      int y = vstack[i];
+      if (!isSlot(x) && !isSlot(y)) {
+        vstack[i] = x;
+        vstack[i + 1] = y;
+        return;
+      }
+      // (through a free slot, as a slot may stand for the one below it)
+      move(slot(size), y);
+      move(slot(i), x);
+      move(slot(i + 1), slot(size));
+      vstack[i] = slot(i);
+      vstack[i + 1] = slot(i + 1);
+    }
+
+    boolean isSlot(int reg) {
+      return reg >= slotBase && reg < constBase;
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // STEPS
+  //----------------------------------------------------------------------
+
+  private Step step(Op op) {
+    RegInstr instr = op.instr;
+    int d = instr.dst();
+    int a = instr.a();
+    int b = instr.b();
+    int pc = instr.origin();
+    Exit exit = op.exit;
+    VMFrame fn = frame;
+
+    // arithmetic and comparisons on the types seen
+    if (op.type == Integer.class) {
+      switch (instr.opcode()) {
+      case ADD:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y + (Integer)x;
+          return null;
+        };
+      case SUB:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y - (Integer)x;
+          return null;
+        };
+      case MUL:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y * (Integer)x;
+          return null;
+        };
+      case DIV:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y / (Integer)x;
+          return null;
+        };
+      case MOD:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y % (Integer)x;
+          return null;
+        };
+      case CMPLT:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y < (Integer)x;
+          return null;
+        };
+      case CMPLE:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y <= (Integer)x;
+          return null;
+        };
+      case CMPGT:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y > (Integer)x;
+          return null;
+        };
+      case CMPGE:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Integer && x instanceof Integer))
+            return exit;
+          r[d] = (Integer)y >= (Integer)x;
+          return null;
+        };
+      case NEG:
+        return r -> {
+          Object x = r[a];
+          if (!(x instanceof Integer))
+            return exit;
+          r[d] = -1 * (Integer)x;
+          return null;
+        };
+      default:
+        break;
+      }
+    }
+    else if (op.type == Double.class) {
+      switch (instr.opcode()) {
+      case ADD:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y + (Double)x;
+          return null;
+        };
+      case SUB:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y - (Double)x;
+          return null;
+        };
+      case MUL:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y * (Double)x;
+          return null;
+        };
+      case DIV:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y / (Double)x;
+          return null;
+        };
+      case CMPLT:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y < (Double)x;
+          return null;
+        };
+      case CMPLE:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y <= (Double)x;
+          return null;
+        };
+      case CMPGT:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y > (Double)x;
+          return null;
+        };
+      case CMPGE:
+        return r -> {
+          Object y = r[a], x = r[b];
+          if (!(y instanceof Double && x instanceof Double))
+            return exit;
+          r[d] = (Double)y >= (Double)x;
+          return null;
+        };
+      case NEG:
+        return r -> {
+          Object x = r[a];
+          if (!(x instanceof Double))
+            return exit;
+          r[d] = -1 * (Double)x;
+          return null;
+        };
+      default:
+        break;
+      }
+    }
+
+    switch (instr.opcode()) {
+    case MOVE:
+      return r -> { r[d] = r[a]; return null; };
+    case ADD:
+      return r -> { r[d] = VMOps.add(r[a], r[b], fn, pc); return null; };
+    case SUB:
+      return r -> { r[d] = VMOps.sub(r[a], r[b], fn, pc); return null; };
+    case MUL:
+      return r -> { r[d] = VMOps.mul(r[a], r[b], fn, pc); return null; };
+    case DIV:
+      return r -> { r[d] = VMOps.div(r[a], r[b], fn, pc); return null; };
+    case MOD:
+      return r -> { r[d] = VMOps.mod(r[a], r[b], fn, pc); return null; };
+    case NEG:
+      return r -> { r[d] = VMOps.neg(r[a], fn, pc); return null; };
+    case AND:
+      return r -> { r[d] = VMOps.and(r[a], r[b], fn, pc); return null; };
+    case OR:
+      return r -> { r[d] = VMOps.or(r[a], r[b], fn, pc); return null; };
+    case NOT:
+      return r -> { r[d] = VMOps.not(r[a], fn, pc); return null; };
+    case CMPLT:
+      return r -> { r[d] = VMOps.cmplt(r[a], r[b], fn, pc); return null; };
+    case CMPLE:
+      return r -> { r[d] = VMOps.cmple(r[a], r[b], fn, pc); return null; };
+    case CMPGT:
+      return r -> { r[d] = VMOps.cmpgt(r[a], r[b], fn, pc); return null; };
+    case CMPGE:
+      return r -> { r[d] = VMOps.cmpge(r[a], r[b], fn, pc); return null; };
+    case CMPEQ:
+      return r -> { r[d] = VMOps.cmpeq(r[a], r[b]); return null; };
+    case CMPNE:
+      return r -> { r[d] = VMOps.cmpne(r[a], r[b]); return null; };
+    case JMPF:
+      if (op.taken)
+        return r -> VMOps.isTrue(r[a]) ? exit : null;
+      return r -> VMOps.isTrue(r[a]) ? null : exit;
+    case SWITCH: {
+      SwitchTable table = (SwitchTable)instr.operand();
+      return r -> {
+        int target = table.target(r[a]);
+        if (target == b)
+          return null;
+        Exit other = new Exit(target, exit.stack);
+        other.count = -1;
+        return other;
+      };
+    }
+    case CALL: {
+      VMFrame callee = (VMFrame)instr.operand();
+      int[] args = op.args;
+      return r -> {
+        Object[] values = new Object[args.length];
+        for (int i = 0; i < args.length; ++i)
+          values[i] = r[args[i]];
+        r[d] = vm.interpret(callee, values);
+        return null;
+      };
+    }
+    case WRITE:
+      return r -> { VMOps.write(r[a]); return null; };
+    case READ:
+      return r -> { r[d] = VMOps.read(); return null; };
+    case LEN:
+      return r -> { r[d] = VMOps.len(r[a]); return null; };
+    case GETCHR:
+      return r -> { r[d] = VMOps.getchr(r[a], r[b], fn, pc); return null; };
+    case TOINT:
+      return r -> { r[d] = VMOps.toint(r[a], fn, pc); return null; };
+    case TODBL:
+      return r -> { r[d] = VMOps.todbl(r[a], fn, pc); return null; };
+    case TOSTR:
+      return r -> { r[d] = VMOps.tostr(r[a]); return null; };
+    case ALLOC: {
+      List<String> fields = VMInstr.names(instr.operand());
+      return r -> { r[d] = vm.alloc(fields, fn, pc); return null; };
+    }
+    case FREE:
+      return r -> { vm.free(r[a], fn, pc); return null; };
+    case SETFLD: {
+      String field = instr.operand().toString();
+      return r -> { vm.setField(r[a], r[b], field); return null; };
+    }
+    case GETFLD: {
+      String field = instr.operand().toString();
+      return r -> { r[d] = vm.getField(r[a], field, fn, pc); return null; };
+    }
+    default:
+      return r -> null;
+    }
+  }
+
+}
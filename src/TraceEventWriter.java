@@ -0,0 +1,179 @@
+/*
+ * File: TraceEventWriter.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Writes a timeline of a run in the Chrome trace event format
+ *       (JSON that chrome://tracing and Perfetto open). As a VM
+ *       listener it writes a begin and an end event for each function
+ *       call (with the arguments and the return value) and for each
+ *       compile step of the VM, and begin() and end() add other steps
+ *       (e.g., parsing). Events are built in a buffer that is written
+ *       out in large batches.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+public class TraceEventWriter implements VMListener {
+
+  // the buffer is written out once it holds this many characters
+  private static final int BATCH_SIZE = 1 << 16;
+
+  // the longest value written in an argument summary
+  private static final int MAX_VALUE_LENGTH = 32;
+
+  private Writer out;
+  private StringBuilder buffer = new StringBuilder();
+  private boolean firstEvent = true;
+  private long startNanos = System.nanoTime();
+
+  // the first error writing the events (reported by close)
+  private IOException writeError = null;
+
+  // the number of calls each thread has begun but not ended
+  private ThreadLocal<int[]> openCalls = ThreadLocal.withInitial(() -> new int[1]);
+
+
+  /**
+   * Creates a writer (the caller closes out after calling close).
+   * @param out where to write the events
+   */
+  public TraceEventWriter(Writer out) {
+    this.out = out;
+    buffer.append("{\"traceEvents\":[\n");
+  }
+
+  /**
+   * Writes the start of a step of the run.
+   * @param name the step's name
+   * @param category the kind of step (e.g., "compile")
+   */
+  public void begin(String name, String category) {
+    event('B', name, category, null);
+  }
+
+  /**
+   * Writes the end of a step of the run.
+   * @param name the step's name
+   * @param category the kind of step (e.g., "compile")
+   */
+  public void end(String name, String category) {
+    event('E', name, category, null);
+  }
+
+  @Override
+  public void call(VMFrame frame) {
+    // (the arguments are on the new frame's operand stack, first on top)
+    StringBuilder args = new StringBuilder();
+    int i = 0;
+    for (Object value : frame.operandStack) {
+      if (i == frame.argCount())
+        break;
+      if (i > 0)
+        args.append(',');
+      args.append("\"arg").append(i++).append("\":");
+      quote(summary(value), args);
+    }
+    ++openCalls.get()[0];
+    event('B', frame.functionName(), "call", args.toString());
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    int[] open = openCalls.get();
+    if (open[0] == 0)
+      return;
+    --open[0];
+    StringBuilder args = new StringBuilder("\"return\":");
+    quote(summary(value), args);
+    event('E', frame.functionName(), "call", args.toString());
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    int[] open = openCalls.get();
+    for (; open[0] > 0; --open[0])
+      event('E', "", "call", null);
+  }
+
+  @Override
+  public void phase(String name, boolean start) {
+    // every step but the run itself compiles the program
+    event(start ? 'B' : 'E', name, name.equals("run") ? "run" : "compile", null);
+  }
+
+  /**
+   * Writes the rest of the events and the end of the JSON document.
+   */
+  public synchronized void close() throws IOException {
+    buffer.append("\n],\"displayTimeUnit\":\"ms\"}\n");
+    flush();
+    if (writeError != null)
+      throw writeError;
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // adds an event (args is the JSON object's contents, or null),
+  // writing the buffer out if it is full
+  private synchronized void event(char phase, String name, String category, String args) {
+    if (!firstEvent)
+      buffer.append(",\n");
+    firstEvent = false;
+    buffer.append("{\"ph\":\"").append(phase).append("\",\"name\":");
+    quote(name, buffer);
+    buffer.append(",\"cat\":\"").append(category).append("\",\"pid\":1,\"tid\":")
+      .append(Thread.currentThread().getId()).append(",\"ts\":");
+    // (in microseconds, to the nanosecond)
+    long nanos = System.nanoTime() - startNanos;
+    int fraction = (int)(nanos % 1000);
+    buffer.append(nanos / 1000).append('.')
+      .append(fraction < 100 ? fraction < 10 ? "00" : "0" : "").append(fraction);
+    if (args != null && !args.isEmpty())
+      buffer.append(",\"args\":{").append(args).append('}');
+    buffer.append('}');
+    if (buffer.length() >= BATCH_SIZE)
+      flush();
+  }
+
+  // writes out the buffer (keeping the first error)
+  private void flush() {
+    try {
+      out.write(buffer.toString());
+      out.flush();
+    } catch (IOException e) {
+      if (writeError == null)
+        writeError = e;
+    }
+    buffer.setLength(0);
+  }
+
+  // a value as shown in an argument summary
+  private static String summary(Object value) {
+    String s = value == VM.NIL_OBJ ? "nil" : value.toString();
+    if (value instanceof String && value != VM.NIL_OBJ)
+      s = "\"" + s + "\"";
+    if (s.length() > MAX_VALUE_LENGTH)
+      s = s.substring(0, MAX_VALUE_LENGTH - 3) + "...";
+    return s;
+  }
+
+  // adds a string as a JSON string
+  private static void quote(String s, StringBuilder out) {
+    out.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        out.append('\\').append(c);
+      else if (c < ' ')
+        out.append(String.format("\\u%04x", (int)c));
+      else
+        out.append(c);
+    }
+    out.append('"');
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * File: Tracer.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Finds the VM's hot loops and turns them into traces. Each
+ *       backward JMP taken with an empty operand stack counts as a
+ *       loop iteration. Once a loop is hot, the instructions the VM
+ *       runs through its next iteration (in the same call) are
+ *       recorded, along with the operand types and branch directions
+ *       seen, and compiled into a Trace that the VM then runs in place
+ *       of the loop. Loops whose iteration leaves the call, forks, or
+ *       runs too long are never traced.
+ */
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+public class Tracer {
+
+  /**
+   * The default number of iterations before a loop is traced
+   */
+  public static final int DEFAULT_THRESHOLD = 50;
+
+  // the longest iteration (in instructions) that is traced
+  private static final int MAX_LENGTH = 2000;
+
+  // an instruction run while recording, with what was seen on the
+  // operand stack: the types of the operands of arithmetic and
+  // comparisons, and the condition of a JMPF or value of a SWITCH
+  static class Entry {
+    int pc;
+    VMInstr instr;
+    Class<?> yType = null;
+    Class<?> xType = null;
+    Object top = null;
+
+    Entry(int pc, VMInstr instr) {
+      this.pc = pc;
+      this.instr = instr;
+    }
+  }
+
+  private VM vm;
+  private int threshold;
+
+  // loop iteration counts and traces, by backward JMP instruction
+  private Map<VMInstr,int[]> heat = new IdentityHashMap<>();
+  private Map<VMInstr,Trace> traces = new IdentityHashMap<>();
+
+  // the recording in progress: the call and loop being recorded (null
+  // if not recording), what has been recorded so far, and, when
+  // recording a branch, the trace and exit it starts from
+  private volatile VMFrame recordFrame = null;
+  private VMInstr recordJump = null;
+  private List<Entry> recording = null;
+  private Trace recordTrace = null;
+  private Trace.Exit recordExit = null;
+
+
+  /**
+   * Creates a tracer for a VM.
+   * @param vm the VM whose loops are traced
+   * @param threshold the number of iterations before a loop is traced
+   */
+  public Tracer(VM vm, int threshold) {
+    this.vm = vm;
+    this.threshold = Math.max(threshold, 1);
+  }
+
+  // the number of loops that have been traced
+  public synchronized int traceCount() {
+    return traces.size();
+  }
+
+  // the number of iterations before a loop is traced (and of exits
+  // before an exit gets a branch)
+  public int threshold() {
+    return threshold;
+  }
+
+  // true if the given call is being recorded
+  public boolean recording(VMFrame frame) {
+    return recordFrame == frame;
+  }
+
+  /**
+   * Counts an iteration of a loop: the backward jump instr of the
+   * given (active) frame with an empty operand stack. Starts
+   * recording the next iteration once the loop is hot, and compiles
+   * the recording once the iteration ends.
+   * @return the loop's trace to run (null to keep interpreting)
+   */
+  public synchronized Trace loop(VMFrame frame, VMInstr jump) {
+    Trace trace = null;
+    if (recordFrame != null) {
+      // (other loops in the recorded call are recorded too, so their
+      // traces aren't run)
+      if (recordFrame != frame || recordJump != jump)
+        return recordFrame == frame ? null : traces.get(jump);
+      // the recording ends with the jump back to the loop
+      recording.remove(recording.size() - 1);
+      if (recordExit != null) {
+        trace = recordTrace;
+        trace.attach(recordExit, recording);
+      }
+      else {
+        trace = Trace.compile(vm, this, frame, jump, recording);
+        if (trace != null)
+          traces.put(jump, trace);
+      }
+      stopRecording();
+      return trace;
+    }
+    trace = traces.get(jump);
+    if (trace != null)
+      return trace;
+    int[] count = heat.computeIfAbsent(jump, j -> new int[1]);
+    if (count[0] >= 0 && ++count[0] >= threshold) {
+      // (never again, whether or not a trace is made)
+      count[0] = -1;
+      startRecording(frame, jump);
+    }
+    return null;
+  }
+
+  /**
+   * Starts recording a branch for an exit of a trace that is taken
+   * often: the rest of the iteration (in the given call) from the
+   * exit's instruction.
+   * @param trace the trace exited
+   * @param exit the exit taken
+   * @param frame the call running the loop
+   */
+  public synchronized void recordBranch(Trace trace, Trace.Exit exit, VMFrame frame) {
+    // (tried once, whether or not a branch is made)
+    exit.count = -1;
+    if (recordFrame != null)
+      return;
+    startRecording(frame, trace.jump());
+    recordTrace = trace;
+    recordExit = exit;
+  }
+
+  /**
+   * Records an instruction about to run in the call being recorded.
+   * @param frame the call (see recording)
+   * @param pc the index of the instruction
+   * @param instr the instruction
+   */
+  public synchronized void record(VMFrame frame, int pc, VMInstr instr) {
+    if (recordFrame != frame)
+      return;
+    OpCode op = instr.opcode();
+    if (op == OpCode.VRET || op == OpCode.FORK || op == OpCode.PCALL ||
+        recording.size() >= MAX_LENGTH) {
+      stopRecording();
+      return;
+    }
+    Entry entry = new Entry(pc, instr);
+    Deque<Object> stack = frame.operandStack;
+    if (op == OpCode.JMPF || op == OpCode.SWITCH)
+      entry.top = stack.peek();
+    else if (op == OpCode.NEG && !stack.isEmpty())
+      entry.xType = stack.peek().getClass();
+    else if (stack.size() >= 2) {
+      Iterator<Object> values = stack.iterator();
+      entry.xType = values.next().getClass();
+      entry.yType = values.next().getClass();
+    }
+    recording.add(entry);
+  }
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void startRecording(VMFrame frame, VMInstr jump) {
+    recordFrame = frame;
+    recordJump = jump;
+    recording = new ArrayList<>();
+  }
+
+  private void stopRecording() {
+    recordFrame = null;
+    recordJump = null;
+    recording = null;
+    recordTrace = null;
+    recordExit = null;
+  }
+
+}
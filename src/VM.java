@@ -12,6 +12,8 @@
 
 
 import java.util.*;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /*----------------------------------------------------------------------
@@ -40,9 +42,6 @@ import java.util.*;
 
 class VM {
 
-  // set to true to print debugging information
-  private boolean DEBUG = false;
-  
   // the VM's heap (free store) accessible via object-id
   private Map<Integer,Map<String,Object>> heap = new HashMap<>();
   
@@ -55,6 +54,39 @@ class VM {
   // the VM call stack
   private Deque<VMFrame> frameStack = new ArrayDeque<>();
 
+  // compiles and runs hot functions (null if only interpreting)
+  private JIT jit = null;
+
+  // records and runs traces of hot loops (null if not tracing)
+  private Tracer tracer = null;
+
+  // true if the run loops mark the instructions they run (see
+  // setCoverage)
+  private boolean coverage = false;
+
+  // the attached listeners, all of them as one listener (null if there
+  // are none), and the one printing debug output (if on)
+  private List<VMListener> listeners = new ArrayList<>();
+  private VMListener listener = null;
+  private VMListener debugListener = null;
+
+  // the last error reported to the listeners (errors pass through
+  // each nested run loop)
+  private MyPLException reportedError = null;
+
+  // the number of instructions run by the watched run loops (each
+  // adds its count every PUBLISH_STEPS instructions and when it ends),
+  // and the time spent in WRITE and READ (if timed, see setIOTiming)
+  private LongAdder executed = new LongAdder();
+  private static final int PUBLISH_STEPS = 1024;
+  private boolean timingIO = false;
+  private LongAdder writeNanos = new LongAdder();
+  private LongAdder readNanos = new LongAdder();
+
+  // PCALLs nested less than this deep run their two calls as separate
+  // fork/join tasks, deeper ones take the sequential version (FORK)
+  private int forkDepthLimit = defaultForkDepthLimit();
+
   
   /**
    * For representing "nil" as a value
@@ -68,6 +100,8 @@ class VM {
    */
   public void add(VMFrame frame) {
     frames.put(frame.functionName(), frame);
+    if (coverage && frame.coverage == null)
+      frame.coverage = new Coverage();
   }
 
   /**
@@ -76,7 +110,140 @@ class VM {
    * @param debug set to true to turn on debugging (by default false)
    */
   public void setDebug(boolean debug) {
-    DEBUG = debug;
+    if (debug && debugListener == null) {
+      debugListener = new DebugListener(this);
+      addListener(debugListener);
+    }
+    else if (!debug && debugListener != null) {
+      removeListener(debugListener);
+      debugListener = null;
+    }
+  }
+
+  /**
+   * Attach a listener that is told what the VM does as it runs.
+   * @param l the listener
+   */
+  public void addListener(VMListener l) {
+    listeners.add(l);
+    updateListener();
+  }
+
+  /**
+   * Detach a listener.
+   * @param l the listener
+   */
+  public void removeListener(VMListener l) {
+    listeners.remove(l);
+    updateListener();
+  }
+
+  /**
+   * Set how deeply nested PCALL instructions may be and still run
+   * their calls in parallel. Deeper PCALLs (where each call does too
+   * little work to be worth a task) run sequentially.
+   * @param depth the fork depth limit (0 runs all PCALLs sequentially)
+   */
+  public void setForkDepthLimit(int depth) {
+    forkDepthLimit = depth;
+  }
+
+  /**
+   * Turn on the JIT, which compiles functions to JVM bytecode once
+   * they have been called (or have looped) enough times.
+   * @param threshold the number of calls plus loop iterations before a
+   *        function is compiled (0 turns the JIT off)
+   */
+  public void setJIT(int threshold) {
+    jit = threshold > 0 ? new JIT(this, threshold) : null;
+  }
+
+  // the JIT (null if it is off)
+  public JIT jit() {
+    return jit;
+  }
+
+  /**
+   * Turn on tracing, which records an iteration of each hot loop and
+   * runs the loop as a compiled trace (see Tracer).
+   * @param threshold the number of iterations before a loop is traced
+   *        (0 turns tracing off)
+   */
+  public void setTracing(int threshold) {
+    tracer = threshold > 0 ? new Tracer(this, threshold) : null;
+  }
+
+  // the tracer (null if tracing is off)
+  public Tracer tracer() {
+    return tracer;
+  }
+
+  /**
+   * Turn on coverage, which marks each instruction run and each JMPF
+   * outcome in its frame's Coverage (see CoverageReport). While on,
+   * the JIT and tracing are not used (compiled code marks nothing)
+   * and PCALLs run sequentially.
+   * @param on true to turn coverage on (by default false)
+   */
+  public void setCoverage(boolean on) {
+    coverage = on;
+    for (VMFrame frame : frames.values())
+      frame.coverage = on ? new Coverage() : null;
+  }
+
+  // true if coverage is on
+  public boolean coverage() {
+    return coverage;
+  }
+
+  // the (template) frame of the given function
+  VMFrame frame(String funName) {
+    return frames.get(funName);
+  }
+
+  // the names of the program's functions
+  Set<String> functionNames() {
+    return frames.keySet();
+  }
+
+  // tells the listeners a compile step for the VM started or ended
+  void phase(String name, boolean start) {
+    if (listener != null)
+      listener.phase(name, start);
+  }
+
+  // the number of instructions the VM has interpreted while watched
+  // (e.g., by a listener, see slowLoop; those run as compiled code or
+  // by the unwatched run loop are not counted). Run loops still
+  // running may not have added their last PUBLISH_STEPS yet.
+  public long instructionsExecuted() {
+    return executed.sum();
+  }
+
+  /**
+   * Turn on/off timing the WRITE and READ instructions (see writeNanos
+   * and readNanos).
+   * @param on true to time them (by default false)
+   */
+  public void setIOTiming(boolean on) {
+    timingIO = on;
+  }
+
+  // the time the run loops have spent in WRITE instructions (while
+  // timed)
+  public long writeNanos() {
+    return writeNanos.sum();
+  }
+
+  // the time the run loops have spent in READ instructions (while
+  // timed)
+  public long readNanos() {
+    return readNanos.sum();
+  }
+
+  // the heap (for listeners)
+  Map<Integer,Map<String,Object>> heap() {
+    return heap;
   }
 
   /**
@@ -89,455 +256,457 @@ class VM {
       throw MyPLException.VMError("No 'main' function");
     VMFrame frame = frames.get("main").instantiate();
     frameStack.push(frame);
-    
+    execute(frameStack, 0, 0);
+  }
+
+  /**
+   * Run a single function to completion on its own call stack (e.g.,
+   * to evaluate a call at compile time).
+   * @param funName the function to call
+   * @param args the argument values (in parameter order)
+   * @param maxSteps the maximum number of instructions to execute
+   *        before giving up with an error (0 for no limit)
+   * @return the function's return value
+   */
+  public Object evaluate(String funName, List<Object> args, long maxSteps)
+    throws MyPLException
+  {
+    if (!frames.containsKey(funName))
+      throw MyPLException.VMError("No '" + funName + "' function");
+    VMFrame frame = frames.get(funName).instantiate();
+    for (int i = args.size() - 1; i >= 0; --i)
+      frame.operandStack.push(args.get(i));
+    Deque<VMFrame> callStack = new ArrayDeque<>();
+    callStack.push(frame);
+    return execute(callStack, maxSteps, 0);
+  }
+
+  // interpret a call of the given function (made from compiled code)
+  Object interpret(VMFrame function, Object[] args) throws MyPLException {
+    VMFrame frame = function.instantiate();
+    for (int i = args.length - 1; i >= 0; --i)
+      frame.operandStack.push(args[i]);
+    Deque<VMFrame> callStack = new ArrayDeque<>();
+    callStack.push(frame);
+    return execute(callStack, 0, 0);
+  }
+
+  // the state of a run loop: its call stack, the frame running, and
+  // the value returned by the last frame popped
+  private static class Run {
+    Deque<VMFrame> frameStack;
+    VMFrame frame;
+    Object returnValue = NIL_OBJ;
+    // the instruction limit (0 for none) and the number of PCALLs the
+    // stack is nested in
+    long maxSteps;
+    int forkDepth;
+    // true if the run must stay in the interpreter (see slowLoop)
+    boolean interpretOnly = false;
+
+    Run(Deque<VMFrame> frameStack, long maxSteps, int forkDepth) {
+      this.frameStack = frameStack;
+      this.frame = frameStack.peek();
+      this.maxSteps = maxSteps;
+      this.forkDepth = forkDepth;
+    }
+  }
+
+  // runs the frame on top of the given call stack until the stack is
+  // empty (or the frame runs out of instructions), returning the value
+  // returned by the last frame popped and telling the listeners about
+  // a runtime error. The fork depth is the number of PCALLs the stack
+  // is nested in.
+  private Object execute(Deque<VMFrame> frameStack, long maxSteps, int forkDepth)
+    throws MyPLException
+  {
+    Run run = new Run(frameStack, maxSteps, forkDepth);
+    try {
+      if (listener == null && !coverage && tracer == null && maxSteps == 0)
+        return runLoop(run);
+      return slowLoop(run);
+    } catch (MyPLException e) {
+      VMListener listener = this.listener;
+      if (listener != null && e != reportedError) {
+        reportedError = e;
+        listener.error(e, frameStack.peek());
+      }
+      throw e;
+    }
+  }
+
+  // the run loop (when nothing watches the run). The top two operand
+  // stack values are cached in locals: cached is the number of values
+  // held (0 to 2), top is the top value, and below the value under it
+  // (the rest are on the frame's operand stack). The instructions
+  // that don't use the cache run through step.
+  private Object runLoop(Run run) throws MyPLException {
+    VMFrame frame = run.frame;
+    int cached = 0;
+    Object top = null;
+    Object below = null;
+
     // run loop (keep going until we run out of frames or
     // instructions) note that we assume each function returns a
     // value, and so the second check below should never occur (but is
     // useful for testing, etc).
     while (frame != null && frame.pc < frame.instructions.size()) {
-      // get next instruction
+      // get next instruction and increment instruction pointer
       VMInstr instr = frame.instructions.get(frame.pc);
-      // increment instruction pointer
       ++frame.pc;
 
-      // For debugging: to turn on the following, call setDebug(true)
-      // on the VM.
-      if (DEBUG) {
-        System.out.println();
-        System.out.println("\t FRAME........: " + frame.functionName());
-        System.out.println("\t PC...........: " + (frame.pc - 1));
-        System.out.println("\t INSTRUCTION..: " + instr);
-        System.out.println("\t OPERAND STACK: " + frame.operandStack);
-        System.out.println("\t HEAP ........: " + heap);
-        System.out.println("TEST VARIABLE SIZE: ") ;
-        int i = 0;
-        for(Object vars: frame.variables) {
-          System.out.print(i + ":"+vars.toString() + " ");
-          i++;
-        }
+      switch (instr.opcode()) {
+
+      case PUSH:
+      case LOAD: {
+        Object x = instr.opcode() == OpCode.PUSH ? instr.operand() :
+          frame.variables.get((int)instr.operand());
+        if (cached == 2)
+          frame.operandStack.push(below);
+        else
+          ++cached;
+        below = top;
+        top = x;
+        break;
       }
-      //------------------------------------------------------------
-      // Consts/Vars
-      //------------------------------------------------------------
-
-      if (instr.opcode() == OpCode.PUSH) {
-        frame.operandStack.push(instr.operand());
-      } //DONE - EXAMPLE
-
-      else if (instr.opcode() == OpCode.POP) {
-        frame.operandStack.pop();
-      } //DONE
-
-      else if (instr.opcode() == OpCode.LOAD) {
-        Integer y = (Integer)instr.operand();
-        Object x = frame.variables.get(y);
-        frame.operandStack.push(x);
+
+      // (STORE, POP, and JMPF pop their operand from the cache)
+      case STORE:
+      case POP:
+      case JMPF: {
+        Object x;
+        if (cached == 0)
+          x = frame.operandStack.pop();
+        else {
+          x = top;
+          top = below;
+          --cached;
+        }
+        if (instr.opcode() == OpCode.STORE)
+          store(frame, (int)instr.operand(), x);
+        else if (instr.opcode() == OpCode.JMPF && !(boolean)x)
+          frame.pc = (int)instr.operand();
+        break;
       }
-        
-      else if (instr.opcode() == OpCode.STORE) {
-        Object x = frame.operandStack.pop();
-        int address = (int)instr.operand();
-        try{
-          frame.variables.remove(address);
-        }catch(Exception e){}
-
-        int count = frame.variables.size();
-
-        while(frame.variables.size() < address) {
-          frame.variables.add(count, NIL_OBJ);
-          count++;
-        }
 
-        frame.variables.add(address, x);
+      case NOP:
+        break;
+
+      // binary ops pop x and y and push the result (into the cache)
+      case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+      case CMPLT: case CMPLE: case CMPGT: case CMPGE: case CMPEQ: case CMPNE:
+      case GETCHR: {
+        Object x;
+        Object y;
+        if (cached == 2) {
+          x = top;
+          y = below;
+        }
+        else if (cached == 1) {
+          x = top;
+          y = frame.operandStack.pop();
+        }
+        else {
+          x = frame.operandStack.pop();
+          y = frame.operandStack.pop();
+        }
+        top = binaryOp(instr.opcode(), y, x, frame);
+        cached = 1;
+        break;
       }
 
-      
-      //------------------------------------------------------------
-      // Ops
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.ADD) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY + (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY + (Double) operandX));
-        }
-        else if(operandX instanceof String){
-          frame.operandStack.push(((String)operandY + (String) operandX));
-        }
-        else if(operandX instanceof Character){
-          frame.operandStack.push(((String)operandY + (String) operandX));
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.SUB) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY - (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY - (Double) operandX));
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.MUL) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY * (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY * (Double) operandX));
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.DIV) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((int)operandY / (int) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((double)operandY / (double) operandX));
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.MOD) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        frame.operandStack.push(((Integer)operandY % (Integer) operandX));
-      } //DONE
-      else if (instr.opcode() == OpCode.NEG) {
-        Object operandX = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        if(operandX instanceof Integer){
-          frame.operandStack.push((-1 *(Integer)operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push((-1 *(Double)operandX));
-        }
+      // unary ops (and built-ins and GETFLD) replace the top value
+      case NEG: case NOT: case LEN: case TOINT: case TODBL: case TOSTR: case GETFLD: {
+        Object x = cached > 0 ? top : frame.operandStack.pop();
+        top = unaryOp(instr, x, frame);
+        if (cached == 0)
+          cached = 1;
+        break;
+      }
 
-      } //DONE
-
-      else if (instr.opcode() == OpCode.AND) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        frame.operandStack.push(((boolean)operandX && (boolean)operandY));
-      } //DONE
-      else if (instr.opcode() == OpCode.OR) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        frame.operandStack.push(((boolean)operandX || (boolean)operandY));
-      } //DONE
-      else if (instr.opcode() == OpCode.NOT) {
-        Object operand = frame.operandStack.pop();
-        ensureNotNil(frame, operand);
-        frame.operandStack.push(!(boolean)operand);
-      } //DONE - EXAMPLE
-
-      else if (instr.opcode() == OpCode.CMPLT) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY < (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY < (Double) operandX));
-        }
-        else if(operandX instanceof String){
-          String y = (String) operandY;
-          String x = (String) operandX;
-          frame.operandStack.push(y.compareTo(x) < 0);
-        }
-        else if(operandX instanceof Character){
-          Character y = (Character) operandY;
-          Character x = (Character) operandX;
-          frame.operandStack.push(y.compareTo(x) < 0);
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.CMPLE) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY <= (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY <= (Double) operandX));
-        }
-        else if(operandX instanceof String){
-          String y = (String) operandY;
-          String x = (String) operandX;
-          frame.operandStack.push(y.compareTo(x) <= 0);
-        }
-        else if(operandX instanceof Character){
-          Character y = (Character) operandY;
-          Character x = (Character) operandX;
-          frame.operandStack.push(y.compareTo(x) <= 0);
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.CMPGT) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY > (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY > (Double) operandX));
-        }
-        else if(operandX instanceof String){
-          String y = (String) operandY;
-          String x = (String) operandX;
-          frame.operandStack.push(y.compareTo(x) > 0);
-        }
-        else if(operandX instanceof Character){
-          Character y = (Character) operandY;
-          Character x = (Character) operandX;
-          frame.operandStack.push(y.compareTo(x) > 0);
-        }
-      } //DONE
-      else if (instr.opcode() == OpCode.CMPGE) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        ensureNotNil(frame, operandX);
-        ensureNotNil(frame, operandY);
-        if(operandX instanceof Integer){
-          frame.operandStack.push(((Integer)operandY >= (Integer) operandX));
-        }
-        else if(operandX instanceof Double){
-          frame.operandStack.push(((Double)operandY >= (Double) operandX));
-        }
-        else if(operandX instanceof String){
-          String y = (String) operandY;
-          String x = (String) operandX;
-          frame.operandStack.push(y.compareTo(x) >= 0);
+      // all other instructions see the whole operand stack
+      default:
+        if (cached == 2)
+          frame.operandStack.push(below);
+        if (cached > 0)
+          frame.operandStack.push(top);
+        cached = 0;
+        run.frame = frame;
+        step(run, instr);
+        frame = run.frame;
+      }
+    }
+    return run.returnValue;
+  }
+
+  // the run loop while listeners, coverage, the tracer, or a step
+  // limit watch the run: each instruction runs through step (with the
+  // whole operand stack). Listeners seeing each instruction, and
+  // coverage, keep the run in this loop (no compiled code or traces).
+  private Object slowLoop(Run run) throws MyPLException {
+    VMListener listener = this.listener;
+    VMListener instrListener =
+      listener != null && listener.tracesInstructions() ? listener : null;
+    boolean covering = coverage;
+    run.interpretOnly = instrListener != null || covering;
+    VMFrame frame = run.frame;
+    if (listener != null && frame != null)
+      listener.call(frame);
+
+    // the instructions run (added to executed as the loop runs, see
+    // instructionsExecuted)
+    long steps = 0;
+    try {
+      while (frame != null && frame.pc < frame.instructions.size()) {
+        VMInstr instr = frame.instructions.get(frame.pc);
+        ++frame.pc;
+        int pc = frame.pc - 1;
+
+        if (++steps > run.maxSteps && run.maxSteps > 0)
+          error("step limit of " + run.maxSteps + " exceeded", frame);
+        if (steps % PUBLISH_STEPS == 0)
+          executed.add(PUBLISH_STEPS);
+
+        if (covering && frame.coverage != null) {
+          frame.coverage.executed.set(pc);
+          if (instr.opcode() == OpCode.JMPF)
+            ((boolean)frame.operandStack.peek() ? frame.coverage.fellThrough :
+             frame.coverage.jumped).set(pc);
+        }
+
+        if (tracer != null && tracer.recording(frame))
+          tracer.record(frame, pc, instr);
+
+        if (instrListener != null)
+          instrListener.instruction(frame, pc, instr);
+
+        run.frame = frame;
+        step(run, instr);
+        frame = run.frame;
+      }
+    } finally {
+      executed.add(steps % PUBLISH_STEPS);
+    }
+    return run.returnValue;
+  }
+
+  // runs an instruction (after the pc has moved past it) with its
+  // operands on the running frame's operand stack
+  private void step(Run run, VMInstr instr) throws MyPLException {
+    VMFrame frame = run.frame;
+    Deque<VMFrame> frameStack = run.frameStack;
+    VMListener listener = this.listener;
+
+    switch (instr.opcode()) {
+
+    //------------------------------------------------------------
+    // Consts/Vars
+    //------------------------------------------------------------
+
+    case PUSH:
+      frame.operandStack.push(instr.operand());
+      break;
+
+    case POP:
+      frame.operandStack.pop();
+      break;
+
+    case LOAD:
+      frame.operandStack.push(frame.variables.get((int)instr.operand()));
+      break;
+
+    case STORE:
+      store(frame, (int)instr.operand(), frame.operandStack.pop());
+      break;
+
+    //------------------------------------------------------------
+    // Ops
+    //------------------------------------------------------------
+
+    case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+    case CMPLT: case CMPLE: case CMPGT: case CMPGE: case CMPEQ: case CMPNE:
+    case GETCHR: {
+      Object x = frame.operandStack.pop();
+      Object y = frame.operandStack.pop();
+      frame.operandStack.push(binaryOp(instr.opcode(), y, x, frame));
+      break;
+    }
+
+    case NEG: case NOT: case LEN: case TOINT: case TODBL: case TOSTR: case GETFLD:
+      frame.operandStack.push(unaryOp(instr, frame.operandStack.pop(), frame));
+      break;
+
+    //------------------------------------------------------------
+    // Jumps
+    //------------------------------------------------------------
+
+    case JMP: {
+      int target = (int)instr.operand();
+      // a backward jump is a loop iteration: once the function is
+      // compiled, finish this call in the compiled code
+      if (jit != null && !run.interpretOnly && target < frame.pc &&
+          frame.operandStack.isEmpty()) {
+        JIT.Function compiled = jit.loop(frame.functionName(), target);
+        if (compiled != null) {
+          Object x = compiled.resume(frame, target);
+          if (listener != null)
+            listener.ret(frame, x);
+          frameStack.pop();
+          run.frame = frameStack.peek();
+          if (run.frame != null)
+            run.frame.operandStack.push(x);
+          run.returnValue = x;
+          break;
         }
-        else if(operandX instanceof Character){
-          Character y = (Character) operandY;
-          Character x = (Character) operandX;
-          frame.operandStack.push(y.compareTo(x) >= 0);
+      }
+      // run the loop's trace (the trace exits where an iteration goes
+      // a different way than when it was recorded)
+      if (tracer != null && !run.interpretOnly && target < frame.pc &&
+          frame.operandStack.isEmpty() && run.maxSteps == 0) {
+        Trace trace = tracer.loop(frame, instr);
+        if (trace != null) {
+          frame.pc = trace.run(frame);
+          break;
         }
-      } //DONE
-      else if (instr.opcode() == OpCode.CMPEQ) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        frame.operandStack.push(operandX.equals(operandY));
-      } //DONE
-      else if (instr.opcode() == OpCode.CMPNE) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        frame.operandStack.push(!operandX.equals(operandY));
-      } //DONE
-
-      
-      //------------------------------------------------------------
-      // Jumps
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.JMP) {
+      }
+      frame.pc = target;
+      break;
+    }
+
+    case JMPF:
+      if (!(boolean)frame.operandStack.pop())
         frame.pc = (int)instr.operand();
-      } //DONE - EXAMPLE
-      else if (instr.opcode() == OpCode.JMPF) {
-        boolean jump = (boolean)frame.operandStack.pop();
-        if(!jump){
-          frame.pc = (int)instr.operand();
-        }
-      } //DONE
-        
-      //------------------------------------------------------------
-      // Functions
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.CALL) {
-
-        // TODO: 
-        // (1) get frame and instantiate a new copy
-        VMFrame frameX = frames.get((instr.operand().toString())).instantiate();
-        frameStack.push(frameX);
-        // (2) Pop argument values off stack and push into the newFrame
-        List<Object> args = new ArrayList<>();
-        for(int i = 0; i < frameX.argCount(); i++){
-          Object x = frame.operandStack.pop();
-          args.add(x);
-        }
-        frame = frameX;
-        for(int i = 0; i < frameX.argCount(); i++){
-          frame.operandStack.push(args.get(i));
-        }
+      break;
+
+    case SWITCH:
+      frame.pc = ((SwitchTable)instr.operand()).target(frame.operandStack.pop());
+      break;
+
+    //------------------------------------------------------------
+    // Functions
+    //------------------------------------------------------------
+
+    case CALL: {
+      // call the compiled version of hot functions
+      JIT.Function compiled = jit == null || run.interpretOnly ? null :
+        jit.enter(instr.operand().toString());
+      if (compiled != null) {
+        Object[] args = new Object[compiled.argCount()];
+        for (int i = args.length - 1; i >= 0; --i)
+          args[i] = frame.operandStack.pop();
+        frame.operandStack.push(compiled.run(args));
+        break;
+      }
+      // get the frame, pop the argument values into a new copy of it,
+      // and make it the current frame
+      VMFrame callee = frames.get(instr.operand().toString()).instantiate();
+      passArgs(frame, callee);
+      frameStack.push(callee);
+      run.frame = callee;
+      if (listener != null)
+        listener.call(callee);
+      break;
+    }
 
-        // (3) Push the new frame onto frame stack
-        // (4) Set the new frame as the current frame
-      } // ?? DONE
-        
-      else if (instr.opcode() == OpCode.VRET) {
-        // TODO:
-        // (1) pop return value off of stack
-        Object x = frame.operandStack.pop();
-        // (2) remove the frame from the current frameStack
-        frameStack.pop();
-        // (3) set frame to the frame on the top of the stack
-        frame = frameStack.peek();
-        // (4) push the return value onto the operand stack of the frame
-        if(frame != null) {
-          frame.operandStack.push(x);
-        }
+    case FORK:
+      // too deep to be worth a task (or watched by coverage or a
+      // listener seeing each instruction, which are not thread safe):
+      // take the sequential version
+      if (run.forkDepth >= forkDepthLimit || run.interpretOnly)
+        frame.pc = (int)instr.operand();
+      break;
+
+    case PCALL: {
+      // the second call's arguments are on top of the first call's
+      List<String> funNames = VMInstr.names(instr.operand());
+      VMFrame second = frames.get(funNames.get(1)).instantiate();
+      passArgs(frame, second);
+      VMFrame first = frames.get(funNames.get(0)).instantiate();
+      passArgs(frame, first);
+      Object[] results = callPair(first, second, run.maxSteps, run.forkDepth);
+      frame.operandStack.push(results[0]);
+      frame.operandStack.push(results[1]);
+      break;
+    }
 
-      } // ?? DONE
-        
-      //------------------------------------------------------------
-      // Built-ins
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.WRITE) {
-        Object operand = frame.operandStack.pop();
-        System.out.print(operand.toString());
-      } //DONE
-
-      else if (instr.opcode() == OpCode.READ) {
-        Scanner s = new Scanner(System.in);
-        frame.operandStack.push(s.nextLine());
-      } //DONE - EXAMPLE
-
-      else if (instr.opcode() == OpCode.LEN) {
-        Object operand = frame.operandStack.pop();
-        String x = (String)operand;
-        frame.operandStack.push(x.length());
-      } //DONE
-
-      else if (instr.opcode() == OpCode.GETCHR) {
-        // pop (string) x, pop y, push x.substring(y, y+1)
-        Object operandString = frame.operandStack.pop();
-        Object operandIndex = frame.operandStack.pop();
-        String x = (String)operandString;
-        int index = (int)operandIndex;
-        if(index >= x.length() ||index < 0){
-          error("out of bounds in GETCHR",frame);
-        }
-        x = x.substring(index, index+1);
-        frame.operandStack.push(x);
-      } //DONE
-
-      else if (instr.opcode() == OpCode.TOINT) {
-        Object operand = frame.operandStack.pop();
-        Integer x = null;
-        if(operand instanceof Double){
-          double y  = (double) operand;
-          x = (int) y;
-        }
-        else if(operand instanceof String){
-          String y = (String) operand;
-          try {
-            x = Integer.valueOf(y);
-          }catch(Exception e){
-            error("nonDouble String", frame);
-          }
-        }
-        frame.operandStack.push(x);
-      } //DONE
-
-      else if (instr.opcode() == OpCode.TODBL) {
-        Object operand = frame.operandStack.pop();
-        Double x = null;
-        if(operand instanceof Integer){
-          int y  = (int) operand;
-          x = Double.valueOf(y);
-        }
-        else if(operand instanceof String){
-          String y = (String) operand;
-          try {
-            x = Double.valueOf(y);
-          }catch(Exception e){
-            error("nonDouble String", frame);
-          }
-        }
-        frame.operandStack.push(x);
-      } //DONE
-
-      else if (instr.opcode() == OpCode.TOSTR) {
-        Object operand = frame.operandStack.pop();
-        String x = operand.toString();
-        frame.operandStack.push(x);
-      } //DONE
-
-      //------------------------------------------------------------
-      // Heap related
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.ALLOC) {
-        List<String> fields = (List<String>)instr.operand();
-        Map<String,Object> fieldsMap = new HashMap<>();
-        for(String fieldName: fields){
-          fieldsMap.put(fieldName,NIL_OBJ);
-        }
-        heap.put(objectId, fieldsMap);
-        frame.operandStack.push(objectId);
-        objectId++;
-      } //DONE
-
-      else if (instr.opcode() == OpCode.FREE) {
-        // pop the oid to 
-        Object oid = frame.operandStack.pop();
-        ensureNotNil(frame, oid);
-        // remove the object with oid from the heap
-        heap.remove((int)oid);
-      } //DONE - EXAMPLE
-
-      else if (instr.opcode() == OpCode.SETFLD) {
-        Object val = frame.operandStack.pop();
-        Object oid = frame.operandStack.pop();
-        Map<String,Object> fieldsMap =  heap.get((int) oid);
-        fieldsMap.put(instr.operand().toString(), val);
-        heap.put((int) oid ,fieldsMap);
+    case VRET: {
+      // pop the return value, remove the frame, and push the value
+      // onto the operand stack of the frame now on top
+      Object x = frame.operandStack.pop();
+      if (listener != null)
+        listener.ret(frame, x);
+      frameStack.pop();
+      run.frame = frameStack.peek();
+      if (run.frame != null)
+        run.frame.operandStack.push(x);
+      run.returnValue = x;
+      break;
+    }
+
+    //------------------------------------------------------------
+    // Built-ins
+    //------------------------------------------------------------
+
+    case WRITE: {
+      Object x = frame.operandStack.pop();
+      if (!timingIO) {
+        VMOps.write(x);
+        break;
       }
+      long start = System.nanoTime();
+      VMOps.write(x);
+      writeNanos.add(System.nanoTime() - start);
+      break;
+    }
 
-      else if (instr.opcode() == OpCode.GETFLD) {
-        //get field f: pop x, push obj(x).f value
-        Object operand = frame.operandStack.pop();
-        Object got = null;
-        try {
-           got = heap.get((int) operand).get(instr.operand().toString());
-        }catch(Exception e){
-          error("Invalid heap access", frame);
-        }
-        frame.operandStack.push(got);
+    case READ: {
+      if (!timingIO) {
+        frame.operandStack.push(VMOps.read());
+        break;
       }
+      long start = System.nanoTime();
+      frame.operandStack.push(VMOps.read());
+      readNanos.add(System.nanoTime() - start);
+      break;
+    }
+
+    //------------------------------------------------------------
+    // Heap related
+    //------------------------------------------------------------
+
+    case ALLOC:
+      frame.operandStack.push(alloc(VMInstr.names(instr.operand()), frame, frame.pc - 1));
+      break;
 
-      //------------------------------------------------------------
-      // Special instructions
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.DUP) {
-        Object operandX = frame.operandStack.pop();
-        frame.operandStack.push(operandX);
-        frame.operandStack.push(operandX);
-      } //DONE
-      else if (instr.opcode() == OpCode.SWAP) {
-        Object operandX = frame.operandStack.pop();
-        Object operandY = frame.operandStack.pop();
-        frame.operandStack.push(operandX);
-        frame.operandStack.push(operandY);
-      } //DONE
-      else if (instr.opcode() == OpCode.NOP) {} //DONE
+    case FREE:
+      free(frame.operandStack.pop(), frame, frame.pc - 1);
+      break;
 
+    case SETFLD: {
+      Object val = frame.operandStack.pop();
+      Object oid = frame.operandStack.pop();
+      setField(oid, val, instr.operand().toString());
+      break;
+    }
+
+    //------------------------------------------------------------
+    // Special instructions
+    //------------------------------------------------------------
+
+    case DUP:
+      frame.operandStack.push(frame.operandStack.peek());
+      break;
+
+    case SWAP: {
+      Object x = frame.operandStack.pop();
+      Object y = frame.operandStack.pop();
+      frame.operandStack.push(x);
+      frame.operandStack.push(y);
+      break;
+    }
+
+    case NOP:
+      break;
     }
   }
 
@@ -562,19 +731,231 @@ class VM {
   // HELPER FUNCTIONS
   //----------------------------------------------------------------------
 
+  // the fork depth limit for this machine: enough levels to keep each
+  // processor busy, and 0 with just one (where forking only adds work)
+  private static int defaultForkDepthLimit() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    if (processors == 1)
+      return 0;
+    return 2 * (32 - Integer.numberOfLeadingZeros(processors)) + 2;
+  }
+
+  // pop the callee's arguments off the caller's operand stack and push
+  // them onto the callee's (same order as CALL)
+  private void passArgs(VMFrame caller, VMFrame callee) {
+    List<Object> args = new ArrayList<>();
+    for (int i = 0; i < callee.argCount(); i++)
+      args.add(caller.operandStack.pop());
+    for (int i = 0; i < callee.argCount(); i++)
+      callee.operandStack.push(args.get(i));
+  }
+
+  // run two (pure) function calls, each on its own call stack, and
+  // return their results. Below the fork depth limit the second call
+  // runs as a fork/join task while this thread runs the first (else
+  // they run one after the other).
+  private Object[] callPair(VMFrame first, VMFrame second, long maxSteps, int forkDepth)
+    throws MyPLException
+  {
+    Deque<VMFrame> firstStack = new ArrayDeque<>();
+    firstStack.push(first);
+    Deque<VMFrame> secondStack = new ArrayDeque<>();
+    secondStack.push(second);
+    if (forkDepth >= forkDepthLimit) {
+      Object x = execute(firstStack, maxSteps, forkDepth);
+      Object y = execute(secondStack, maxSteps, forkDepth);
+      return new Object[] {x, y};
+    }
+    RecursiveTask<Object> task = new RecursiveTask<>() {
+        protected Object compute() {
+          try {
+            return execute(secondStack, maxSteps, forkDepth + 1);
+          } catch (MyPLException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    task.fork();
+    Object x = null;
+    try {
+      x = execute(firstStack, maxSteps, forkDepth + 1);
+    } catch (MyPLException e) {
+      task.cancel(false);
+      throw e;
+    }
+    try {
+      return new Object[] {x, task.join()};
+    } catch (RuntimeException e) {
+      // report the MyPL error from the task (if that's what it was)
+      for (Throwable t = e; t != null; t = t.getCause())
+        if (t instanceof MyPLException)
+          throw (MyPLException)t;
+      throw e;
+    }
+  }
+
+  // the result of a binary op (or GETCHR) on y and x, the values
+  // under and on top of the operand stack
+  private static Object binaryOp(OpCode op, Object y, Object x, VMFrame f) throws MyPLException {
+    int pc = f.pc - 1;
+    switch (op) {
+    case ADD: return VMOps.add(y, x, f, pc);
+    case SUB: return VMOps.sub(y, x, f, pc);
+    case MUL: return VMOps.mul(y, x, f, pc);
+    case DIV: return VMOps.div(y, x, f, pc);
+    case MOD: return VMOps.mod(y, x, f, pc);
+    case AND: return VMOps.and(y, x, f, pc);
+    case OR: return VMOps.or(y, x, f, pc);
+    case CMPLT: return VMOps.cmplt(y, x, f, pc);
+    case CMPLE: return VMOps.cmple(y, x, f, pc);
+    case CMPGT: return VMOps.cmpgt(y, x, f, pc);
+    case CMPGE: return VMOps.cmpge(y, x, f, pc);
+    case CMPEQ: return VMOps.cmpeq(y, x);
+    case CMPNE: return VMOps.cmpne(y, x);
+    default:
+      // pop (string) x, pop y, push x.substring(y, y+1)
+      return VMOps.getchr(y, x, f, pc);
+    }
+  }
+
+  // the result of a unary instruction on the top of the operand stack
+  private Object unaryOp(VMInstr instr, Object x, VMFrame f) throws MyPLException {
+    int pc = f.pc - 1;
+    switch (instr.opcode()) {
+    case NEG: return VMOps.neg(x, f, pc);
+    case NOT: return VMOps.not(x, f, pc);
+    case LEN: return VMOps.len(x);
+    case TOINT: return VMOps.toint(x, f, pc);
+    case TODBL: return VMOps.todbl(x, f, pc);
+    case TOSTR: return VMOps.tostr(x);
+    default:
+      //get field f: pop x, push obj(x).f value
+      return getField(x, instr.operand().toString(), f, pc);
+    }
+  }
+
+  // combines the attached listeners into one (null if there are none)
+  private void updateListener() {
+    if (listeners.isEmpty())
+      listener = null;
+    else if (listeners.size() == 1)
+      listener = listeners.get(0);
+    else
+      listener = new Listeners(listeners.toArray(new VMListener[0]));
+  }
+
+  // several listeners as one
+  private static class Listeners implements VMListener {
+    private VMListener[] all;
+
+    Listeners(VMListener[] all) {
+      this.all = all;
+    }
+
+    public boolean tracesInstructions() {
+      for (VMListener l : all)
+        if (l.tracesInstructions())
+          return true;
+      return false;
+    }
+
+    public void instruction(VMFrame frame, int pc, VMInstr instr) {
+      for (VMListener l : all)
+        l.instruction(frame, pc, instr);
+    }
+
+    public void call(VMFrame frame) {
+      for (VMListener l : all)
+        l.call(frame);
+    }
+
+    public void ret(VMFrame frame, Object value) {
+      for (VMListener l : all)
+        l.ret(frame, value);
+    }
+
+    public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+      for (VMListener l : all)
+        l.alloc(frame, pc, oid, fields);
+    }
+
+    public void free(VMFrame frame, int pc, Object oid) {
+      for (VMListener l : all)
+        l.free(frame, pc, oid);
+    }
+
+    public void error(MyPLException error, VMFrame frame) {
+      for (VMListener l : all)
+        l.error(error, frame);
+    }
+
+    public void phase(String name, boolean start) {
+      for (VMListener l : all)
+        l.phase(name, start);
+    }
+  }
+
   // error
   private void error(String m, VMFrame f) throws MyPLException {
-    int pc = f.pc - 1;
-    VMInstr i = f.instructions.get(pc);
-    String name = f.functionName();
-    m += " (in " + name + " at " + pc + ": " + i + ")";
-    throw MyPLException.VMError(m);
+    throw VMOps.error(m, f, f.pc - 1);
+  }
+
+  // store a value in the k-th variable of a frame (a new variable is
+  // added, with nil for any skipped)
+  private static void store(VMFrame f, int k, Object x) {
+    if (k < f.variables.size())
+      f.variables.set(k, x);
+    else {
+      while (f.variables.size() < k)
+        f.variables.add(NIL_OBJ);
+      f.variables.add(x);
+    }
   }
 
-  // error if given value is nil
-  private void ensureNotNil(VMFrame f, Object v) throws MyPLException {
-    if (v == NIL_OBJ)
-      error("Nil reference", f);
+  // the value of the k-th variable of a frame (nil if not yet stored)
+  static Object variable(VMFrame f, int k) {
+    if (k < f.variables.size())
+      return f.variables.get(k);
+    return NIL_OBJ;
+  }
+
+  //----------------------------------------------------------------------
+  // HEAP OPERATIONS (used by the run loop and by compiled code)
+  //----------------------------------------------------------------------
+
+  // create an object with the given (nil) fields, returning its oid
+  // (the pc is of the ALLOC)
+  Object alloc(List<String> fields, VMFrame f, int pc) {
+    Map<String,Object> fieldsMap = new HashMap<>();
+    for(String fieldName: fields){
+      fieldsMap.put(fieldName,NIL_OBJ);
+    }
+    heap.put(objectId, fieldsMap);
+    if (listener != null)
+      listener.alloc(f, pc, objectId, fields);
+    return objectId++;
+  }
+
+  // remove an object from the heap (the pc is of the FREE)
+  void free(Object oid, VMFrame f, int pc) throws MyPLException {
+    VMOps.ensureNotNil(oid, f, pc);
+    if (listener != null)
+      listener.free(f, pc, oid);
+    heap.remove((int)oid);
+  }
+
+  void setField(Object oid, Object val, String field) {
+    Map<String,Object> fieldsMap =  heap.get((int) oid);
+    fieldsMap.put(field, val);
+  }
+
+  // the value of an object's field (the pc is of the GETFLD)
+  Object getField(Object oid, String field, VMFrame f, int pc) throws MyPLException {
+    try {
+      return heap.get((int) oid).get(field);
+    }catch(Exception e){
+      throw VMOps.error("Invalid heap access", f, pc);
+    }
   }
   
   
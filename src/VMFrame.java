@@ -38,6 +38,14 @@ public class VMFrame {
   // the program counter (pc) for an active stack frame
   public int pc = 0;
 
+  // the source positions of the instructions (shared by the frame's
+  // copies)
+  public LineTable lines = new LineTable();
+
+  // the instructions run and branches taken (null unless the VM is
+  // measuring coverage, and shared by the frame's copies)
+  public Coverage coverage = null;
+
 
   // basic constructor
   public VMFrame(String functionName, int argCount) {
@@ -68,6 +76,8 @@ public class VMFrame {
     VMFrame newFrame = new VMFrame(functionName, argCount);
     for (VMInstr instr : instructions) 
       newFrame.instructions.add(instr);
+    newFrame.lines = lines;
+    newFrame.coverage = coverage;
     return newFrame;
   }
   
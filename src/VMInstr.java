@@ -36,6 +36,14 @@ public class VMInstr {
     return operand;
   }
 
+  // the field names of an ALLOC operand or the function names of a
+  // PCALL operand (only ALLOC() and PCALL() make these, each from a
+  // List<String>, so the cast can't fail)
+  @SuppressWarnings("unchecked")
+  public static List<String> names(Object operand) {
+    return (List<String>)operand;
+  }
+
   public void updateOperand(Object operand) {
     this.operand = operand;
   }
@@ -151,10 +159,22 @@ public class VMInstr {
     return new VMInstr(OpCode.JMPF, address);
   }
 
+  public static VMInstr SWITCH(SwitchTable table) {
+    return new VMInstr(OpCode.SWITCH, table);
+  }
+
   public static VMInstr CALL(String funName) {
     return new VMInstr(OpCode.CALL, funName);    
   }
 
+  public static VMInstr FORK(int address) {
+    return new VMInstr(OpCode.FORK, address);
+  }
+
+  public static VMInstr PCALL(List<String> funNames) {
+    return new VMInstr(OpCode.PCALL, funNames);
+  }
+
   public static VMInstr VRET() {
     return new VMInstr(OpCode.VRET);
   }
@@ -0,0 +1,92 @@
+/*
+ * File: VMListener.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Interface for tools (debug output, profilers, coverage) that
+ *       watch a VM run (see VM.addListener). Each function has an
+ *       empty default so a listener only overrides what it needs.
+ *       Calls and returns of PCALLs may be reported from fork/join
+ *       worker threads, and calls run by compiled code (see JIT) are
+ *       not reported.
+ */
+
+import java.util.List;
+
+
+public interface VMListener {
+
+  /**
+   * Returns true if the listener wants instruction() calls. While such
+   * a listener is attached every instruction runs in the interpreter
+   * (hot functions and loops are not compiled) on one thread (PCALLs
+   * run sequentially).
+   */
+  public default boolean tracesInstructions() {
+    return false;
+  }
+
+  /**
+   * Called before an instruction runs (the frame's operand stack
+   * holds all of its values).
+   * @param frame the active frame
+   * @param pc the index of the instruction
+   * @param instr the instruction
+   */
+  public default void instruction(VMFrame frame, int pc, VMInstr instr) {
+  }
+
+  /**
+   * Called when a function starts (before its first instruction).
+   * @param frame the new frame
+   */
+  public default void call(VMFrame frame) {
+  }
+
+  /**
+   * Called when a function returns.
+   * @param frame the returning frame
+   * @param value the return value
+   */
+  public default void ret(VMFrame frame, Object value) {
+  }
+
+  /**
+   * Called when an object is created.
+   * @param frame the frame creating it (for compiled code, the
+   *        function's template frame)
+   * @param pc the index of the ALLOC (or, from the AST interpreter,
+   *        the negated source line)
+   * @param oid the new object's id
+   * @param fields the object's fields
+   */
+  public default void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+  }
+
+  /**
+   * Called when an object is deleted (while it is still on the heap).
+   * @param frame the frame deleting it (as for alloc)
+   * @param pc the index of the FREE (as for alloc)
+   * @param oid the object's id
+   */
+  public default void free(VMFrame frame, int pc, Object oid) {
+  }
+
+  /**
+   * Called when a runtime error stops the VM. The calls active on the
+   * thread end with it (no ret calls follow).
+   * @param error the error
+   * @param frame the frame running when it occurred
+   */
+  public default void error(MyPLException error, VMFrame frame) {
+  }
+
+  /**
+   * Called when a step of the program's run starts and when it ends:
+   * a compile step (e.g., "parse", "codegen") or "run" itself.
+   * @param name the step's name
+   * @param start true at the start of the step, false at its end
+   */
+  public default void phase(String name, boolean start) {
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * File: VMMonitor.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: Publishes a VM's live counters as a JMX MXBean (named
+ *       "mypl:type=VM,name=vm-N"), so tools like jconsole can watch a
+ *       long run. It is a VM listener for calls and the heap (using
+ *       striped counters, as PCALL tasks run on several threads), and
+ *       reads the VM's own instruction and I/O counters. Run loops
+ *       publish their instruction counts every so many instructions
+ *       (see VM.instructionsExecuted), and the VM only times WRITE and
+ *       READ once a monitor is attached. Given a heap profiler, its
+ *       report can also be asked for while the program runs.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+public class VMMonitor implements VMListener, VMMonitorMXBean {
+
+  // rough sizes of a heap object (its field map and heap entry) and of
+  // each of its fields
+  static final long OBJECT_BYTES = 96;
+  static final long FIELD_BYTES = 40;
+
+  // the number of monitors registered (to name them)
+  private static AtomicInteger registered = new AtomicInteger();
+
+  private VM vm;
+  private ObjectName name = null;
+
+  private LongAdder calls = new LongAdder();
+  private AtomicInteger depth = new AtomicInteger();
+  private LongAdder allocations = new LongAdder();
+  private LongAdder frees = new LongAdder();
+  private LongAdder fields = new LongAdder();
+  private HeapProfiler heapProfiler = null;
+
+
+  /**
+   * Creates a monitor and attaches it to a VM.
+   * @param vm the VM to watch
+   */
+  public VMMonitor(VM vm) {
+    this.vm = vm;
+    vm.addListener(this);
+    vm.setIOTiming(true);
+  }
+
+  /**
+   * Sets the heap profiler whose report heapReport returns.
+   * @param heapProfiler the profiler (or null for none)
+   */
+  public void setHeapProfiler(HeapProfiler heapProfiler) {
+    this.heapProfiler = heapProfiler;
+  }
+
+  /**
+   * Registers the monitor with the platform MBean server.
+   * @return the name it is registered under
+   */
+  public ObjectName register() throws JMException {
+    name = new ObjectName("mypl:type=VM,name=vm-" + registered.incrementAndGet());
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    return name;
+  }
+
+  /**
+   * Removes the monitor from the platform MBean server (if it was
+   * registered).
+   */
+  public void unregister() throws JMException {
+    if (name != null)
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    name = null;
+  }
+
+  @Override
+  public void call(VMFrame frame) {
+    calls.increment();
+    depth.incrementAndGet();
+  }
+
+  @Override
+  public void ret(VMFrame frame, Object value) {
+    depth.decrementAndGet();
+  }
+
+  @Override
+  public void error(MyPLException error, VMFrame frame) {
+    depth.set(0);
+  }
+
+  @Override
+  public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+    allocations.increment();
+    this.fields.add(fields.size());
+  }
+
+  @Override
+  public void free(VMFrame frame, int pc, Object oid) {
+    Map<String,Object> object = vm.heap().get((int)oid);
+    if (object == null)
+      return;
+    frees.increment();
+    fields.add(-object.size());
+  }
+
+  public long getInstructionsExecuted() {
+    return vm.instructionsExecuted();
+  }
+
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  public int getCallDepth() {
+    return Math.max(0, depth.get());
+  }
+
+  public long getLiveObjects() {
+    return allocations.sum() - frees.sum();
+  }
+
+  public long getEstimatedHeapBytes() {
+    return getLiveObjects() * OBJECT_BYTES + fields.sum() * FIELD_BYTES;
+  }
+
+  public long getAllocations() {
+    return allocations.sum();
+  }
+
+  public long getFrees() {
+    return frees.sum();
+  }
+
+  public double getWriteMillis() {
+    return vm.writeNanos() / 1e6;
+  }
+
+  public double getReadMillis() {
+    return vm.readNanos() / 1e6;
+  }
+
+  public String heapReport() {
+    if (heapProfiler == null)
+      return "No heap profile (run with --heap-report)";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    heapProfiler.report(new PrintStream(out));
+    return out.toString();
+  }
+
+}
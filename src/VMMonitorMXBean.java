@@ -0,0 +1,38 @@
+/*
+ * File: VMMonitorMXBean.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The live counters of a running VM, as shown by JMX tools
+ *       (see VMMonitor).
+ */
+
+
+public interface VMMonitorMXBean {
+
+  // instructions run by the VM's run loops (not by compiled code)
+  public long getInstructionsExecuted();
+
+  // function calls started
+  public long getCalls();
+
+  // calls started but not yet returned (on all threads)
+  public int getCallDepth();
+
+  // objects on the heap
+  public long getLiveObjects();
+
+  // a rough estimate of the heap's size in bytes
+  public long getEstimatedHeapBytes();
+
+  // objects created and deleted
+  public long getAllocations();
+  public long getFrees();
+
+  // time spent in WRITE and READ instructions
+  public double getWriteMillis();
+  public double getReadMillis();
+
+  // the heap profile so far (see HeapProfiler), if one is attached
+  public String heapReport();
+
+}
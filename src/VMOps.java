@@ -0,0 +1,246 @@
+/*
+ * File: VMOps.java
+ * Date: Spring 2022
+ * Auth: Dominic MacIsaac
+ * Desc: The semantics of the MyPL VM's value instructions (arithmetic,
+ *       comparison, logical, and built-in operations). Shared by the
+ *       VM's run loop and by code compiled by the JIT so that both
+ *       produce exactly the same results and runtime errors. Binary
+ *       operations take their operands in stack order: y (pushed
+ *       first) then x (the top of the stack).
+ */
+
+import java.util.Scanner;
+
+
+public class VMOps {
+
+  //----------------------------------------------------------------------
+  // Errors
+  //----------------------------------------------------------------------
+
+  /**
+   * Creates a VM error for the instruction at the given pc of a frame.
+   * @param m the error message
+   * @param f the frame (function) the error occurred in
+   * @param pc the index of the instruction that caused the error (or,
+   *        from the AST interpreter, the negated source line); the
+   *        message gives the instruction's source line if known
+   */
+  public static MyPLException error(String m, VMFrame f, int pc) {
+    String name = f.functionName();
+    if (pc < 0)
+      m += " (in " + name + " at line " + -pc + ")";
+    else {
+      m += " (in " + name + " at " + pc + ": " + f.instructions.get(pc) + ")";
+      int line = f.lines.line(pc);
+      if (line > 0)
+        m += " near line " + line + ", column " + f.lines.column(pc);
+    }
+    return MyPLException.VMError(m);
+  }
+
+  // error if given value is nil
+  public static void ensureNotNil(Object v, VMFrame f, int pc) throws MyPLException {
+    if (v == VM.NIL_OBJ)
+      throw error("Nil reference", f, pc);
+  }
+
+
+  //----------------------------------------------------------------------
+  // Ops
+  //----------------------------------------------------------------------
+
+  public static Object add(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y + (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y + (Double)x;
+    else if (x instanceof String)
+      return (String)y + (String)x;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object sub(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y - (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y - (Double)x;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object mul(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y * (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y * (Double)x;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object div(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (int)y / (int)x;
+    else if (x instanceof Double)
+      return (double)y / (double)x;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object mod(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    return (Integer)y % (Integer)x;
+  }
+
+  public static Object neg(Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    if (x instanceof Integer)
+      return -1 * (Integer)x;
+    else if (x instanceof Double)
+      return -1 * (Double)x;
+    throw error("Invalid operand", f, pc);
+  }
+
+  public static Object and(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    return (boolean)x && (boolean)y;
+  }
+
+  public static Object or(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    return (boolean)x || (boolean)y;
+  }
+
+  public static Object not(Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    return !(boolean)x;
+  }
+
+  public static Object cmplt(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y < (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y < (Double)x;
+    else if (x instanceof String)
+      return ((String)y).compareTo((String)x) < 0;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object cmple(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y <= (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y <= (Double)x;
+    else if (x instanceof String)
+      return ((String)y).compareTo((String)x) <= 0;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object cmpgt(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y > (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y > (Double)x;
+    else if (x instanceof String)
+      return ((String)y).compareTo((String)x) > 0;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object cmpge(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    ensureNotNil(x, f, pc);
+    ensureNotNil(y, f, pc);
+    if (x instanceof Integer)
+      return (Integer)y >= (Integer)x;
+    else if (x instanceof Double)
+      return (Double)y >= (Double)x;
+    else if (x instanceof String)
+      return ((String)y).compareTo((String)x) >= 0;
+    throw error("Invalid operands", f, pc);
+  }
+
+  public static Object cmpeq(Object y, Object x) {
+    return x.equals(y);
+  }
+
+  public static Object cmpne(Object y, Object x) {
+    return !x.equals(y);
+  }
+
+  // the value of a JMPF condition
+  public static boolean isTrue(Object x) {
+    return (boolean)x;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Built-ins
+  //----------------------------------------------------------------------
+
+  public static void write(Object x) {
+    System.out.print(x.toString());
+  }
+
+  public static Object read() {
+    Scanner s = new Scanner(System.in);
+    return s.nextLine();
+  }
+
+  public static Object len(Object x) {
+    return ((String)x).length();
+  }
+
+  // pop (string) x, pop y, push x.substring(y, y+1)
+  public static Object getchr(Object y, Object x, VMFrame f, int pc) throws MyPLException {
+    String s = (String)x;
+    int index = (int)y;
+    if (index >= s.length() || index < 0)
+      throw error("out of bounds in GETCHR", f, pc);
+    return s.substring(index, index + 1);
+  }
+
+  public static Object toint(Object x, VMFrame f, int pc) throws MyPLException {
+    if (x instanceof Double)
+      return (int)(double)x;
+    else if (x instanceof String) {
+      try {
+        return Integer.valueOf((String)x);
+      } catch(Exception e) {
+        throw error("nonDouble String", f, pc);
+      }
+    }
+    return null;
+  }
+
+  public static Object todbl(Object x, VMFrame f, int pc) throws MyPLException {
+    if (x instanceof Integer)
+      return Double.valueOf((int)x);
+    else if (x instanceof String) {
+      try {
+        return Double.valueOf((String)x);
+      } catch(Exception e) {
+        throw error("nonDouble String", f, pc);
+      }
+    }
+    return null;
+  }
+
+  public static Object tostr(Object x) {
+    return x.toString();
+  }
+
+}
@@ -11,6 +11,9 @@ public class VarDeclStmt implements Stmt {
   public Token typeName = null;
   public Token varName = null;
   public Expr expr = null;
+
+  // the variable index (cached by the AST interpreter)
+  public int slot = -1;
   
   @Override
   public void accept(Visitor visitor) throws MyPLException {
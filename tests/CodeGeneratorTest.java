@@ -18,6 +18,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class CodeGeneratorTest {
@@ -606,6 +608,65 @@ public class CodeGeneratorTest {
     assertEquals("90", output.toString());
   }
 
+  @Test
+  public void unrolledConstantFor() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  for i from 0 upto 2 {",
+       "    for j from i downto 0 {",
+       "      print(itos(i) + itos(j) + \" \")",
+       "    }",
+       "  }",
+       "  for k from 2 upto 1 {",
+       "    print(\"never\")",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertEquals(false, vm.toString().contains("JMP"));
+    vm.run();
+    assertEquals("00 11 10 22 21 20 ", output.toString());
+  }
+
+  @Test
+  public void partiallyUnrolledFor() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 0",
+       "  for i from 1 upto 10 {",
+       "    x = x + i",
+       "  }",
+       "  print(x)",
+       "  print(' ')",
+       "  for i from 9 downto neg 1 {",
+       "    print(i)",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("55 9876543210-1", output.toString());
+  }
+
+  @Test
+  public void unrollingOff() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  for i from 1 upto 3 {",
+       "    print(i)",
+       "  }",
+       "}");
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    genVisitor.setUnrollFactor(1);
+    program.accept(genVisitor);
+    assertEquals(true, vm.toString().contains("JMPF"));
+    vm.run();
+    assertEquals("123", output.toString());
+  }
+
   //------------------------------------------------------------
   // If-Then-Else Statements
   //------------------------------------------------------------
@@ -700,7 +761,87 @@ public class CodeGeneratorTest {
     vm.run();
     assertEquals("0 1 2 3 0", output.toString());
   }
-  
+
+  @Test
+  public void intSwitchElif() throws Exception {
+    String s = buildString
+      ("fun string f(int x) {",
+       "  if x == 1 {",
+       "    return \"one\"",
+       "  }",
+       "  elif x == 2 {",
+       "    return \"two\"",
+       "  }",
+       "  elif 3 == x {",
+       "    return \"three\"",
+       "  }",
+       "  elif x == 2 {",
+       "    return \"dup\"",
+       "  }",
+       "  elif (x == 7) {",
+       "    return \"seven\"",
+       "  }",
+       "  else {",
+       "    return \"other\"",
+       "  }",
+       "}",
+       "fun void main() {",
+       "  for i from 0 upto 8 {",
+       "    print(f(i) + \" \")",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertEquals(true, vm.toString().contains("SWITCH"));
+    vm.run();
+    assertEquals("other one two three other other other seven other ", output.toString());
+  }
+
+  @Test
+  public void stringSwitchElif() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var cmds = \"aqbzb\"",
+       "  for i from 0 upto length(cmds) - 1 {",
+       "    var c = get(i, cmds)",
+       "    if c == 'a' {",
+       "      print(\"add \")",
+       "    }",
+       "    elif c == 'b' {",
+       "      print(\"back \")",
+       "    }",
+       "    elif c == 'q' {",
+       "      print(\"quit \")",
+       "    }",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertEquals(true, vm.toString().contains("SWITCH"));
+    vm.run();
+    assertEquals("add quit back back ", output.toString());
+  }
+
+  @Test
+  public void mixedVariableElifs() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 2",
+       "  var y = 3",
+       "  if x == 1 {",
+       "    print(1)",
+       "  }",
+       "  elif y == 3 {",
+       "    print(3)",
+       "  }",
+       "  elif x == 2 {",
+       "    print(2)",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertEquals(false, vm.toString().contains("SWITCH"));
+    vm.run();
+    assertEquals("3", output.toString());
+  }
+
   //------------------------------------------------------------
   // Recursive Functions
   //------------------------------------------------------------
@@ -725,193 +866,1420 @@ public class CodeGeneratorTest {
     vm.run();
     assertEquals("0 1 55", output.toString());
   }
-  
+
   //------------------------------------------------------------
-  // User-Defined Types
+  // Parallel Calls
   //------------------------------------------------------------
 
+  private static VM buildParallelVM(String s) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    genVisitor.setParallelCalls(true);
+    program.accept(genVisitor);
+    return vm;
+  }
+
   @Test
-  public void basicUDT() throws Exception {
+  public void parallelPureCalls() throws Exception {
     String s = buildString
-      ("type T {", 
-       "  var x = 0", 
-       "  var y = true",
-       "}", 
+      ("fun int fib(int x) {",
+       "  if x <= 1 {",
+       "    return x",
+       "  }",
+       "  return fib(x - 2) + fib(x - 1)",
+       "}",
        "fun void main() {",
-       "  var t1 = new T",
-       "  var t2 = new T",
-       "  print(t1)",
-       "  print(' ')",
-       "  print(t2)",
+       "  for i from 0 upto 10 {",
+       "    print(itos(fib(i)) + \" \")",
+       "  }",
        "}");
-    VM vm = buildVM(s);
+    VM vm = buildParallelVM(s);
+    assertEquals(true, vm.toString().contains("PCALL"));
+    // (forks even with one processor)
+    vm.setForkDepthLimit(4);
     vm.run();
-    assertEquals("1111 1112", output.toString());
+    assertEquals("0 1 1 2 3 5 8 13 21 34 55 ", output.toString());
+    output.reset();
+    vm.setForkDepthLimit(0);
+    vm.run();
+    assertEquals("0 1 1 2 3 5 8 13 21 34 55 ", output.toString());
   }
 
   @Test
-  public void basicPathsUDT() throws Exception {
+  public void parallelCallsWithInstructionListener() throws Exception {
     String s = buildString
-      ("type T {", 
-       "  var x = 0", 
-       "  var y = true",
-       "}", 
+      ("fun int fib(int x) {",
+       "  if x <= 1 {",
+       "    return x",
+       "  }",
+       "  return fib(x - 2) + fib(x - 1)",
+       "}",
        "fun void main() {",
-       "  var t = new T",
-       "  t.x = 3",
-       "  var x = t.x",
-       "  print(x)",
-       "  print(' ')", 
-       "  t.y = false", 
-       "  var y = t.y", 
-       "  print(y)",
+       "  var n = 15",
+       "  while n < 16 {",
+       "    print(itos(fib(n)))",
+       "    n = n + 1",
+       "  }",
        "}");
-    VM vm = buildVM(s);
+    VM vm = buildParallelVM(s);
+    vm.setForkDepthLimit(4);
+    List<OpCode> ops = new ArrayList<>();
+    vm.addListener(new VMListener() {
+        public boolean tracesInstructions() {
+          return true;
+        }
+        public void instruction(VMFrame frame, int pc, VMInstr instr) {
+          ops.add(instr.opcode());
+        }
+      });
     vm.run();
-    assertEquals("3 false", output.toString());
+    assertEquals("610", output.toString());
+    // (each FORK took the sequential version)
+    assertEquals(true, ops.contains(OpCode.FORK));
+    assertEquals(false, ops.contains(OpCode.PCALL));
   }
 
   @Test
-  public void basicTwoLevelUDT() throws Exception {
+  public void parallelCallError() throws Exception {
     String s = buildString
-      ("type T {", 
-       "  var x = 0", 
-       "  var y = true",
-       "}",
-       "type S {",
-       "  var T t = new T",
+      ("fun int f(string s) {",
+       "  return stoi(s)",
        "}",
        "fun void main() {",
-       "  var s = new S",
-       "  s.t.x = 3",
-       "  var x = s.t.x",
-       "  print(x)",
-       "  print(' ')", 
-       "  print(s.t.y)",
+       "  var a = \"1\"",
+       "  var b = \"x\"",
+       "  print(f(a) + f(b))",
        "}");
-    VM vm = buildVM(s);
-    vm.run();
-    assertEquals("3 true", output.toString());
+    VM vm = buildParallelVM(s);
+    assertEquals(true, vm.toString().contains("PCALL"));
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      assertEquals("", output.toString());
+    }
   }
 
+  //------------------------------------------------------------
+  // Dead Function Elimination
+  //------------------------------------------------------------
+
   @Test
-  public void basicRecursiveUDT() throws Exception {
+  public void unreachableFunctionsRemoved() throws Exception {
     String s = buildString
-      ("type T {", 
-       "  var x = 0", 
-       "  var y = true",
-       "  var T t = nil",
+      ("fun void used(int x) {",
+       "  print(x)",
+       "}",
+       "fun void ping(int x) {",
+       "  pong(x)",
+       "}",
+       "fun void pong(int x) {",
+       "  ping(x)",
        "}",
        "fun void main() {",
-       "  var t1 = new T",
-       "  print(t1.x)",
-       "  print(t1.y)",
-       "  print(t1.t)",
-       "  var t2 = new T",
-       "  t2.x = 3",
-       "  t1.t = t2",
-       "  print(' ')",
-       "  print(t1.t)",
-       "  print(t1.t.x)",
-       "  print(t1.t.y)",
+       "  used(4)",
        "}");
-    VM vm = buildVM(s);
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    program.accept(genVisitor);
+    assertEquals("[ping, pong]", genVisitor.removedFunctions().toString());
+    assertEquals("[ping]", genVisitor.callGraph().callers("pong").toString());
+    assertEquals(false, vm.toString().contains("Frame 'ping'"));
+    assertEquals(true, vm.toString().contains("Frame 'used'"));
     vm.run();
-    assertEquals("0truenil 11123true", output.toString());
+    assertEquals("4", output.toString());
   }
-  
+
   //------------------------------------------------------------
-  // Runtime errors
+  // Compile-Time Evaluation
   //------------------------------------------------------------
-  
+
   @Test
-  public void nilVarDerefence() throws Exception {
+  public void pureCallEvaluated() throws Exception {
     String s = buildString
-      ("fun void main() {",
-       "  var int x = nil",
-       "  var y = 3 + x",
+      ("fun int fib(int x) {",
+       "  if x <= 1 {",
+       "    return x",
+       "  }",
+       "  return fib(x - 2) + fib(x - 1)",
+       "}",
+       "fun string twice(string s) {",
+       "  return s + s",
+       "}",
+       "fun void main() {",
+       "  print(fib(15))",
+       "  print(twice(\" ab\"))",
        "}");
     VM vm = buildVM(s);
-    try {
-      vm.run();
-      fail("runtime error not detected");
-    } catch(MyPLException e) {
-      // to test message: assertEquals("...", e.getMessage());
-      // to print message: stdout.println(e.toString());
-    }
+    String main = vm.toString().substring(vm.toString().indexOf("Frame 'main'") + 1);
+    if (main.contains("Frame '"))
+      main = main.substring(0, main.indexOf("Frame '"));
+    assertEquals(false, main.contains("CALL"));
+    vm.run();
+    assertEquals("610 ab ab", output.toString());
   }
 
   @Test
-  public void invalidIndex() throws Exception {
+  public void impureCallNotEvaluated() throws Exception {
     String s = buildString
-      ("fun void main() {",
-       "  var s = \"foobar\"",
-       "  var y = get(6, s)",
+      ("fun int f(int x) {",
+       "  print(x)",
+       "  return x + 1",
+       "}",
+       "fun void main() {",
+       "  print(f(1))",
+       "  print(f(1))",
        "}");
     VM vm = buildVM(s);
-    try {
-      vm.run();
-      fail("runtime error not detected");
-    } catch(MyPLException e) {
-      // to test message: assertEquals("...", e.getMessage());
-      // to print message: stdout.println(e.toString());
-    }
+    assertEquals(true, vm.toString().contains("CALL f"));
+    vm.run();
+    assertEquals("1212", output.toString());
   }
 
   @Test
-  public void invalidIntConversion() throws Exception {
+  public void failingPureCallLeftForRunTime() throws Exception {
     String s = buildString
-      ("fun void main() {",
-       "  var s = \"bar\"",
-       "  var y = stoi(s)",
+      ("fun int f(string s) {",
+       "  return stoi(s)",
+       "}",
+       "fun void main() {",
+       "  print(f(\"12\"))",
+       "  var y = f(\"bar\")",
        "}");
     VM vm = buildVM(s);
+    assertEquals(true, vm.toString().contains("CALL f"));
     try {
       vm.run();
       fail("runtime error not detected");
     } catch(MyPLException e) {
-      // to test message: assertEquals("...", e.getMessage());
-      // to print message: stdout.println(e.toString());
+      assertEquals("12", output.toString());
     }
   }
 
   @Test
-  public void invalidDoubleConversion() throws Exception {
+  public void jitCompiledFunctions() throws Exception {
     String s = buildString
-      ("fun void main() {",
-       "  var s = \"bar\"",
-       "  var y = stod(s)",
+      ("type Box {",
+       "  var int val = 0",
+       "}",
+       "fun int fib(int x) {",
+       "  if x <= 1 {",
+       "    return x",
+       "  }",
+       "  return fib(x - 2) + fib(x - 1)",
+       "}",
+       "fun void show(Box b) {",
+       "  print(itos(b.val) + \" \")",
+       "}",
+       "fun void main() {",
+       "  var n = stoi(\"15\")",
+       "  var b = new Box",
+       "  var i = 0",
+       "  while i < n {",
+       "    b.val = fib(i)",
+       "    show(b)",
+       "    i = i + 1",
+       "  }",
        "}");
     VM vm = buildVM(s);
-    try {
-      vm.run();
-      fail("runtime error not detected");
-    } catch(MyPLException e) {
-      // to test message: assertEquals("...", e.getMessage());
-      // to print message: stdout.println(e.toString());
-    }
+    vm.setJIT(2);
+    vm.run();
+    assertEquals("0 1 1 2 3 5 8 13 21 34 55 89 144 233 377 ",
+                 output.toString());
+    assertEquals(List.of("fib", "show", "main"), vm.jit().compiledFunctions());
   }
 
   @Test
-  public void invalidHeapAccess() throws Exception {
+  public void jitRuntimeError() throws Exception {
     String s = buildString
-      ("type T {",
-       "  var x = 0",
-       "}",       
+      ("fun int f(char c) {",
+       "  return stoi(\"\" + c)",
+       "}",
        "fun void main() {",
-       "  var t = new T", 
-       "  delete t",
-       "  print(t.x)",
+       "  var xs = \"1234x\"",
+       "  for i from 0 upto length(xs) - 1 {",
+       "    print(itos(f(get(i, xs))))",
+       "  }",
        "}");
     VM vm = buildVM(s);
+    vm.setJIT(1);
     try {
       vm.run();
       fail("runtime error not detected");
     } catch(MyPLException e) {
-      // to test message: assertEquals("...", e.getMessage());
-      // to print message: stdout.println(e.toString());
+      assertEquals("1234", output.toString());
+      assertEquals(true, e.getMessage().contains("(in f at 4: TOINT)"));
     }
   }
-  
+
+  @Test
+  public void jitDeepRecursion() throws Exception {
+    // (deeper than the Java stack holds compiled calls)
+    String s = buildString
+      ("fun int down(int n) {",
+       "  if n == 0 {",
+       "    return 0",
+       "  }",
+       "  return 1 + down(n - 1)",
+       "}",
+       "fun void main() {",
+       "  var n = 200000",
+       "  print(itos(down(n)))",
+       "}");
+    VM vm = buildVM(s);
+    vm.setJIT(2);
+    vm.run();
+    assertEquals("200000", output.toString());
+    assertEquals(List.of("down"), vm.jit().compiledFunctions());
+  }
+
+  @Test
+  public void tracedLoops() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var total = 0",
+       "  var d = 0.0",
+       "  var i = 0",
+       "  while i < 40 {",
+       "    if (i % 3) == 0 {",
+       "      total = total + i",
+       "    }",
+       "    else {",
+       "      d = d + 0.5",
+       "    }",
+       "    var j = 0",
+       "    while j < 3 {",
+       "      j = j + 1",
+       "    }",
+       "    i = i + j - 2",
+       "  }",
+       "  print(itos(total) + \" \" + dtos(d) + \" \")",
+       "  var xs = \"1234x\"",
+       "  for k from 0 upto length(xs) - 1 {",
+       "    print(itos(stoi(\"\" + get(k, xs))))",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    vm.setTracing(2);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      assertEquals("273 13.0 1234", output.toString());
+      assertEquals(true, e.getMessage().contains("(in main at "));
+      assertEquals(true, e.getMessage().contains(": TOINT)"));
+    }
+    assertEquals(true, vm.tracer().traceCount() >= 2);
+  }
+
+  @Test
+  public void aotCompiledProgram() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun int sum(Node n) {",
+       "  var total = 0",
+       "  while n != nil {",
+       "    total = total + n.val",
+       "    n = n.next",
+       "  }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  var Node head = nil",
+       "  for i from 1 upto 4 {",
+       "    var n = new Node",
+       "    n.val = i",
+       "    n.next = head",
+       "    head = n",
+       "  }",
+       "  print(itos(sum(head)) + \" \" + itos(head.next.val) + \"\\n\")",
+       "}");
+    Program program = new ASTParser(new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")))).parse();
+    program.accept(new StaticChecker(new TypeInfo()));
+    java.io.File jar = java.io.File.createTempFile("aot", ".jar");
+    jar.deleteOnExit();
+    AOTCompiler.compile(program, jar.getPath());
+    String className = AOTCompiler.className(jar.getPath());
+    try (java.net.URLClassLoader loader =
+         new java.net.URLClassLoader(new java.net.URL[] {jar.toURI().toURL()})) {
+      loader.loadClass(className).getMethod("main", String[].class)
+        .invoke(null, (Object)new String[0]);
+    }
+    assertEquals("10 3\n", output.toString());
+  }
+
+  @Test
+  public void aotDeepRecursion() throws Exception {
+    // (as deep as the other engines go, see deep-recursion.mypl)
+    String s = buildString
+      ("fun int depth(int n) {",
+       "  if n == 0 {",
+       "    return 0",
+       "  }",
+       "  return 1 + depth(n - 1)",
+       "}",
+       "fun void main() {",
+       "  print(itos(depth(100000)))",
+       "}");
+    Program program = new ASTParser(new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")))).parse();
+    program.accept(new StaticChecker(new TypeInfo()));
+    java.io.File jar = java.io.File.createTempFile("aot", ".jar");
+    jar.deleteOnExit();
+    AOTCompiler.compile(program, jar.getPath());
+    String className = AOTCompiler.className(jar.getPath());
+    try (java.net.URLClassLoader loader =
+         new java.net.URLClassLoader(new java.net.URL[] {jar.toURI().toURL()})) {
+      loader.loadClass(className).getMethod("main", String[].class)
+        .invoke(null, (Object)new String[0]);
+    }
+    assertEquals("100000", output.toString());
+  }
+
+  @Test
+  public void aotClassNames() throws Exception {
+    assertEquals("fib", AOTCompiler.className("out/fib.jar"));
+    assertEquals("my_prog", AOTCompiler.className("my-prog.jar"));
+    assertEquals("_2d", AOTCompiler.className("2d.jar"));
+    // (keywords and the names of classes the generated code uses)
+    assertEquals("whileProgram", AOTCompiler.className("while.jar"));
+    assertEquals("ObjectProgram", AOTCompiler.className("Object.jar"));
+    assertEquals("StringProgram", AOTCompiler.className("String.jar"));
+    assertEquals("MyPLRuntimeProgram", AOTCompiler.className("MyPLRuntime.jar"));
+  }
+
+  @Test
+  public void closureEngine() throws Exception {
+    String s = buildString
+      ("type Box {",
+       "  var int val = 0",
+       "}",
+       "fun int fac(int n) {",
+       "  if n <= 1 {",
+       "    return 1",
+       "  }",
+       "  return n * fac(n - 1)",
+       "}",
+       "fun void main() {",
+       "  var b = new Box",
+       "  var n = stoi(\"6\")",
+       "  while b.val < n {",
+       "    b.val = b.val + 1",
+       "    if b.val == 1 {",
+       "      print(\"one \")",
+       "    }",
+       "    elif b.val == 2 {",
+       "      print(\"two \")",
+       "    }",
+       "    elif b.val == 3 {",
+       "      print(\"three \")",
+       "    }",
+       "    else {",
+       "      print(itos(fac(b.val)) + \" \")",
+       "    }",
+       "  }",
+       "  print(get(n, \"abc\"))",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      new ClosureEngine(vm).run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      assertEquals("one two three 24 120 720 ", output.toString());
+      assertEquals(true, e.getMessage().contains("(in main at "));
+    }
+  }
+
+  @Test
+  public void registerVM() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun int sub(int x, int y) {",
+       "  return x - y",
+       "}",
+       "fun void main() {",
+       "  var n = new Node",
+       "  n.next = new Node",
+       "  var i = 0",
+       "  while i < 3 {",
+       "    n.next.val = n.next.val + sub(10, i)",
+       "    i = i + 1",
+       "  }",
+       "  var x = 1",
+       "  x = x + x * 2",
+       "  print(itos(n.next.val) + \" \" + itos(x) + \" \")",
+       "  print(get(i, \"ab\"))",
+       "}");
+    VM vm = buildVM(s);
+    String expected = null;
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      expected = output.toString() + e.getMessage();
+    }
+    output.reset();
+    try {
+      new RegisterVM(vm).run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      assertEquals("27 3 ", output.toString());
+      assertEquals(expected, output.toString() + e.getMessage());
+    }
+    // fewer instructions than the stack version
+    RegisterTranslator t = new RegisterTranslator(vm.frame("main"),
+                                                  f -> vm.frame(f).argCount());
+    assertEquals(true, t.translate());
+    assertEquals(true, t.instructions().size() < vm.frame("main").instructions.size());
+  }
+
+  //------------------------------------------------------------
+  // User-Defined Types
+  //------------------------------------------------------------
+
+  @Test
+  public void basicUDT() throws Exception {
+    String s = buildString
+      ("type T {", 
+       "  var x = 0", 
+       "  var y = true",
+       "}", 
+       "fun void main() {",
+       "  var t1 = new T",
+       "  var t2 = new T",
+       "  print(t1)",
+       "  print(' ')",
+       "  print(t2)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("1111 1112", output.toString());
+  }
+
+  @Test
+  public void basicPathsUDT() throws Exception {
+    String s = buildString
+      ("type T {", 
+       "  var x = 0", 
+       "  var y = true",
+       "}", 
+       "fun void main() {",
+       "  var t = new T",
+       "  t.x = 3",
+       "  var x = t.x",
+       "  print(x)",
+       "  print(' ')", 
+       "  t.y = false", 
+       "  var y = t.y", 
+       "  print(y)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("3 false", output.toString());
+  }
+
+  @Test
+  public void basicTwoLevelUDT() throws Exception {
+    String s = buildString
+      ("type T {", 
+       "  var x = 0", 
+       "  var y = true",
+       "}",
+       "type S {",
+       "  var T t = new T",
+       "}",
+       "fun void main() {",
+       "  var s = new S",
+       "  s.t.x = 3",
+       "  var x = s.t.x",
+       "  print(x)",
+       "  print(' ')", 
+       "  print(s.t.y)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("3 true", output.toString());
+  }
+
+  @Test
+  public void basicRecursiveUDT() throws Exception {
+    String s = buildString
+      ("type T {", 
+       "  var x = 0", 
+       "  var y = true",
+       "  var T t = nil",
+       "}",
+       "fun void main() {",
+       "  var t1 = new T",
+       "  print(t1.x)",
+       "  print(t1.y)",
+       "  print(t1.t)",
+       "  var t2 = new T",
+       "  t2.x = 3",
+       "  t1.t = t2",
+       "  print(' ')",
+       "  print(t1.t)",
+       "  print(t1.t.x)",
+       "  print(t1.t.y)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("0truenil 11123true", output.toString());
+  }
+  
+  //------------------------------------------------------------
+  // Runtime errors
+  //------------------------------------------------------------
+  
+  @Test
+  public void nilVarDerefence() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var int x = nil",
+       "  var y = 3 + x",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      // to test message: assertEquals("...", e.getMessage());
+      // to print message: stdout.println(e.toString());
+    }
+  }
+
+  @Test
+  public void invalidIndex() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var s = \"foobar\"",
+       "  var y = get(6, s)",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      // to test message: assertEquals("...", e.getMessage());
+      // to print message: stdout.println(e.toString());
+    }
+  }
+
+  @Test
+  public void invalidIntConversion() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var s = \"bar\"",
+       "  var y = stoi(s)",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      // to test message: assertEquals("...", e.getMessage());
+      // to print message: stdout.println(e.toString());
+    }
+  }
+
+  @Test
+  public void invalidDoubleConversion() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var s = \"bar\"",
+       "  var y = stod(s)",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      // to test message: assertEquals("...", e.getMessage());
+      // to print message: stdout.println(e.toString());
+    }
+  }
+
+  @Test
+  public void invalidHeapAccess() throws Exception {
+    String s = buildString
+      ("type T {",
+       "  var x = 0",
+       "}",       
+       "fun void main() {",
+       "  var t = new T", 
+       "  delete t",
+       "  print(t.x)",
+       "}");
+    VM vm = buildVM(s);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      // to test message: assertEquals("...", e.getMessage());
+      // to print message: stdout.println(e.toString());
+    }
+  }
+
+  @Test
+  public void astInterpreter() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun int fib(int n) {",
+       "  if n < 2 {",
+       "    return n",
+       "  }",
+       "  return fib(n - 1) + fib(n - 2)",
+       "}",
+       "fun void main() {",
+       "  var Node head = nil",
+       "  for i from 1 upto 3 {",
+       "    var n = new Node",
+       "    n.val = fib(i + 5)",
+       "    n.next = head",
+       "    head = n",
+       "  }",
+       "  var x = 1",
+       "  if head.val > 10 {",
+       "    var x = 2",
+       "  }",
+       "  print(itos(head.val) + \" \" + itos(head.next.next.val) + \" \" + itos(x) + \" \")",
+       "  print(itos(stoi(itos(neg head.val) + \"x\")))",
+       "}");
+    for (int threshold = 0; threshold <= 2; ++threshold) {
+      output.reset();
+      Program program = new ASTParser(new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")))).parse();
+      TypeInfo typeInfo = new TypeInfo();
+      program.accept(new StaticChecker(typeInfo));
+      VM vm = new VM();
+      ASTInterpreter interpreter = new ASTInterpreter(typeInfo, vm);
+      interpreter.setCompileThreshold(threshold);
+      try {
+        program.accept(interpreter);
+        fail("runtime error not detected");
+      } catch(MyPLException e) {
+        assertEquals(true, e.getMessage().contains("(in main at line 24)"));
+      }
+      // (the inner x is the one CodeGenerator would use)
+      assertEquals("21 8 2 ", output.toString());
+      assertEquals(threshold == 0, vm.frame("fib") == null);
+    }
+  }
+
+  @Test
+  public void astDeepRecursion() throws Exception {
+    String s = buildString
+      ("fun int down(int n) {",
+       "  if n == 0 {",
+       "    return 0",
+       "  }",
+       "  return 1 + down(n - 1)",
+       "}",
+       "fun void main() {",
+       "  var n = 200000",
+       "  print(itos(down(n)))",
+       "}");
+    Program program = new ASTParser(new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")))).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    ASTInterpreter interpreter = new ASTInterpreter(typeInfo, new VM());
+    interpreter.setCompileThreshold(0);
+    program.accept(interpreter);
+    assertEquals("200000", output.toString());
+  }
+
+  @Test
+  public void engineConformance() throws Exception {
+    String s = buildString
+      ("type Pair {",
+       "  var int x = 0",
+       "  var double y = 1.5",
+       "}",
+       "fun int sum(int n) {",
+       "  var total = 0",
+       "  for i from 1 upto n {",
+       "    if (i % 2) == 0 {",
+       "      total = total + i",
+       "    }",
+       "  }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  var p = new Pair",
+       "  var k = 0",
+       "  while k < 60 {",
+       "    p.x = p.x + sum(k)",
+       "    p.y = p.y * 1.5",
+       "    k = k + 1",
+       "  }",
+       "  print(itos(p.x) + \" \" + dtos(p.y) + \" \" + get(2, \"abcd\"))",
+       "}");
+    String expected = null;
+    for (String name : Engines.NAMES) {
+      output.reset();
+      Program program = new ASTParser(new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")))).parse();
+      TypeInfo typeInfo = new TypeInfo();
+      program.accept(new StaticChecker(typeInfo));
+      Engines.create(name, false).run(program, typeInfo);
+      if (expected == null)
+        expected = output.toString();
+      assertEquals(name, expected, output.toString());
+    }
+    assertEquals(true, expected.startsWith("17980 "));
+    assertEquals(null, Engines.create("no-such-engine", false));
+  }
+
+  @Test
+  public void vmListener() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "}",
+       "fun int f(int n) {",
+       "  var x = new Node",
+       "  x.val = n",
+       "  delete x",
+       "  return n + 1",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 3 {",
+       "    total = total + f(i)",
+       "  }",
+       "  print(itos(total))",
+       "  print(itos(stoi(\"x\")))",
+       "}");
+    VM vm = buildVM(s);
+    int[] counts = new int[1];
+    List<String> events = new ArrayList<>();
+    vm.addListener(new VMListener() {
+        public boolean tracesInstructions() {
+          return true;
+        }
+        public void instruction(VMFrame frame, int pc, VMInstr instr) {
+          ++counts[0];
+        }
+        public void call(VMFrame frame) {
+          events.add("call " + frame.functionName());
+        }
+        public void ret(VMFrame frame, Object value) {
+          events.add("ret " + frame.functionName() + " " + value);
+        }
+        public void alloc(VMFrame frame, int pc, Object oid, List<String> fields) {
+          events.add("alloc " + fields);
+        }
+        public void free(VMFrame frame, int pc, Object oid) {
+          events.add("free");
+        }
+        public void error(MyPLException e, VMFrame frame) {
+          events.add("error in " + frame.functionName());
+        }
+      });
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+    }
+    assertEquals("9", output.toString());
+    assertEquals(List.of("call main", "call f", "alloc [val]", "free", "ret f 2",
+                         "call f", "alloc [val]", "free", "ret f 3",
+                         "call f", "alloc [val]", "free", "ret f 4", "error in main"),
+                 events);
+    assertEquals(true, counts[0] > 30);
+  }
+
+  @Test
+  public void opProfile() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var i = 0",
+       "  while i < 10 {",
+       "    i = i + 1",
+       "  }",
+       "  print(itos(i))",
+       "}");
+    VM vm = buildVM(s);
+    OpProfiler profiler = new OpProfiler(true);
+    vm.addListener(profiler);
+    vm.run();
+    assertEquals("10", output.toString());
+    assertEquals(10, profiler.count(OpCode.ADD));
+    assertEquals(11, profiler.count(OpCode.CMPLT));
+    assertEquals(10, profiler.count(OpCode.ADD, OpCode.STORE));
+    assertEquals(11, profiler.count(OpCode.CMPLT, OpCode.JMPF));
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    profiler.report(new PrintStream(report));
+    assertEquals(true, report.toString().contains("Top pairs"));
+    assertEquals(true, report.toString().contains("LOAD PUSH "));
+    assertEquals(false, report.toString().contains("more not shown"));
+  }
+
+  @Test
+  public void opProfileOmitted() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var i = 0",
+       "  var s = \"\"",
+       "  while i < 10 {",
+       "    if ((i % 2) == 0) and (i != 4) {",
+       "      s = s + itos((i * 3) - 1)",
+       "    }",
+       "    i = i + 1",
+       "  }",
+       "  print(s)",
+       "}");
+    VM vm = buildVM(s);
+    OpProfiler profiler = new OpProfiler(false);
+    vm.addListener(profiler);
+    vm.run();
+    assertEquals("-151723", output.toString());
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    profiler.report(new PrintStream(report));
+    // more than 20 different pairs and triples ran
+    assertEquals(true, report.toString().contains("more not shown, run "));
+  }
+
+  @Test
+  public void functionProfile() throws Exception {
+    String s = buildString
+      ("fun int fac(int n) {",
+       "  if n <= 1 {",
+       "    return 1",
+       "  }",
+       "  return n * fac(n - 1)",
+       "}",
+       "fun int twice(int n) {",
+       "  return fac(n) + fac(n)",
+       "}",
+       "fun void main() {",
+       "  print(itos(twice(stoi(\"5\"))))",
+       "}");
+    VM vm = buildVM(s);
+    FunctionProfiler profiler = new FunctionProfiler();
+    vm.addListener(profiler);
+    vm.run();
+    assertEquals("240", output.toString());
+    assertEquals(1, profiler.stats("main").calls);
+    assertEquals(1, profiler.stats("twice").calls);
+    assertEquals(10, profiler.stats("fac").calls);
+    FunctionProfiler.Stats main = profiler.stats("main");
+    FunctionProfiler.Stats twice = profiler.stats("twice");
+    FunctionProfiler.Stats fac = profiler.stats("fac");
+    assertEquals(true, main.totalNanos >= twice.totalNanos);
+    assertEquals(true, twice.totalNanos >= fac.totalNanos);
+    assertEquals(main.totalNanos, main.selfNanos + twice.selfNanos + fac.selfNanos);
+  }
+
+  @Test
+  public void samplingProfile() throws Exception {
+    String s = buildString
+      ("fun int f(int n) {",
+       "  var total = 0",
+       "  var i = 0",
+       "  while i < n {",
+       "    total = total + (i % 7)",
+       "    i = i + 1",
+       "  }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  print(itos(f(stoi(\"300000\"))))",
+       "}");
+    VM vm = buildVM(s);
+    SamplingProfiler profiler = new SamplingProfiler(100);
+    vm.addListener(profiler);
+    profiler.start();
+    vm.run();
+    profiler.stop();
+    assertEquals("899997", output.toString());
+    assertEquals(true, profiler.sampleCount() > 0);
+    java.io.StringWriter folded = new java.io.StringWriter();
+    profiler.write(folded);
+    for (String line : folded.toString().split("\n"))
+      assertEquals(line, true, line.matches("main(;f)?;(main|f)@[0-9]+ [0-9]+"));
+  }
+
+  @Test
+  public void lineTables() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var i = 0",
+       "  while i < 10 {",
+       "    i = i + 1",
+       "  }",
+       "  print(itos(i))",
+       "  print(itos(stoi(\"x\")))",
+       "}");
+    VM vm = buildVM(s);
+    LineProfiler profiler = new LineProfiler();
+    vm.addListener(profiler);
+    try {
+      vm.run();
+      fail("runtime error not detected");
+    } catch(MyPLException e) {
+      assertEquals("10", output.toString());
+      assertEquals(true, e.getMessage().contains(": TOINT) near line 7, column 13"));
+    }
+    // LOAD, PUSH, CMPLT, JMPF per test and JMP per iteration
+    assertEquals(11 * 4 + 10, profiler.count(3));
+    // LOAD, PUSH, ADD, STORE
+    assertEquals(10 * 4, profiler.count(4));
+    VMFrame main = vm.frame("main");
+    for (int pc = 0; pc < main.instructions.size(); ++pc)
+      assertEquals(true, main.lines.line(pc) >= 2 && main.lines.line(pc) <= 7);
+  }
+
+  @Test
+  public void traceEvents() throws Exception {
+    String s = buildString
+      ("fun int f(int n, string s) {",
+       "  return n + length(s)",
+       "}",
+       "fun void main() {",
+       "  print(itos(f(stoi(\"3\"), \"abc\")))",
+       "}");
+    java.io.StringWriter out = new java.io.StringWriter();
+    TraceEventWriter tracer = new TraceEventWriter(out);
+    tracer.begin("parse", "compile");
+    tracer.end("parse", "compile");
+    VM vm = buildVM(s);
+    vm.addListener(tracer);
+    tracer.phase("run", true);
+    vm.run();
+    tracer.phase("run", false);
+    tracer.close();
+    assertEquals("6", output.toString());
+    String json = out.toString();
+    assertEquals(true, json.startsWith("{\"traceEvents\":["));
+    assertEquals(true, json.trim().endsWith("}"));
+    assertEquals(true, json.contains("\"name\":\"parse\",\"cat\":\"compile\""));
+    assertEquals(true, json.contains("\"name\":\"run\",\"cat\":\"run\""));
+    assertEquals(true, json.contains("\"args\":{\"arg0\":\"3\",\"arg1\":\"\\\"abc\\\"\"}"));
+    assertEquals(true, json.contains("\"args\":{\"return\":\"6\"}"));
+    assertEquals(json.split("\"ph\":\"B\"").length, json.split("\"ph\":\"E\"").length);
+  }
+
+  @Test
+  public void runStats() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun int depth(int n) {",
+       "  var x = new Node",
+       "  if n == 0 { return 0 }",
+       "  return 1 + depth(n - 1)",
+       "}",
+       "fun void main() {",
+       "  print(itos(depth(stoi(\"4\"))))",
+       "}");
+    Lexer lexer = new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")));
+    lexer.setTiming(true);
+    RunStats stats = new RunStats();
+    stats.phase("parse", true);
+    Program program = new ASTParser(lexer).parse();
+    stats.phase("parse", false);
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    stats.frontEnd(lexer, program);
+    Engines.create("vm", false, vm -> {
+        vm.addListener(stats);
+        stats.add(vm);
+      }).run(program, typeInfo);
+    assertEquals("4", output.toString());
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    stats.report(new PrintStream(json), true);
+    String line = json.toString();
+    assertEquals(true, line.startsWith("{\"completed\":true,\"ms\":{\"lex\":"));
+    assertEquals(true, line.contains(",\"parse\":"));
+    assertEquals(true, line.contains(",\"codegen\":"));
+    assertEquals(true, line.contains("\"tokens\":60,"));
+    assertEquals(true, line.contains("\"functions\":2,"));
+    assertEquals(true, line.trim().matches(".*\"frameInstructions\":\\{\"depth\":[0-9]+,\"main\":[0-9]+\\}.*"));
+    assertEquals(true, line.contains("\"maxCallDepth\":6,\"maxHeapObjects\":5}"));
+    assertEquals(1, line.trim().split("\n").length);
+  }
+
+  @Test
+  public void jfrEvents() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun int f(int n) {",
+       "  var x = new Node",
+       "  delete x",
+       "  return n",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 64 {",
+       "    f(i)",
+       "  }",
+       "  print(itos(stoi(\"x\")))",
+       "}");
+    VM vm = buildVM(s);
+    vm.addListener(new JFRListener());
+    java.nio.file.Path file = java.nio.file.Files.createTempFile("mypl", ".jfr");
+    try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+      recording.enable("mypl.Call").withThreshold(java.time.Duration.ZERO);
+      recording.enable("mypl.Alloc");
+      recording.enable("mypl.Free");
+      recording.enable("mypl.Error");
+      recording.start();
+      try {
+        vm.run();
+        fail("runtime error not detected");
+      } catch(MyPLException e) {
+      }
+      recording.stop();
+      recording.dump(file);
+      java.util.Map<String,Integer> counts = new java.util.HashMap<>();
+      for (jdk.jfr.consumer.RecordedEvent e : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+        String name = e.getEventType().getName();
+        counts.merge(name, 1, Integer::sum);
+        if (name.equals("mypl.Alloc")) {
+          assertEquals(3, e.getInt("line"));
+          assertEquals(64, e.getInt("weight"));
+        }
+        if (name.equals("mypl.Free"))
+          assertEquals(4, e.getInt("line"));
+        if (name.equals("mypl.Error"))
+          assertEquals(11, e.getInt("line"));
+      }
+      assertEquals(65, (int)counts.get("mypl.Call"));
+      // (allocations are sampled at random, about 1 in 64)
+      assertEquals(true, counts.getOrDefault("mypl.Alloc", 0) <= 10);
+      assertEquals(64, (int)counts.get("mypl.Free"));
+      assertEquals(1, (int)counts.get("mypl.Error"));
+    } finally {
+      java.nio.file.Files.delete(file);
+    }
+  }
+
+  @Test
+  public void vmMonitor() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 var int next = 0 }",
+       "fun int f(int n) {",
+       "  var x = new Node",
+       "  if (n % 2) == 0 { delete x }",
+       "  return n",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 10 {",
+       "    f(i)",
+       "  }",
+       "  print(\"done\")",
+       "}");
+    VM vm = buildVM(s);
+    VMMonitor monitor = new VMMonitor(vm);
+    javax.management.ObjectName name = monitor.register();
+    try {
+      vm.run();
+      assertEquals("done", output.toString());
+      javax.management.MBeanServer server =
+        java.lang.management.ManagementFactory.getPlatformMBeanServer();
+      assertEquals(11L, server.getAttribute(name, "Calls"));
+      assertEquals(0, server.getAttribute(name, "CallDepth"));
+      assertEquals(10L, server.getAttribute(name, "Allocations"));
+      assertEquals(5L, server.getAttribute(name, "Frees"));
+      assertEquals(5L, server.getAttribute(name, "LiveObjects"));
+      assertEquals(true, (long)server.getAttribute(name, "EstimatedHeapBytes") > 0);
+      assertEquals(vm.instructionsExecuted(), server.getAttribute(name, "InstructionsExecuted"));
+      assertEquals(true, vm.instructionsExecuted() > 0);
+      assertEquals(true, (double)server.getAttribute(name, "WriteMillis") > 0);
+    } finally {
+      monitor.unregister();
+    }
+  }
+
+  @Test
+  public void instructionCountWhileRunning() throws Exception {
+    String s = buildString
+      ("fun void done() {",
+       "  print(\"done\")",
+       "}",
+       "fun void main() {",
+       "  var i = 0",
+       "  while i < 2000 {",
+       "    i = i + 1",
+       "  }",
+       "  done()",
+       "}");
+    VM vm = buildVM(s);
+    long[] seen = new long[1];
+    vm.addListener(new VMListener() {
+        public void call(VMFrame frame) {
+          if (frame.functionName().equals("done"))
+            seen[0] = vm.instructionsExecuted();
+        }
+      });
+    vm.run();
+    assertEquals("done", output.toString());
+    // (main's loop had published its count by the time it called done)
+    assertEquals(true, seen[0] >= 1024 && seen[0] < vm.instructionsExecuted());
+    // (I/O is only timed for a monitor)
+    assertEquals(0, vm.writeNanos());
+  }
+
+  @Test
+  public void heapProfile() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 var Node next = nil }",
+       "type Box { var int val = 0 }",
+       "fun void main() {",
+       "  var Node head = nil",
+       "  for i from 1 upto 10 {",
+       "    var n = new Node",
+       "    n.next = head",
+       "    head = n",
+       "    var b = new Box",
+       "    delete b",
+       "  }",
+       "  print(\"done\")",
+       "}");
+    VM vm = buildVM(s);
+    HeapProfiler profiler = new HeapProfiler(1);
+    vm.addListener(profiler);
+    vm.run();
+    assertEquals("done", output.toString());
+    assertEquals(10, profiler.live("Node"));
+    assertEquals(0, profiler.live("Box"));
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    profiler.report(new PrintStream(report));
+    String text = report.toString();
+    assertEquals(true, text.startsWith("Heap profile (10 objects live, ~"));
+    assertEquals(true, text.contains("10 Node object(s) from main:6:16, e.g., oids [1111, "));
+    assertEquals(false, text.contains("Box object(s)"));
+  }
+
+  @Test
+  public void heapReportWhileRunning() throws Exception {
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun void halfway() {",
+       "  print(\"halfway\")",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 10 {",
+       "    var n = new Node",
+       "    if i == 5 {",
+       "      halfway()",
+       "    }",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    HeapProfiler profiler = new HeapProfiler(1);
+    vm.addListener(profiler);
+    VMMonitor monitor = new VMMonitor(vm);
+    monitor.setHeapProfiler(profiler);
+    javax.management.ObjectName name = monitor.register();
+    javax.management.MBeanServer server =
+      java.lang.management.ManagementFactory.getPlatformMBeanServer();
+    // (asks for the report over JMX when halfway is called)
+    String[] halfway = new String[1];
+    vm.addListener(new VMListener() {
+        @Override
+        public void call(VMFrame frame) {
+          if (!frame.functionName().equals("halfway"))
+            return;
+          try {
+            halfway[0] = (String)server.invoke(name, "heapReport", null, null);
+          } catch (javax.management.JMException e) {
+            halfway[0] = e.toString();
+          }
+        }
+      });
+    try {
+      vm.run();
+    } finally {
+      monitor.unregister();
+    }
+    assertEquals("halfway", output.toString());
+    assertEquals(true, halfway[0].startsWith("Heap profile (5 objects live, ~"));
+    assertEquals(10, profiler.live("Node"));
+  }
+
+  @Test
+  public void jitHeapProfile() throws Exception {
+    // (objects created by compiled code are charged to their own site)
+    String s = buildString
+      ("type Node { var int val = 0 }",
+       "fun Node make(int v) {",
+       "  var n = new Node",
+       "  n.val = v",
+       "  return n",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 10 {",
+       "    var n = make(i)",
+       "  }",
+       "  print(\"done\")",
+       "}");
+    VM vm = buildVM(s);
+    vm.setJIT(2);
+    HeapProfiler profiler = new HeapProfiler(1);
+    vm.addListener(profiler);
+    vm.run();
+    assertEquals("done", output.toString());
+    assertEquals(true, vm.jit().compiledFunctions().contains("make"));
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    profiler.report(new PrintStream(report));
+    String text = report.toString();
+    assertEquals(true, text.contains("10 Node object(s) from make:3:14, e.g., oids "));
+  }
+
+  @Test
+  public void sampledHeapProfile() throws Exception {
+    // (types allocated in turn, which sampling every fourth allocation
+    // would line up with: only A or C would ever be tracked)
+    String s = buildString
+      ("type A { var int val = 0 }",
+       "type B { var int val = 0 }",
+       "type C { var int val = 0 }",
+       "type D { var int val = 0 }",
+       "fun void main() {",
+       "  for i from 1 upto 400 {",
+       "    var a = new A",
+       "    var b = new B",
+       "    var c = new C",
+       "    var d = new D",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    HeapProfiler profiler = new HeapProfiler(4);
+    vm.addListener(profiler);
+    vm.run();
+    long total = 0;
+    for (String type : List.of("A", "B", "C", "D")) {
+      long live = profiler.live(type);
+      assertEquals(type + " sampled", true, live > 0);
+      total += live;
+    }
+    // (about 1 in 4 of the 1600 objects)
+    assertEquals(true, total > 250 && total < 550);
+  }
+
+  @Test
+  public void coverage() throws Exception {
+    String s = buildString
+      ("fun int twice(int x) {",
+       "  return half(x) * 4",
+       "}",
+       "fun int abs(int x) {",
+       "  if x < 0 {",
+       "    return 0 - x",
+       "  }",
+       "  if x > 100 {",
+       "    return twice(x)",
+       "  }",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 3 {",
+       "    print(itos(abs(i)))",
+       "  }",
+       "}",
+       "fun int half(int x) {",
+       "  if x > 1 {",
+       "    return x / 2",
+       "  }",
+       "  return x",
+       "}");
+    Lexer lexer = new Lexer(new ByteArrayInputStream(s.getBytes()));
+    Program program = new ASTParser(lexer).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    // (turned on before code generation, so abs isn't evaluated at
+    // compile time)
+    VM vm = new VM();
+    CoverageReport coverage = new CoverageReport();
+    coverage.add(vm);
+    program.accept(new CodeGenerator(typeInfo, vm));
+    vm.run();
+    assertEquals("123", output.toString());
+    java.io.StringWriter lcov = new java.io.StringWriter();
+    coverage.write(lcov, "test.mypl");
+    List<String> lines = java.util.Arrays.asList(lcov.toString().split("\n"));
+    assertEquals("SF:test.mypl", lines.get(1));
+    assertEquals(true, lines.contains("FNDA:0,twice"));
+    assertEquals(true, lines.contains("FNDA:1,abs"));
+    // (x < 0 and x > 100 are always false)
+    assertEquals(true, lines.contains("BRDA:5,4,0,0"));
+    assertEquals(true, lines.contains("BRDA:5,4,1,1"));
+    // (half never runs, so neither of its branches was taken or not)
+    assertEquals(true, lines.contains("BRDA:19,4,0,-"));
+    assertEquals(true, lines.contains("BRDA:19,4,1,-"));
+    assertEquals(true, lines.contains("DA:5,1"));
+    assertEquals(true, lines.contains("DA:6,0"));
+    assertEquals(true, lines.contains("DA:9,0"));
+    assertEquals(true, lines.contains("DA:11,1"));
+    assertEquals("end_of_record", lines.get(lines.size() - 1));
+    ByteArrayOutputStream summary = new ByteArrayOutputStream();
+    coverage.summary(new PrintStream(summary));
+    assertEquals("Coverage: lines 5/13 (38.5%), branches 2/6 (33.3%), functions 2/4\n",
+                 summary.toString());
+  }
+
+  @Test
+  public void coverageKeepsUnreachedCode() throws Exception {
+    // (unused is never called and the if-elif chain would otherwise
+    // be a SWITCH)
+    String s = buildString
+      ("fun int unused(int x) {",
+       "  return x + 1",
+       "}",
+       "fun string name(int x) {",
+       "  if x == 1 {",
+       "    return \"one\"",
+       "  }",
+       "  elif x == 2 {",
+       "    return \"two\"",
+       "  }",
+       "  elif x == 3 {",
+       "    return \"three\"",
+       "  }",
+       "  else {",
+       "    return \"many\"",
+       "  }",
+       "}",
+       "fun void main() {",
+       "  print(name(2))",
+       "}");
+    Lexer lexer = new Lexer(new ByteArrayInputStream(s.getBytes()));
+    Program program = new ASTParser(lexer).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    CoverageReport coverage = new CoverageReport();
+    coverage.add(vm);
+    program.accept(new CodeGenerator(typeInfo, vm));
+    vm.run();
+    assertEquals("two", output.toString());
+    java.io.StringWriter lcov = new java.io.StringWriter();
+    coverage.write(lcov, "test.mypl");
+    List<String> lines = java.util.Arrays.asList(lcov.toString().split("\n"));
+    assertEquals(true, lines.contains("FNDA:0,unused"));
+    assertEquals(true, lines.contains("DA:2,0"));
+    // (x == 1 was false, x == 2 true, and x == 3 never tested)
+    assertEquals(true, lines.contains("BRDA:5,4,0,0"));
+    assertEquals(true, lines.contains("BRDA:8,12,0,1"));
+    assertEquals(true, lines.contains("BRDA:11,20,0,-"));
+    ByteArrayOutputStream summary = new ByteArrayOutputStream();
+    coverage.summary(new PrintStream(summary));
+    assertEquals("Coverage: lines 5/11 (45.5%), branches 2/6 (33.3%), functions 2/3\n",
+                 summary.toString());
+  }
 
 }